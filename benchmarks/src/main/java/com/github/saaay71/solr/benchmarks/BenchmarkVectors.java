@@ -0,0 +1,64 @@
+package com.github.saaay71.solr.benchmarks;
+
+import com.github.saaay71.solr.VectorUtils;
+
+import java.util.Random;
+
+/**
+ * Random vectors shared by the benchmarks and the recall harness.
+ */
+final class BenchmarkVectors {
+
+    private BenchmarkVectors() {
+    }
+
+    /**
+     * @param density the fraction of non-zero dimensions, 1 for a dense vector
+     */
+    static VectorUtils.ParsedVector random(Random random, int dimensions, double density) {
+        if(density >= 1d) {
+            final float[] values = new float[dimensions];
+            for(int i = 0; i < dimensions; i++) {
+                values[i] = random.nextFloat() * 2 - 1;
+            }
+            return new VectorUtils.ParsedVector(null, values);
+        }
+        final int size = Math.max(1, (int) Math.round(dimensions * density));
+        final int[] indices = new int[size];
+        final float[] values = new float[size];
+        // evenly spread non-zeros with a random offset, so the indices stay sorted and distinct
+        final int step = dimensions / size;
+        for(int i = 0; i < size; i++) {
+            indices[i] = i * step + random.nextInt(step);
+            values[i] = random.nextFloat() * 2 - 1;
+        }
+        return new VectorUtils.ParsedVector(indices, values);
+    }
+
+    static double[] toDoubles(VectorUtils.ParsedVector vector, int dimensions) {
+        final double[] doubles = new double[dimensions];
+        final float[] values = vector.getValues();
+        for(int i = 0; i < values.length; i++) {
+            doubles[vector.isSparse()? vector.getIndices()[i]: i] = values[i];
+        }
+        return doubles;
+    }
+
+    /**
+     * @return the vector in the text format of the vector field
+     */
+    static String toText(VectorUtils.ParsedVector vector) {
+        final StringBuilder builder = new StringBuilder();
+        final float[] values = vector.getValues();
+        for(int i = 0; i < values.length; i++) {
+            if(i > 0) {
+                builder.append(VectorUtils.DELIMITER);
+            }
+            if(vector.isSparse()) {
+                builder.append(vector.getIndices()[i]).append(VectorUtils.SPARSE_DELIMITER);
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.saaay71.solr.benchmarks;
+
+import com.github.saaay71.solr.query.LSHModel;
+import info.debatty.java.lsh.LSHSuperBit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes a vector with {@link LSHSuperBit} and with the {@link LSHModel} that replaced it, and computes the buckets of a
+ * multi-probe lookup, for several {@code stages}x{@code buckets} settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LSHBenchmark {
+
+    @Param({"64", "384", "768", "1536"})
+    private int dimensions;
+
+    @Param({"10x10", "20x20", "50x50"})
+    private String stagesXBuckets;
+
+    @Param({"10"})
+    private int probes;
+
+    private LSHSuperBit superBit;
+    private LSHModel model;
+    private double[] vector;
+
+    @Setup
+    public void setup() {
+        final int stages = Integer.parseInt(stagesXBuckets.substring(0, stagesXBuckets.indexOf('x')));
+        final int buckets = Integer.parseInt(stagesXBuckets.substring(stagesXBuckets.indexOf('x') + 1));
+        superBit = new LSHSuperBit(stages, buckets, dimensions, 5);
+        model = new LSHModel(stages, buckets, dimensions, 5);
+        vector = BenchmarkVectors.toDoubles(BenchmarkVectors.random(new Random(42), dimensions, 1d), dimensions);
+    }
+
+    @Benchmark
+    public int[] superBitHash() {
+        return superBit.hash(vector);
+    }
+
+    @Benchmark
+    public int[] modelHash() {
+        return model.hash(vector);
+    }
+
+    @Benchmark
+    public int[][] multiProbe() {
+        return model.probe(vector, probes);
+    }
+}
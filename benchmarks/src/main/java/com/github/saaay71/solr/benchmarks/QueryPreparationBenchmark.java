@@ -0,0 +1,81 @@
+package com.github.saaay71.solr.benchmarks;
+
+import com.github.saaay71.solr.VectorParser;
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.LSHCollisionQuery;
+import com.github.saaay71.solr.query.LSHModel;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import com.github.saaay71.solr.query.VectorQuery;
+import com.github.saaay71.solr.updateprocessor.LSHUpdateProcessorFactory;
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per request work of {@code VectorQParserPlugin} that does not need a core: turning the {@code vector} param into a
+ * prepared query, and building the LSH candidate query of a multi-probe lookup. The whole parse, on an embedded core, is
+ * part of the latencies reported by {@link RecallHarness}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryPreparationBenchmark {
+
+    @Param({"64", "384", "768", "1536"})
+    private int dimensions;
+
+    @Param({"1.0", "0.1", "0.01"})
+    private double density;
+
+    @Param({"0", "10"})
+    private int probes;
+
+    private String vector;
+    private LSHModel model;
+
+    @Setup
+    public void setup() {
+        vector = BenchmarkVectors.toText(BenchmarkVectors.random(new Random(42), dimensions, density));
+        model = new LSHModel(50, 50, dimensions, 5);
+    }
+
+    @Benchmark
+    public PreparedVectorQuery prepare() {
+        if(VectorParser.isSparse(vector)) {
+            final VectorUtils.ParsedVector parsed = VectorUtils.parse(vector);
+            return PreparedVectorQuery.sparse(parsed.getIndices(), parsed.getValues(), VectorUtils.VectorType.AUTO,
+                    VectorQuery.VectorQueryType.COSINE);
+        }
+        final double[] values = new double[VectorParser.size(vector)];
+        VectorParser.parseDense(vector, values);
+        return new PreparedVectorQuery(values, VectorUtils.VectorType.AUTO, VectorQuery.VectorQueryType.COSINE);
+    }
+
+    @Benchmark
+    public Query lshQuery() {
+        final double[] values;
+        if(VectorParser.isSparse(vector)) {
+            values = VectorUtils.parse(vector).toHashVector(dimensions);
+        } else {
+            values = new double[VectorParser.size(vector)];
+            VectorParser.parseDense(vector, values);
+        }
+        return new LSHCollisionQuery(LSHUpdateProcessorFactory.DEFAULT_LSH_FIELD_NAME, model.probe(values, probes),
+                model.getStageScore(), 1, 0);
+    }
+}
@@ -0,0 +1,286 @@
+package com.github.saaay71.solr.benchmarks;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.IVFModel;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Indexes a synthetic clustered dataset into an embedded core, once per LSH {@code stages}x{@code buckets} setting, and
+ * reports the recall@k against brute-force ground truth and the p50/p99 latency of every query mode. The exact, HNSW and
+ * IVF modes do not depend on the LSH setting and are only measured on the first index.
+ * <p>
+ * Settings are system properties: {@code docs} (20000), {@code dimensions} (128), {@code clusters} (100),
+ * {@code queries} (200), {@code k} (10), {@code lsh} (10x10,20x20,50x50), {@code reRankDocs} (10 * k), {@code probes} (10),
+ * {@code nlist} (square root of docs), {@code nprobe} (8), {@code ef} (100) and {@code seed} (42).
+ */
+public class RecallHarness {
+
+    private static final String CORE = "vectors";
+    private static final int BATCH = 1000;
+
+    private final int docs = Integer.getInteger("docs", 20000);
+    private final int dimensions = Integer.getInteger("dimensions", 128);
+    private final int clusters = Integer.getInteger("clusters", 100);
+    private final int queries = Integer.getInteger("queries", 200);
+    private final int k = Integer.getInteger("k", 10);
+    private final String[] lshSettings = System.getProperty("lsh", "10x10,20x20,50x50").split(",");
+    private final int reRankDocs = Integer.getInteger("reRankDocs", 10 * k);
+    private final int probes = Integer.getInteger("probes", 10);
+    private final int nlist = Integer.getInteger("nlist", (int) Math.sqrt(docs));
+    private final int nprobe = Integer.getInteger("nprobe", 8);
+    private final int ef = Integer.getInteger("ef", 100);
+    private final long seed = Long.getLong("seed", 42L);
+
+    private float[][] vectors;
+    private float[][] queryVectors;
+    private List<Set<String>> groundTruth;
+
+    public static void main(String[] args) throws Exception {
+        new RecallHarness().run();
+    }
+
+    private void run() throws Exception {
+        generate();
+        System.out.printf(Locale.ROOT, "%d docs, %d dimensions, %d clusters, %d queries, recall@%d%n", docs, dimensions,
+                clusters, queries, k);
+        System.out.printf(Locale.ROOT, "%-10s %-42s %8s %10s %10s%n", "lsh", "mode", "recall", "p50 ms", "p99 ms");
+        boolean first = true;
+        for(String setting: lshSettings) {
+            final int stages = Integer.parseInt(setting.substring(0, setting.indexOf('x')).trim());
+            final int buckets = Integer.parseInt(setting.substring(setting.indexOf('x') + 1).trim());
+            final Path home = Files.createTempDirectory("vector-recall");
+            final CoreContainer container = createCore(home, stages, buckets);
+            try(EmbeddedSolrServer server = new EmbeddedSolrServer(container, CORE)) {
+                index(server);
+                final Map<String, String> modes = new LinkedHashMap<>();
+                if(first) {
+                    modes.put("exact", "");
+                    modes.put("hnsw ef=" + ef, "ann=\"hnsw\" k=\"" + k + "\" ef=\"" + ef + "\"");
+                    modes.put("ivf nprobe=" + nprobe, "ann=\"ivf\" nprobe=\"" + nprobe + "\"");
+                }
+                final String lsh = "lsh=\"true\" reRankDocs=\"" + reRankDocs + "\"";
+                modes.put("lsh reRankDocs=" + reRankDocs, lsh);
+                modes.put("lsh probes=" + probes, lsh + " probes=\"" + probes + "\"");
+                modes.put("lsh probes=" + probes + " minCollisions=2", lsh + " probes=\"" + probes + "\" minCollisions=\"2\"");
+                for(Map.Entry<String, String> mode: modes.entrySet()) {
+                    evaluate(server, setting, mode.getKey(), mode.getValue());
+                }
+            } finally {
+                container.shutdown();
+                delete(home);
+            }
+            first = false;
+        }
+    }
+
+    /**
+     * Gaussian clusters around random centers, so that the nearest neighbours of a query are meaningful.
+     */
+    private void generate() {
+        final Random random = new Random(seed);
+        final float[][] centers = new float[clusters][dimensions];
+        for(float[] center: centers) {
+            for(int i = 0; i < dimensions; i++) {
+                center[i] = random.nextFloat() * 2 - 1;
+            }
+        }
+        vectors = new float[docs][];
+        for(int i = 0; i < docs; i++) {
+            vectors[i] = around(random, centers[random.nextInt(clusters)]);
+        }
+        queryVectors = new float[queries][];
+        groundTruth = new ArrayList<>(queries);
+        for(int q = 0; q < queries; q++) {
+            queryVectors[q] = around(random, centers[random.nextInt(clusters)]);
+            groundTruth.add(nearest(queryVectors[q]));
+        }
+    }
+
+    private float[] around(Random random, float[] center) {
+        final float[] vector = new float[dimensions];
+        for(int i = 0; i < dimensions; i++) {
+            vector[i] = center[i] + (float) random.nextGaussian() * 0.25f;
+        }
+        return vector;
+    }
+
+    /**
+     * @return the ids of the k documents of highest cosine similarity, brute force
+     */
+    private Set<String> nearest(float[] query) {
+        final double[] similarities = new double[docs];
+        for(int i = 0; i < docs; i++) {
+            similarities[i] = cosine(query, vectors[i]);
+        }
+        final Integer[] order = new Integer[docs];
+        for(int i = 0; i < docs; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> similarities[i]).reversed());
+        final Set<String> ids = new HashSet<>();
+        for(int i = 0; i < k; i++) {
+            ids.add(String.valueOf(order[i]));
+        }
+        return ids;
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0d;
+        double normA = 0d;
+        double normB = 0d;
+        for(int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return dot / (Math.sqrt(normA) * Math.sqrt(normB));
+    }
+
+    private CoreContainer createCore(Path home, int stages, int buckets) throws IOException {
+        final Path conf = Files.createDirectories(home.resolve(CORE).resolve("conf"));
+        write(home.resolve("solr.xml"), "<solr/>\n");
+        write(home.resolve(CORE).resolve("core.properties"), "name=" + CORE + "\n");
+        write(conf.resolve("schema.xml"), "<schema name=\"recall\" version=\"1.6\">\n"
+                + "    <fieldType name=\"string\" class=\"solr.StrField\"/>\n"
+                + "    <fieldType name=\"VectorField\" class=\"com.github.saaay71.solr.schema.VectorField\" stored=\"true\" indexed=\"false\" multiValued=\"false\"/>\n"
+                + "    <field name=\"id\" type=\"string\" indexed=\"true\" stored=\"true\"/>\n"
+                + "    <field name=\"vector\" type=\"string\" indexed=\"false\" stored=\"false\"/>\n"
+                + "    <field name=\"_vector_\" type=\"VectorField\"/>\n"
+                + "    <field name=\"_lsh_hash_\" type=\"string\" indexed=\"true\" stored=\"false\" multiValued=\"true\"/>\n"
+                + "    <field name=\"_ivf_centroid_\" type=\"string\" indexed=\"true\" stored=\"false\"/>\n"
+                + "    <uniqueKey>id</uniqueKey>\n"
+                + "</schema>\n");
+        write(conf.resolve("solrconfig.xml"), "<config>\n"
+                + "    <luceneMatchVersion>7.4.0</luceneMatchVersion>\n"
+                + "    <dataDir>${solr.data.dir:}</dataDir>\n"
+                + "    <schemaFactory class=\"ClassicIndexSchemaFactory\"/>\n"
+                + "    <queryParser name=\"vp\" class=\"com.github.saaay71.solr.query.VectorQParserPlugin\"/>\n"
+                + "    <query>\n"
+                + "        <listener event=\"newSearcher\" class=\"com.github.saaay71.solr.query.HnswGraphWarmer\">\n"
+                + "            <str name=\"field\">vector</str>\n"
+                + "        </listener>\n"
+                + "    </query>\n"
+                + "    <updateHandler class=\"solr.DirectUpdateHandler2\"/>\n"
+                + "    <updateRequestProcessorChain name=\"LSH\">\n"
+                + "        <processor class=\"com.github.saaay71.solr.updateprocessor.LSHUpdateProcessorFactory\">\n"
+                + "            <int name=\"seed\">5</int>\n"
+                + "            <int name=\"stages\">" + stages + "</int>\n"
+                + "            <int name=\"buckets\">" + buckets + "</int>\n"
+                + "            <int name=\"dimensions\">" + dimensions + "</int>\n"
+                + "            <str name=\"field\">vector</str>\n"
+                + "            <str name=\"ivfModel\">ivf-centroids.txt</str>\n"
+                + "        </processor>\n"
+                + "        <processor class=\"solr.RunUpdateProcessorFactory\"/>\n"
+                + "    </updateRequestProcessorChain>\n"
+                + "    <requestHandler name=\"/select\" class=\"solr.SearchHandler\"/>\n"
+                + "    <initParams path=\"/update/**,/select\">\n"
+                + "        <lst name=\"defaults\">\n"
+                + "            <str name=\"update.chain\">LSH</str>\n"
+                + "        </lst>\n"
+                + "    </initParams>\n"
+                + "</config>\n");
+        final double[][] sample = new double[Math.min(docs, 10000)][dimensions];
+        for(int i = 0; i < sample.length; i++) {
+            for(int d = 0; d < dimensions; d++) {
+                sample[i][d] = vectors[i][d];
+            }
+        }
+        try(Writer writer = Files.newBufferedWriter(conf.resolve("ivf-centroids.txt"), StandardCharsets.UTF_8)) {
+            IVFModel.train(sample, nlist, 25, seed, 1).write(writer);
+        }
+        return CoreContainer.createAndLoad(home);
+    }
+
+    private void index(EmbeddedSolrServer server) throws IOException, SolrServerException {
+        final List<SolrInputDocument> batch = new ArrayList<>(BATCH);
+        for(int i = 0; i < docs; i++) {
+            final SolrInputDocument doc = new SolrInputDocument();
+            doc.setField("id", String.valueOf(i));
+            doc.setField("vector", toText(vectors[i]));
+            batch.add(doc);
+            if(batch.size() == BATCH) {
+                server.add(batch);
+                batch.clear();
+            }
+        }
+        if(!batch.isEmpty()) {
+            server.add(batch);
+        }
+        server.commit();
+    }
+
+    private void evaluate(EmbeddedSolrServer server, String setting, String mode, String localParams)
+            throws IOException, SolrServerException {
+        // one untimed pass to warm up the searcher and the JIT
+        for(float[] query: queryVectors) {
+            search(server, query, localParams);
+        }
+        final long[] nanos = new long[queries];
+        double recall = 0d;
+        for(int q = 0; q < queries; q++) {
+            final long start = System.nanoTime();
+            final List<String> ids = search(server, queryVectors[q], localParams);
+            nanos[q] = System.nanoTime() - start;
+            recall += ids.stream().filter(groundTruth.get(q)::contains).count() / (double) k;
+        }
+        Arrays.sort(nanos);
+        System.out.printf(Locale.ROOT, "%-10s %-42s %8.3f %10.3f %10.3f%n", setting, mode, recall / queries,
+                percentile(nanos, 50) / 1e6, percentile(nanos, 99) / 1e6);
+    }
+
+    private List<String> search(EmbeddedSolrServer server, float[] query, String localParams)
+            throws IOException, SolrServerException {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("q", "{!vp f=vector vector=\"" + toText(query) + "\" " + localParams + "}");
+        params.set("fl", "id");
+        params.set("rows", k);
+        final List<String> ids = new ArrayList<>(k);
+        for(SolrDocument doc: server.query(params).getResults()) {
+            ids.add((String) doc.getFieldValue("id"));
+        }
+        return ids;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[(sorted.length - 1) * percentile / 100];
+    }
+
+    private static String toText(float[] vector) {
+        return BenchmarkVectors.toText(new VectorUtils.ParsedVector(null, vector));
+    }
+
+    private static void write(Path path, String content) throws IOException {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void delete(Path home) throws IOException {
+        try(Stream<Path> paths = Files.walk(home)) {
+            for(Path path: paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.saaay71.solr.benchmarks;
+
+import com.github.saaay71.solr.VectorUtils;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the stored vector layouts of an AUTO field: dense floats, varint sparse vectors with 10% and
+ * 1% non-zero dimensions, and the INT8 and FLOAT16 quantizations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorCodecBenchmark {
+
+    @Param({"64", "384", "768", "1536"})
+    private int dimensions;
+
+    @Param({"DENSE", "SPARSE_10", "SPARSE_1", "INT8", "FLOAT16"})
+    private String layout;
+
+    private VectorUtils.ParsedVector vector;
+    private BytesRef encoded;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        vector = BenchmarkVectors.random(random, dimensions, density(layout));
+        encoded = encode();
+    }
+
+    static double density(String layout) {
+        switch (layout) {
+            case "SPARSE_10":
+                return 0.1d;
+            case "SPARSE_1":
+                return 0.01d;
+            default:
+                return 1d;
+        }
+    }
+
+    @Benchmark
+    public BytesRef encode() {
+        switch (layout) {
+            case "INT8":
+                return vector.encodeQuantized(VectorUtils.VectorType.INT8, true, false);
+            case "FLOAT16":
+                return vector.encodeQuantized(VectorUtils.VectorType.FLOAT16, true, false);
+            default:
+                return vector.encode(VectorUtils.VectorType.AUTO, false, false);
+        }
+    }
+
+    @Benchmark
+    public VectorUtils.ParsedVector decode() {
+        return VectorUtils.decode(encoded, VectorUtils.VectorType.AUTO);
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.saaay71.solr.benchmarks;
+
+import com.github.saaay71.solr.VectorParser;
+import com.github.saaay71.solr.VectorUtils;
+import org.apache.solr.common.util.StrUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single pass {@link VectorParser} with the split based parsing it replaced, on the indexing path
+ * (floats, dense and sparse) and on the query path (doubles, dense).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorParserBenchmark {
+
+    @Param({"128", "768"})
+    private int dimensions;
+
+    @Param({"false", "true"})
+    private boolean sparse;
+
+    private String vector;
+    private String denseVector;
+    private int[] indices;
+    private float[] values;
+    private double[] queryValues;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        final StringBuilder vectorBuilder = new StringBuilder();
+        final StringBuilder denseBuilder = new StringBuilder();
+        for(int i = 0; i < dimensions; i++) {
+            final String value = Float.toString(random.nextFloat() * 2 - 1);
+            if(i > 0) {
+                vectorBuilder.append(VectorUtils.DELIMITER);
+                denseBuilder.append(VectorUtils.DELIMITER);
+            }
+            if(sparse) {
+                vectorBuilder.append(i).append(VectorUtils.SPARSE_DELIMITER);
+            }
+            vectorBuilder.append(value);
+            denseBuilder.append(value);
+        }
+        vector = vectorBuilder.toString();
+        denseVector = denseBuilder.toString();
+        indices = new int[dimensions];
+        values = new float[dimensions];
+        queryValues = new double[dimensions];
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public List<?> splitParse() {
+        final List<String> items = StrUtils.splitSmart(vector, VectorUtils.DELIMITER);
+        return sparse? VectorUtils.parseSparseStrings(items): VectorUtils.parseDenseStrings(items);
+    }
+
+    @Benchmark
+    public float[] singlePassParse() {
+        if(sparse) {
+            VectorParser.parseSparse(vector, indices, values);
+        } else {
+            VectorParser.parseDense(vector, values);
+        }
+        return values;
+    }
+
+    @Benchmark
+    public double[] splitQueryParse() {
+        final String[] items = denseVector.split(",");
+        final double[] parsed = new double[items.length];
+        for(int i = 0; i < items.length; i++) {
+            parsed[i] = Double.parseDouble(items[i]);
+        }
+        return parsed;
+    }
+
+    @Benchmark
+    public double[] singlePassQueryParse() {
+        VectorParser.parseDense(denseVector, queryValues);
+        return queryValues;
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.saaay71.solr.benchmarks;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import com.github.saaay71.solr.query.VectorQuery;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores a dense query against {@value #DOCS} stored vectors of every layout, the way the vector query scores the
+ * documents of a segment. The sparse layouts are also scored with a sparse query of the same density; sparse queries do
+ * not apply to the other layouts, their {@code sparseQuery} runs measure an empty loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorScorerBenchmark {
+
+    static final int DOCS = 1000;
+
+    @Param({"64", "384", "768", "1536"})
+    private int dimensions;
+
+    @Param({"DENSE", "SPARSE_10", "SPARSE_1", "INT8", "FLOAT16"})
+    private String layout;
+
+    @Param({"COSINE", "DOT"})
+    private VectorQuery.VectorQueryType metric;
+
+    private BytesRef[] docs;
+    private final BytesRef scratch = new BytesRef();
+    private PreparedVectorQuery denseQuery;
+    private PreparedVectorQuery sparseQuery;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        final double density = VectorCodecBenchmark.density(layout);
+        docs = new BytesRef[DOCS];
+        for(int i = 0; i < DOCS; i++) {
+            final VectorUtils.ParsedVector vector = BenchmarkVectors.random(random, dimensions, density);
+            switch (layout) {
+                case "INT8":
+                    docs[i] = vector.encodeQuantized(VectorUtils.VectorType.INT8, true, false);
+                    break;
+                case "FLOAT16":
+                    docs[i] = vector.encodeQuantized(VectorUtils.VectorType.FLOAT16, true, false);
+                    break;
+                default:
+                    docs[i] = vector.encode(VectorUtils.VectorType.AUTO, false, false);
+            }
+        }
+        denseQuery = new PreparedVectorQuery(BenchmarkVectors.toDoubles(BenchmarkVectors.random(random, dimensions, 1d),
+                dimensions), VectorUtils.VectorType.AUTO, metric);
+        if(density < 1d) {
+            final VectorUtils.ParsedVector sparse = BenchmarkVectors.random(random, dimensions, density);
+            sparseQuery = PreparedVectorQuery.sparse(sparse.getIndices(), sparse.getValues(), VectorUtils.VectorType.AUTO,
+                    metric);
+        }
+    }
+
+    @Benchmark
+    public float denseQuery() {
+        return scoreAll(denseQuery);
+    }
+
+    @Benchmark
+    public float sparseQuery() {
+        return sparseQuery == null? 0f: scoreAll(sparseQuery);
+    }
+
+    private float scoreAll(PreparedVectorQuery query) {
+        float sum = 0f;
+        for(BytesRef doc: docs) {
+            // scoring AUTO vectors moves the offset past the marker byte, like doc values hand out a fresh view per document
+            scratch.bytes = doc.bytes;
+            scratch.offset = doc.offset;
+            scratch.length = doc.length;
+            sum += query.score(scratch);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,275 @@
+package com.github.saaay71.solr;
+
+import org.apache.solr.common.SolrException;
+
+/**
+ * Single pass parser of the text vector formats: comma separated values for dense vectors, comma separated
+ * index|value pairs for sparse ones. Values are written to arrays supplied by the caller, sized with {@link #size}.
+ * Nothing is allocated unless a value falls back to the JDK parsers: NaN, infinities, hex and suffixed forms, more than
+ * 18 significant digits, large exponents, and the rare values the fast path cannot round exactly.
+ * Malformed input is rejected with the position of the offending value.
+ */
+public final class VectorParser {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private VectorParser() {
+    }
+
+    public static boolean isSparse(CharSequence input) {
+        for(int i = 0; i < input.length(); i++) {
+            if(input.charAt(i) == VectorUtils.SPARSE_DELIMITER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of values of the vector, a separator at the end of the input is ignored
+     */
+    public static int size(CharSequence input) {
+        int last = input.length() - 1;
+        while(last >= 0 && input.charAt(last) <= ' ') {
+            last--;
+        }
+        if(last < 0) {
+            return 0;
+        }
+        int size = input.charAt(last) == VectorUtils.DELIMITER? 0: 1;
+        for(int i = 0; i <= last; i++) {
+            if(input.charAt(i) == VectorUtils.DELIMITER) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of values written
+     */
+    public static int parseDense(CharSequence input, float[] values) {
+        int count = 0;
+        for(int start = 0, end; (end = nextValueEnd(input, start)) >= 0; start = end + 1) {
+            checkCapacity(count, values.length, start);
+            values[count++] = (float) parseNumber(input, start, end, true);
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link #parseDense(CharSequence, float[])}, keeping the double precision of the values.
+     */
+    public static int parseDense(CharSequence input, double[] values) {
+        int count = 0;
+        for(int start = 0, end; (end = nextValueEnd(input, start)) >= 0; start = end + 1) {
+            checkCapacity(count, values.length, start);
+            values[count++] = parseNumber(input, start, end, false);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of index|value pairs written
+     */
+    public static int parseSparse(CharSequence input, int[] indices, float[] values) {
+        int count = 0;
+        for(int start = 0, end; (end = nextValueEnd(input, start)) >= 0; start = end + 1) {
+            checkCapacity(count, Math.min(indices.length, values.length), start);
+            int delimiter = start;
+            while(delimiter < end && input.charAt(delimiter) != VectorUtils.SPARSE_DELIMITER) {
+                delimiter++;
+            }
+            if(delimiter == end) {
+                throw error("expected index" + VectorUtils.SPARSE_DELIMITER + "value", input, start, end);
+            }
+            indices[count] = parseIndex(input, start, delimiter);
+            values[count++] = (float) parseNumber(input, delimiter + 1, end, true);
+        }
+        return count;
+    }
+
+    /**
+     * @return the end of the value starting at {@code start}, -1 once the input is consumed
+     */
+    private static int nextValueEnd(CharSequence input, int start) {
+        final int length = input.length();
+        if(start > length) {
+            return -1;
+        }
+        int end = start;
+        while(end < length && input.charAt(end) != VectorUtils.DELIMITER) {
+            end++;
+        }
+        if(end == length && isBlank(input, start, end)) {
+            // empty input, or nothing after the last separator
+            return -1;
+        }
+        return end;
+    }
+
+    private static boolean isBlank(CharSequence input, int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(input.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkCapacity(int count, int capacity, int position) {
+        if(count == capacity) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "vector has more than " + capacity
+                    + " values at position " + position);
+        }
+    }
+
+    private static int parseIndex(CharSequence input, int start, int end) {
+        int i = start;
+        while(i < end && input.charAt(i) <= ' ') {
+            i++;
+        }
+        int last = end;
+        while(last > i && input.charAt(last - 1) <= ' ') {
+            last--;
+        }
+        if(i == last) {
+            throw error("missing index", input, start, end);
+        }
+        long index = 0;
+        for(; i < last; i++) {
+            final char c = input.charAt(i);
+            if(c < '0' || c > '9') {
+                throw error("invalid index", input, start, end);
+            }
+            index = index * 10 + (c - '0');
+            if(index > Integer.MAX_VALUE) {
+                throw error("index out of range", input, start, end);
+            }
+        }
+        return (int) index;
+    }
+
+    /**
+     * Parses the decimal value of input[start, end), ignoring surrounding whitespace. Values whose digits fit a double
+     * mantissa with a power of ten of at most 22 are exact with a single multiplication or division (Clinger's fast
+     * path). For floats the double result is then rounded once more, which is only ambiguous when it falls exactly
+     * half way between two floats; those values are left to {@link Float#parseFloat}.
+     *
+     * @return the parsed value, rounded to a float when {@code asFloat} is set
+     */
+    static double parseNumber(CharSequence input, int start, int end, boolean asFloat) {
+        int i = start;
+        while(i < end && input.charAt(i) <= ' ') {
+            i++;
+        }
+        int last = end;
+        while(last > i && input.charAt(last - 1) <= ' ') {
+            last--;
+        }
+        if(i == last) {
+            throw error("missing value", input, start, end);
+        }
+        final int valueStart = i;
+        boolean negative = false;
+        char c = input.charAt(i);
+        if(c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean sawDot = false;
+        for(; i < last; i++) {
+            c = input.charAt(i);
+            if(c >= '0' && c <= '9') {
+                sawDigit = true;
+                if(mantissa == 0 && c == '0') {
+                    if(sawDot) {
+                        exponent--;
+                    }
+                } else if(digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if(sawDot) {
+                        exponent--;
+                    }
+                } else {
+                    return fallback(input, valueStart, last, asFloat);
+                }
+            } else if(c == '.' && !sawDot) {
+                sawDot = true;
+            } else {
+                break;
+            }
+        }
+        if(sawDigit && i < last && (c == 'e' || c == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if(i < last && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+                negativeExponent = input.charAt(i) == '-';
+                i++;
+            }
+            int exponentValue = 0;
+            int exponentDigits = 0;
+            for(; i < last && input.charAt(i) >= '0' && input.charAt(i) <= '9'; i++, exponentDigits++) {
+                if(exponentValue > 1000) {
+                    return fallback(input, valueStart, last, asFloat);
+                }
+                exponentValue = exponentValue * 10 + (input.charAt(i) - '0');
+            }
+            if(exponentDigits == 0) {
+                return fallback(input, valueStart, last, asFloat);
+            }
+            exponent += negativeExponent? -exponentValue: exponentValue;
+        }
+        if(!sawDigit || i != last) {
+            return fallback(input, valueStart, last, asFloat);
+        }
+        if(mantissa == 0) {
+            return negative? -0d: 0d;
+        }
+        if(mantissa < MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            final double value = exponent < 0? mantissa / POWERS_OF_TEN[-exponent]: mantissa * POWERS_OF_TEN[exponent];
+            if(!asFloat) {
+                return negative? -value: value;
+            }
+            final float rounded = (float) value;
+            if(!Float.isInfinite(rounded) && !isHalfWay(value, rounded)) {
+                return negative? -rounded: rounded;
+            }
+        }
+        return fallback(input, valueStart, last, asFloat);
+    }
+
+    /**
+     * @return true when the double lies exactly half way between the float it rounds to and its neighbour
+     */
+    private static boolean isHalfWay(double value, float rounded) {
+        if(rounded == value) {
+            return false;
+        }
+        final float neighbour = Math.nextAfter(rounded, value);
+        return ((double) rounded + (double) neighbour) / 2 == value;
+    }
+
+    private static double fallback(CharSequence input, int start, int end, boolean asFloat) {
+        final String value = input.subSequence(start, end).toString();
+        try {
+            return asFloat? Float.parseFloat(value): Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw error("invalid value", input, start, end);
+        }
+    }
+
+    private static SolrException error(String message, CharSequence input, int start, int end) {
+        return new SolrException(SolrException.ErrorCode.BAD_REQUEST, message + " \"" + input.subSequence(start, end)
+                + "\" at position " + start);
+    }
+}
@@ -5,11 +5,18 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.lucene.analysis.payloads.PayloadHelper;
 import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrException;
-import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.common.util.Base64;
+import org.apache.solr.schema.SchemaField;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.stream.Collectors;
 
 public class VectorUtils {
@@ -18,15 +25,38 @@ public class VectorUtils {
     public final static int SPARSE_SIZE = Float.BYTES + Integer.BYTES;
     public final static Byte DENSE_VECTOR_BYTE = -1;
     public final static Byte SPARSE_VECTOR_BYTE = -2;
+    // same layouts as above, with the L2 norm of the vector encoded as a float right after the marker byte
+    public final static Byte DENSE_NORM_VECTOR_BYTE = -3;
+    public final static Byte SPARSE_NORM_VECTOR_BYTE = -4;
+    public final static int NORM_HEADER_SIZE = 1 + Float.BYTES;
+    // INT8 and FLOAT16 layouts, see VectorType, behind a marker byte
+    public final static Byte INT8_VECTOR_BYTE = -5;
+    public final static Byte FLOAT16_VECTOR_BYTE = -6;
+    // sparse vectors sorted by index, the L2 norm as a double, then for every entry the vint delta to the previous index
+    // and the value as a float. Written for AUTO sparse vectors instead of the fixed size SPARSE layouts
+    public final static Byte SPARSE_VARINT_VECTOR_BYTE = -7;
+    public final static int SPARSE_VARINT_HEADER_SIZE = 1 + Double.BYTES;
+    // INT8 vectors start with the offset, the scale and the L2 norm of the quantized vector as floats
+    public final static int INT8_HEADER_SIZE = 3 * Float.BYTES;
+    // FLOAT16 vectors start with the L2 norm of the rounded vector as a float
+    public final static int FLOAT16_HEADER_SIZE = Float.BYTES;
 
     public static BytesRef encode(String input) {
         return encode(input, VectorType.AUTO);
     }
 
+    /**
+     * @deprecated use {@link #parse(CharSequence)}, which does not split the input first
+     */
+    @Deprecated
     public static List<Float> parseDenseStrings(List<String> items) {
         return items.stream().map(Float::parseFloat).collect(Collectors.toList());
     }
 
+    /**
+     * @deprecated use {@link #parse(CharSequence)}, which does not split the input first
+     */
+    @Deprecated
     public static List<Pair<Integer, Float>> parseSparseStrings(List<String> items) {
         return items.stream().map(x -> {
             int delimiterIndex = x.indexOf(SPARSE_DELIMITER);
@@ -53,29 +83,306 @@ public class VectorUtils {
     }
 
     public static BytesRef encode(String input, VectorType vecType) {
-        List<String> items = StrUtils.splitSmart(input, DELIMITER);
-        byte[] bytes;
-        switch (vecType) {
-            case DENSE:
-                bytes = new byte[items.size() * Float.BYTES];
-                return encodeDense(new BytesRef(bytes), parseDenseStrings(items));
-            case SPARSE:
-                bytes = new byte[items.size() * SPARSE_SIZE];
-                return encodeSparse(new BytesRef(bytes), parseSparseStrings(items));
-            case AUTO:
-                final boolean isSparse = input.indexOf(SPARSE_DELIMITER) != -1;
-                bytes = new byte[1 + (isSparse? (items.size() * SPARSE_SIZE): (items.size() * Float.BYTES))];
-                BytesRef bytesRef = new BytesRef(bytes, 1, bytes.length - 1);
-                if(isSparse) {
-                    bytes[0] = SPARSE_VECTOR_BYTE;
-                    encodeSparse(bytesRef, parseSparseStrings(items));
-                } else {
-                    bytes[0] = DENSE_VECTOR_BYTE;
-                    encodeDense(bytesRef, parseDenseStrings(items));
+        return encode(input, vecType, false, false);
+    }
+
+    /**
+     * @param storeNorm write the L2 norm of the vector after the marker byte, only supported by the AUTO layout
+     * @param normalize scale the vector to unit length before encoding it
+     */
+    public static BytesRef encode(String input, VectorType vecType, boolean storeNorm, boolean normalize) {
+        return parse(input).encode(vecType, storeNorm, normalize);
+    }
+
+    /**
+     * Parses a comma separated dense vector, or a sparse one made of index|value pairs, into primitive arrays.
+     */
+    public static ParsedVector parse(CharSequence input) {
+        final float[] values = new float[VectorParser.size(input)];
+        if(VectorParser.isSparse(input)) {
+            final int[] indices = new int[values.length];
+            VectorParser.parseSparse(input, indices, values);
+            return new ParsedVector(indices, values);
+        }
+        VectorParser.parseDense(input, values);
+        return new ParsedVector(null, values);
+    }
+
+    /**
+     * @return the bytes of a binary value: a byte[], a {@link ByteBuffer} or a base64 string
+     */
+    public static BytesRef toBytesRef(Object value) {
+        if(value instanceof byte[]) {
+            return new BytesRef((byte[]) value);
+        }
+        if(value instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) value;
+            if(buffer.hasArray()) {
+                return new BytesRef(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return new BytesRef(bytes);
+        }
+        return new BytesRef(Base64.base64ToByteArray(value.toString()));
+    }
+
+    /**
+     * Decodes a vector written by {@link #encode(String, VectorType, boolean, boolean)} for the vector type.
+     */
+    public static ParsedVector decode(BytesRef buffer, VectorType vecType) {
+        if(vecType.isQuantized()) {
+            return decodeQuantized(buffer.bytes, buffer.offset, buffer.length, vecType);
+        }
+        if(vecType == VectorType.AUTO && buffer.length > 0) {
+            final byte marker = buffer.bytes[buffer.offset];
+            if(marker == INT8_VECTOR_BYTE || marker == FLOAT16_VECTOR_BYTE) {
+                return decodeQuantized(buffer.bytes, buffer.offset + 1, buffer.length - 1,
+                        marker == INT8_VECTOR_BYTE? VectorType.INT8: VectorType.FLOAT16);
+            }
+            if(marker == SPARSE_VARINT_VECTOR_BYTE) {
+                return decodeVarintSparse(buffer);
+            }
+        }
+        int offset = buffer.offset;
+        int length = buffer.length;
+        final boolean isSparse;
+        if(vecType == VectorType.AUTO) {
+            if(length == 0) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "encoded vector is empty");
+            }
+            final byte marker = buffer.bytes[offset];
+            final int headerSize = marker == DENSE_NORM_VECTOR_BYTE || marker == SPARSE_NORM_VECTOR_BYTE? NORM_HEADER_SIZE: 1;
+            if(headerSize == 1 && marker != DENSE_VECTOR_BYTE && marker != SPARSE_VECTOR_BYTE) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown vector marker byte: " + marker);
+            }
+            isSparse = marker == SPARSE_VECTOR_BYTE || marker == SPARSE_NORM_VECTOR_BYTE;
+            offset += headerSize;
+            length -= headerSize;
+        } else {
+            isSparse = vecType == VectorType.SPARSE;
+        }
+        final int entrySize = isSparse? SPARSE_SIZE: Float.BYTES;
+        if(length < 0 || length % entrySize != 0) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "invalid encoded vector length: " + buffer.length);
+        }
+        final float[] values = new float[length / entrySize];
+        final int[] indices = isSparse? new int[values.length]: null;
+        for(int i = 0; i < values.length; i++) {
+            final int entryOffset = offset + i * entrySize;
+            if(isSparse) {
+                indices[i] = PayloadHelper.decodeInt(buffer.bytes, entryOffset);
+                values[i] = PayloadHelper.decodeFloat(buffer.bytes, entryOffset + Integer.BYTES);
+            } else {
+                values[i] = PayloadHelper.decodeFloat(buffer.bytes, entryOffset);
+            }
+        }
+        return new ParsedVector(indices, values);
+    }
+
+    private static ParsedVector decodeVarintSparse(BytesRef buffer) {
+        final byte[] bytes = buffer.bytes;
+        final int end = buffer.offset + buffer.length;
+        int pos = buffer.offset + SPARSE_VARINT_HEADER_SIZE;
+        if(pos > end) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "invalid encoded vector length: " + buffer.length);
+        }
+        int[] indices = new int[(end - pos) / (1 + Float.BYTES)];
+        float[] values = new float[indices.length];
+        int size = 0;
+        int index = 0;
+        while(pos < end) {
+            int b = bytes[pos++];
+            int delta = b & 0x7f;
+            for(int shift = 7; (b & 0x80) != 0; shift += 7) {
+                if(pos >= end) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "truncated encoded sparse vector");
+                }
+                b = bytes[pos++];
+                delta |= (b & 0x7f) << shift;
+            }
+            if(pos + Float.BYTES > end) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "truncated encoded sparse vector");
+            }
+            index += delta;
+            indices[size] = index;
+            values[size++] = PayloadHelper.decodeFloat(bytes, pos);
+            pos += Float.BYTES;
+        }
+        return new ParsedVector(Arrays.copyOf(indices, size), Arrays.copyOf(values, size));
+    }
+
+    private static ParsedVector decodeQuantized(byte[] bytes, int offset, int length, VectorType vecType) {
+        final boolean isInt8 = vecType == VectorType.INT8;
+        final int headerSize = isInt8? INT8_HEADER_SIZE: FLOAT16_HEADER_SIZE;
+        final int entrySize = isInt8? Byte.BYTES: Short.BYTES;
+        if(length < headerSize || (length - headerSize) % entrySize != 0) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "invalid encoded vector length: " + length);
+        }
+        final int start = offset + headerSize;
+        final float[] values = new float[(length - headerSize) / entrySize];
+        if(isInt8) {
+            final float min = PayloadHelper.decodeFloat(bytes, offset);
+            final float scale = PayloadHelper.decodeFloat(bytes, offset + Float.BYTES);
+            for(int i = 0; i < values.length; i++) {
+                values[i] = min + scale * (bytes[start + i] + 128);
+            }
+        } else {
+            for(int i = 0; i < values.length; i++) {
+                final int p = start + i * Short.BYTES;
+                values[i] = fromHalfFloat((short) ((bytes[p] << 8) | (bytes[p + 1] & 0xff)));
+            }
+        }
+        return new ParsedVector(null, values);
+    }
+
+    public static void encodeDouble(double value, byte[] bytes, int offset) {
+        final long bits = Double.doubleToLongBits(value);
+        PayloadHelper.encodeInt((int) (bits >>> 32), bytes, offset);
+        PayloadHelper.encodeInt((int) bits, bytes, offset + Integer.BYTES);
+    }
+
+    public static double decodeDouble(byte[] bytes, int offset) {
+        return Double.longBitsToDouble(((long) PayloadHelper.decodeInt(bytes, offset) << 32)
+                | (PayloadHelper.decodeInt(bytes, offset + Integer.BYTES) & 0xffffffffL));
+    }
+
+    /**
+     * @return the IEEE 754 half precision bits of the value, rounded to nearest even
+     */
+    public static short toHalfFloat(float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if(exponent == 0xff) {
+            // infinity, or NaN kept quiet
+            return (short) (sign | 0x7c00 | (mantissa != 0? 0x200: 0));
+        }
+        final int halfExponent = exponent - 127 + 15;
+        if(halfExponent >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        final int shift;
+        final int half;
+        if(halfExponent <= 0) {
+            if(halfExponent < -10) {
+                return (short) sign;
+            }
+            // subnormal half, the implicit bit becomes part of the mantissa
+            mantissa |= 0x800000;
+            shift = 14 - halfExponent;
+            half = mantissa >>> shift;
+        } else {
+            shift = 13;
+            half = (halfExponent << 10) | (mantissa >>> shift);
+        }
+        final int remainder = mantissa & ((1 << shift) - 1);
+        final int halfway = 1 << (shift - 1);
+        // a carry out of the mantissa correctly bumps the exponent
+        final boolean roundUp = remainder > halfway || (remainder == halfway && (half & 1) != 0);
+        return (short) (sign | (roundUp? half + 1: half));
+    }
+
+    /**
+     * @return the float value of IEEE 754 half precision bits
+     */
+    public static float fromHalfFloat(short bits) {
+        final int half = bits & 0xffff;
+        final int sign = (half & 0x8000) << 16;
+        final int exponent = (half >>> 10) & 0x1f;
+        final int mantissa = half & 0x3ff;
+        if(exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if(exponent == 0) {
+            final float subnormal = mantissa * 0x1p-24f;
+            return sign == 0? subnormal: -subnormal;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    /**
+     * @return true when the encoded vector already has the layout encode would write for the vector type
+     */
+    public static boolean hasLayout(BytesRef buffer, VectorType vecType, boolean storeNorm) {
+        if(vecType != VectorType.AUTO) {
+            return !storeNorm;
+        }
+        final byte marker = buffer.bytes[buffer.offset];
+        return marker == SPARSE_VARINT_VECTOR_BYTE || (storeNorm? marker == DENSE_NORM_VECTOR_BYTE: marker == DENSE_VECTOR_BYTE);
+    }
+
+    /**
+     * @return the dense vector of a buffer of little-endian floats
+     */
+    public static ParsedVector decodeLittleEndian(BytesRef buffer) {
+        if(buffer.length % Float.BYTES != 0) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "invalid little-endian float vector length: " + buffer.length);
+        }
+        FloatBuffer floats = ByteBuffer.wrap(buffer.bytes, buffer.offset, buffer.length).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        float[] values = new float[floats.remaining()];
+        floats.get(values);
+        return new ParsedVector(null, values);
+    }
+
+    /**
+     * @return the dense vector of a float[], a double[], a collection of numbers or a single number
+     */
+    public static ParsedVector parseNumbers(Object value) {
+        if(value instanceof float[]) {
+            return new ParsedVector(null, (float[]) value);
+        }
+        if(value instanceof double[]) {
+            double[] doubles = (double[]) value;
+            float[] values = new float[doubles.length];
+            for(int i = 0; i < doubles.length; i++) {
+                values[i] = (float) doubles[i];
+            }
+            return new ParsedVector(null, values);
+        }
+        if(value instanceof Number) {
+            return new ParsedVector(null, new float[] {((Number) value).floatValue()});
+        }
+        if(value instanceof Collection) {
+            Collection<?> items = (Collection<?>) value;
+            float[] values = new float[items.size()];
+            int i = 0;
+            for(Object item: items) {
+                if(!(item instanceof Number)) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "vectors given as a list must only hold numbers, got: " + item);
                 }
-                return new BytesRef(bytes);
+                values[i++] = ((Number) item).floatValue();
+            }
+            return new ParsedVector(null, values);
+        }
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unsupported vector value: " + value.getClass().getName());
+    }
+
+    /**
+     * @return the L2 norm of a dense vector, buffer pointing at the encoded floats
+     */
+    public static double denseNorm(BytesRef buffer) {
+        final int maxOffset = buffer.offset + buffer.length;
+        double sumOfSquares = 0d;
+        for(int i = buffer.offset; i < maxOffset; i += Float.BYTES) {
+            final float val = PayloadHelper.decodeFloat(buffer.bytes, i);
+            sumOfSquares += (double) val * val;
         }
-        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "unsupported vector type: " + vecType.name());
+        return Math.sqrt(sumOfSquares);
+    }
+
+    /**
+     * @return the L2 norm of a sparse vector, buffer pointing at the encoded index/value pairs
+     */
+    public static double sparseNorm(BytesRef buffer) {
+        final int maxOffset = buffer.offset + buffer.length;
+        double sumOfSquares = 0d;
+        for(int i = buffer.offset; i < maxOffset; i += SPARSE_SIZE) {
+            final float val = PayloadHelper.decodeFloat(buffer.bytes, i + Integer.BYTES);
+            sumOfSquares += (double) val * val;
+        }
+        return Math.sqrt(sumOfSquares);
     }
 
     public static Iterator<Float> decodeDense(BytesRef buffer) {
@@ -122,21 +429,285 @@ public class VectorUtils {
     }
 
     public static double[] parseInputVec(String input, int vecDimensions) {
-        List<String> items = StrUtils.splitSmart(input, VectorUtils.DELIMITER);
-        boolean isSparse = input.indexOf(VectorUtils.SPARSE_DELIMITER) != -1;
-        if(!isSparse) {
-            return VectorUtils.parseDenseStrings(items).stream().mapToDouble(x -> (Double.valueOf(x.toString()))).toArray();
-        }
+        return parse(input).toHashVector(vecDimensions);
+    }
 
-        List<Pair<Integer, Float>> parsedList = VectorUtils.parseSparseStrings(items);
-        double[] denseVector = new double[vecDimensions];
-        parsedList.forEach(kvPair -> denseVector[kvPair.getLeft()] = Double.valueOf(kvPair.getRight().toString()));
-        return denseVector;
+    /**
+     * @return the vector type configured by the "vectorType" arg of the field, AUTO when not set
+     */
+    public static VectorType getVectorType(SchemaField field) {
+        final Object vecTypeArg = field.getArgs().get("vectorType");
+        return vecTypeArg == null? VectorType.AUTO: VectorType.valueOf(vecTypeArg.toString().toUpperCase(Locale.ROOT));
     }
 
+    /**
+     * How vectors are encoded. INT8 and FLOAT16 are quantized dense layouts that store a quarter and a half of the
+     * DENSE size, documents are scored against the full precision query. AUTO vectors may use them as well, behind
+     * their marker byte.
+     */
     public enum VectorType {
         SPARSE,
         DENSE,
-        AUTO
+        AUTO,
+        INT8,
+        FLOAT16;
+
+        public boolean isQuantized() {
+            return this == INT8 || this == FLOAT16;
+        }
+    }
+
+    /**
+     * How vectors are supplied. TEXT vectors are comma separated strings. ENCODED and FLOATS_LE vectors are binary,
+     * base64 when given as strings, holding the layout of {@link #encode(String, VectorType, boolean, boolean)} or
+     * little-endian floats. Raw binary values of the TEXT format are read as ENCODED.
+     */
+    public enum VectorFormat {
+        TEXT,
+        ENCODED,
+        FLOATS_LE;
+
+        public static VectorFormat fromString(String format) {
+            try {
+                return valueOf(format.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown vector format: \"" + format
+                        + "\", expected one of " + Arrays.toString(values()));
+            }
+        }
+    }
+
+    /**
+     * A vector parsed once, which can be both encoded and hashed. Sparse vectors keep their indices, dense ones have none.
+     */
+    public static final class ParsedVector {
+        private final int[] indices;
+        private final float[] values;
+
+        public ParsedVector(int[] indices, float[] values) {
+            this.indices = indices;
+            this.values = values;
+        }
+
+        public boolean isSparse() {
+            return indices != null;
+        }
+
+        public int[] getIndices() {
+            return indices;
+        }
+
+        public float[] getValues() {
+            return values;
+        }
+
+        /**
+         * AUTO sparse vectors are written in the {@link #SPARSE_VARINT_VECTOR_BYTE} layout, which always holds the norm.
+         *
+         * @param storeNorm write the L2 norm of the vector after the marker byte, only supported by the AUTO layout
+         * @param normalize scale the vector to unit length before encoding it
+         */
+        public BytesRef encode(VectorType vecType, boolean storeNorm, boolean normalize) {
+            if(storeNorm && vecType != VectorType.AUTO) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "storing norms requires vector type AUTO, got: " + vecType.name());
+            }
+            if(vecType != VectorType.AUTO && (vecType == VectorType.SPARSE) != isSparse()) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "vector type " + vecType.name() + " does not accept "
+                        + (isSparse()? "sparse": "dense") + " vectors");
+            }
+            if(vecType.isQuantized()) {
+                return encodeQuantized(vecType, false, normalize);
+            }
+            final float[] floats = normalize? normalized(): values;
+            if(vecType == VectorType.AUTO && isSparse()) {
+                return encodeVarintSparse(indices, floats);
+            }
+            final int headerSize = vecType != VectorType.AUTO? 0: (storeNorm? NORM_HEADER_SIZE: 1);
+            final byte[] bytes = new byte[headerSize + floats.length * (isSparse()? SPARSE_SIZE: Float.BYTES)];
+            for(int i = 0; i < floats.length; i++) {
+                if(isSparse()) {
+                    PayloadHelper.encodeInt(indices[i], bytes, headerSize + i * SPARSE_SIZE);
+                    PayloadHelper.encodeFloat(floats[i], bytes, headerSize + i * SPARSE_SIZE + Integer.BYTES);
+                } else {
+                    PayloadHelper.encodeFloat(floats[i], bytes, headerSize + i * Float.BYTES);
+                }
+            }
+            if(vecType == VectorType.AUTO) {
+                bytes[0] = isSparse()? (storeNorm? SPARSE_NORM_VECTOR_BYTE: SPARSE_VECTOR_BYTE): (storeNorm? DENSE_NORM_VECTOR_BYTE: DENSE_VECTOR_BYTE);
+            }
+            if(storeNorm) {
+                // the norm of the encoded floats, so it matches what the scorers decode
+                PayloadHelper.encodeFloat((float) Math.sqrt(sumOfSquares(floats)), bytes, 1);
+            }
+            return new BytesRef(bytes);
+        }
+
+        /**
+         * @return the dense vector to hash. The values go through their float text form, as they always did, so the
+         * hashes of existing indexes keep matching
+         */
+        public double[] toHashVector(int dimensions) {
+            final double[] vector = new double[isSparse()? dimensions: values.length];
+            for(int i = 0; i < values.length; i++) {
+                vector[isSparse()? indices[i]: i] = Double.parseDouble(Float.toString(values[i]));
+            }
+            return vector;
+        }
+
+        /**
+         * Writes the {@link #SPARSE_VARINT_VECTOR_BYTE} layout, which always holds the norm.
+         */
+        private static BytesRef encodeVarintSparse(int[] indices, float[] floats) {
+            int[] order = null;
+            for(int i = 0; i < indices.length; i++) {
+                if(indices[i] < 0) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "negative sparse vector index: " + indices[i]);
+                }
+                if(i > 0 && indices[i] < indices[i - 1] && order == null) {
+                    order = sortedOrder(indices);
+                }
+            }
+            int size = SPARSE_VARINT_HEADER_SIZE + indices.length * Float.BYTES;
+            int previous = 0;
+            for(int i = 0; i < indices.length; i++) {
+                final int index = indices[order == null? i: order[i]];
+                size += vIntSize(index - previous);
+                previous = index;
+            }
+            final byte[] bytes = new byte[size];
+            bytes[0] = SPARSE_VARINT_VECTOR_BYTE;
+            int pos = SPARSE_VARINT_HEADER_SIZE;
+            previous = 0;
+            for(int i = 0; i < indices.length; i++) {
+                final int entry = order == null? i: order[i];
+                int delta = indices[entry] - previous;
+                previous = indices[entry];
+                while((delta & ~0x7f) != 0) {
+                    bytes[pos++] = (byte) ((delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                }
+                bytes[pos++] = (byte) delta;
+                PayloadHelper.encodeFloat(floats[entry], bytes, pos);
+                pos += Float.BYTES;
+            }
+            // a double, so scores against the vector itself stay exact
+            encodeDouble(Math.sqrt(sumOfSquares(floats)), bytes, 1);
+            return new BytesRef(bytes);
+        }
+
+        private static int[] sortedOrder(int[] indices) {
+            final Integer[] order = new Integer[indices.length];
+            for(int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            // stable, so repeated indices keep their order
+            Arrays.sort(order, (a, b) -> Integer.compare(indices[a], indices[b]));
+            final int[] sorted = new int[order.length];
+            for(int i = 0; i < order.length; i++) {
+                sorted[i] = order[i];
+            }
+            return sorted;
+        }
+
+        private static int vIntSize(int value) {
+            int size = 1;
+            while((value & ~0x7f) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        /**
+         * @param quantization INT8 or FLOAT16
+         * @param marker start with the marker byte of the quantization, for fields of vector type AUTO
+         * @param normalize scale the vector to unit length before encoding it
+         */
+        public BytesRef encodeQuantized(VectorType quantization, boolean marker, boolean normalize) {
+            if(!quantization.isQuantized()) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, quantization.name() + " is not a quantized vector type");
+            }
+            if(isSparse()) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "vector type " + quantization.name() + " does not accept sparse vectors");
+            }
+            final float[] floats = normalize? normalized(): values;
+            final int headerSize = marker? 1: 0;
+            if(quantization == VectorType.INT8) {
+                final BytesRef bytes = encodeInt8(floats, headerSize);
+                if(marker) {
+                    bytes.bytes[0] = INT8_VECTOR_BYTE;
+                }
+                return bytes;
+            }
+            final BytesRef bytes = encodeFloat16(floats, headerSize);
+            if(marker) {
+                bytes.bytes[0] = FLOAT16_VECTOR_BYTE;
+            }
+            return bytes;
+        }
+
+        /**
+         * Quantizes every value to one of 256 steps between the minimum and the maximum of the vector.
+         */
+        private static BytesRef encodeInt8(float[] floats, int start) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for(float x: floats) {
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            if(floats.length == 0) {
+                min = max = 0f;
+            }
+            final float scale = (max - min) / 255f;
+            final int valuesStart = start + INT8_HEADER_SIZE;
+            final byte[] bytes = new byte[valuesStart + floats.length];
+            double sumOfSquares = 0d;
+            for(int i = 0; i < floats.length; i++) {
+                final int step = scale == 0f? 0: Math.min(255, Math.max(0, Math.round((floats[i] - min) / scale)));
+                bytes[valuesStart + i] = (byte) (step - 128);
+                final float quantized = min + scale * step;
+                sumOfSquares += (double) quantized * quantized;
+            }
+            PayloadHelper.encodeFloat(min, bytes, start);
+            PayloadHelper.encodeFloat(scale, bytes, start + Float.BYTES);
+            PayloadHelper.encodeFloat((float) Math.sqrt(sumOfSquares), bytes, start + 2 * Float.BYTES);
+            return new BytesRef(bytes);
+        }
+
+        private static BytesRef encodeFloat16(float[] floats, int start) {
+            final int valuesStart = start + FLOAT16_HEADER_SIZE;
+            final byte[] bytes = new byte[valuesStart + floats.length * Short.BYTES];
+            double sumOfSquares = 0d;
+            for(int i = 0; i < floats.length; i++) {
+                final short half = toHalfFloat(floats[i]);
+                bytes[valuesStart + i * Short.BYTES] = (byte) (half >> 8);
+                bytes[valuesStart + i * Short.BYTES + 1] = (byte) half;
+                final float rounded = fromHalfFloat(half);
+                sumOfSquares += (double) rounded * rounded;
+            }
+            PayloadHelper.encodeFloat((float) Math.sqrt(sumOfSquares), bytes, start);
+            return new BytesRef(bytes);
+        }
+
+        private float[] normalized() {
+            final double norm = Math.sqrt(sumOfSquares(values));
+            if(norm == 0) {
+                return values;
+            }
+            final float[] normalized = new float[values.length];
+            for(int i = 0; i < values.length; i++) {
+                normalized[i] = (float) (values[i] / norm);
+            }
+            return normalized;
+        }
+
+        private static double sumOfSquares(float[] floats) {
+            double sumOfSquares = 0d;
+            for(float x: floats) {
+                sumOfSquares += (double) x * x;
+            }
+            return sumOfSquares;
+        }
     }
 }
@@ -0,0 +1,145 @@
+package com.github.saaay71.solr.codec;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+
+/**
+ * Writes the fixed length binary fields as records of {@code maxDoc * length} bytes to the data file, preceded by the
+ * bitset of the documents having a value when some have none. The meta file lists, per field: the field number, the
+ * record length, the number of documents with a value, the offset of the bitset (-1 without) and of the records.
+ */
+final class ColumnarVectorDocValuesConsumer extends DocValuesConsumer {
+    private final DocValuesConsumer delegate;
+    private final int maxDoc;
+    private IndexOutput data;
+    private IndexOutput meta;
+
+    ColumnarVectorDocValuesConsumer(SegmentWriteState state, DocValuesConsumer delegate) throws IOException {
+        this.delegate = delegate;
+        this.maxDoc = state.segmentInfo.maxDoc();
+        boolean success = false;
+        try {
+            data = state.directory.createOutput(IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix,
+                    ColumnarVectorDocValuesFormat.DATA_EXTENSION), state.context);
+            CodecUtil.writeIndexHeader(data, ColumnarVectorDocValuesFormat.DATA_CODEC,
+                    ColumnarVectorDocValuesFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+            meta = state.directory.createOutput(IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix,
+                    ColumnarVectorDocValuesFormat.META_EXTENSION), state.context);
+            CodecUtil.writeIndexHeader(meta, ColumnarVectorDocValuesFormat.META_CODEC,
+                    ColumnarVectorDocValuesFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+            success = true;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(data, meta);
+            }
+        }
+    }
+
+    @Override
+    public void addBinaryField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+        // first pass: check that all the values have the same length
+        int length = -1;
+        int docCount = 0;
+        final FixedBitSet docsWithField = new FixedBitSet(maxDoc);
+        BinaryDocValues values = valuesProducer.getBinary(field);
+        for(int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+            final int valueLength = values.binaryValue().length;
+            if(length == -1) {
+                length = valueLength;
+            } else if(length != valueLength) {
+                delegate.addBinaryField(field, valuesProducer);
+                return;
+            }
+            docsWithField.set(doc);
+            docCount++;
+        }
+        if(docCount == 0) {
+            delegate.addBinaryField(field, valuesProducer);
+            return;
+        }
+
+        long docsWithFieldOffset = -1L;
+        if(docCount < maxDoc) {
+            docsWithFieldOffset = data.getFilePointer();
+            for(long word: docsWithField.getBits()) {
+                data.writeLong(word);
+            }
+        }
+        final long recordsOffset = data.getFilePointer();
+        final byte[] missing = new byte[length];
+        int nextDoc = 0;
+        values = valuesProducer.getBinary(field);
+        for(int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+            // documents without a value get a record of zeros, so every record sits at doc * length
+            for(; nextDoc < doc; nextDoc++) {
+                data.writeBytes(missing, length);
+            }
+            final BytesRef value = values.binaryValue();
+            data.writeBytes(value.bytes, value.offset, value.length);
+            nextDoc = doc + 1;
+        }
+        for(; nextDoc < maxDoc; nextDoc++) {
+            data.writeBytes(missing, length);
+        }
+
+        meta.writeInt(field.number);
+        meta.writeInt(length);
+        meta.writeInt(docCount);
+        meta.writeLong(docsWithFieldOffset);
+        meta.writeLong(recordsOffset);
+    }
+
+    @Override
+    public void addNumericField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+        delegate.addNumericField(field, valuesProducer);
+    }
+
+    @Override
+    public void addSortedField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+        delegate.addSortedField(field, valuesProducer);
+    }
+
+    @Override
+    public void addSortedNumericField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+        delegate.addSortedNumericField(field, valuesProducer);
+    }
+
+    @Override
+    public void addSortedSetField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+        delegate.addSortedSetField(field, valuesProducer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean success = false;
+        try {
+            if(meta != null) {
+                meta.writeInt(-1);
+                CodecUtil.writeFooter(meta);
+            }
+            if(data != null) {
+                CodecUtil.writeFooter(data);
+            }
+            success = true;
+        } finally {
+            if(success) {
+                IOUtils.close(data, meta, delegate);
+            } else {
+                IOUtils.closeWhileHandlingException(data, meta, delegate);
+            }
+            data = meta = null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.saaay71.solr.codec;
+
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.codecs.lucene70.Lucene70DocValuesFormat;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+
+/**
+ * Writes binary docValues whose values all have the same length, such as dense or quantized vectors of a fixed dimension,
+ * to a flat per-segment file: one record per document, in docID order, so the record of a document is found by
+ * multiplying its docID. With {@link org.apache.lucene.store.MMapDirectory} the records are read in place from the
+ * page cache, see {@link ColumnarVectorValues}. Variable length fields and the other docValues types are written by
+ * {@link Lucene70DocValuesFormat}.
+ * Enable it on the vector field type with {@code docValuesFormat="ColumnarVector"}, the default
+ * {@code SchemaCodecFactory} picks it up. The files are written when segments are flushed and merged.
+ */
+public class ColumnarVectorDocValuesFormat extends DocValuesFormat {
+    public static final String NAME = "ColumnarVector";
+
+    static final String DATA_CODEC = "ColumnarVectorData";
+    static final String DATA_EXTENSION = "cvd";
+    static final String META_CODEC = "ColumnarVectorMeta";
+    static final String META_EXTENSION = "cvm";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+
+    private final DocValuesFormat delegate = new Lucene70DocValuesFormat();
+
+    public ColumnarVectorDocValuesFormat() {
+        super(NAME);
+    }
+
+    @Override
+    public DocValuesConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+        final DocValuesConsumer delegateConsumer = delegate.fieldsConsumer(state);
+        boolean success = false;
+        try {
+            final DocValuesConsumer consumer = new ColumnarVectorDocValuesConsumer(state, delegateConsumer);
+            success = true;
+            return consumer;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(delegateConsumer);
+            }
+        }
+    }
+
+    @Override
+    public DocValuesProducer fieldsProducer(SegmentReadState state) throws IOException {
+        final DocValuesProducer delegateProducer = delegate.fieldsProducer(state);
+        boolean success = false;
+        try {
+            final DocValuesProducer producer = new ColumnarVectorDocValuesProducer(state, delegateProducer);
+            success = true;
+            return producer;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(delegateProducer);
+            }
+        }
+    }
+}
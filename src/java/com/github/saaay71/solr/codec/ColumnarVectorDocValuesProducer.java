@@ -0,0 +1,158 @@
+package com.github.saaay71.solr.codec;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the fields written by {@link ColumnarVectorDocValuesConsumer}. The data file is opened once and sliced per
+ * {@link #getBinary(FieldInfo)} call, nothing but the meta entries is loaded on the heap.
+ */
+final class ColumnarVectorDocValuesProducer extends DocValuesProducer {
+    private final DocValuesProducer delegate;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final IndexInput data;
+    private final int maxDoc;
+
+    ColumnarVectorDocValuesProducer(SegmentReadState state, DocValuesProducer delegate) throws IOException {
+        this.delegate = delegate;
+        this.maxDoc = state.segmentInfo.maxDoc();
+        final String metaName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix,
+                ColumnarVectorDocValuesFormat.META_EXTENSION);
+        int version = -1;
+        try(ChecksumIndexInput meta = state.directory.openChecksumInput(metaName, state.context)) {
+            Throwable priorE = null;
+            try {
+                version = CodecUtil.checkIndexHeader(meta, ColumnarVectorDocValuesFormat.META_CODEC,
+                        ColumnarVectorDocValuesFormat.VERSION_START, ColumnarVectorDocValuesFormat.VERSION_CURRENT,
+                        state.segmentInfo.getId(), state.segmentSuffix);
+                readEntries(meta, state);
+            } catch(Throwable exception) {
+                priorE = exception;
+            } finally {
+                CodecUtil.checkFooter(meta, priorE);
+            }
+        }
+
+        final String dataName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix,
+                ColumnarVectorDocValuesFormat.DATA_EXTENSION);
+        data = state.directory.openInput(dataName, state.context);
+        boolean success = false;
+        try {
+            final int dataVersion = CodecUtil.checkIndexHeader(data, ColumnarVectorDocValuesFormat.DATA_CODEC,
+                    ColumnarVectorDocValuesFormat.VERSION_START, ColumnarVectorDocValuesFormat.VERSION_CURRENT,
+                    state.segmentInfo.getId(), state.segmentSuffix);
+            if(version != dataVersion) {
+                throw new CorruptIndexException("format versions mismatch: meta=" + version + ", data=" + dataVersion, data);
+            }
+            // the data file is too large to be verified on open, only check that its footer is sane
+            CodecUtil.retrieveChecksum(data);
+            success = true;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(data);
+            }
+        }
+    }
+
+    private void readEntries(IndexInput meta, SegmentReadState state) throws IOException {
+        for(int fieldNumber = meta.readInt(); fieldNumber != -1; fieldNumber = meta.readInt()) {
+            final FieldInfo info = state.fieldInfos.fieldInfo(fieldNumber);
+            if(info == null) {
+                throw new CorruptIndexException("invalid field number: " + fieldNumber, meta);
+            }
+            final Entry entry = new Entry();
+            entry.length = meta.readInt();
+            entry.docCount = meta.readInt();
+            entry.docsWithFieldOffset = meta.readLong();
+            entry.recordsOffset = meta.readLong();
+            entries.put(info.name, entry);
+        }
+    }
+
+    @Override
+    public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+        final Entry entry = entries.get(field.name);
+        if(entry == null) {
+            return delegate.getBinary(field);
+        }
+        final long recordsLength = (long) maxDoc * entry.length;
+        return new ColumnarVectorValues(data.slice("vectors", entry.recordsOffset, recordsLength),
+                data.randomAccessSlice(entry.recordsOffset, recordsLength),
+                entry.docsWithFieldOffset == -1L? null:
+                        data.randomAccessSlice(entry.docsWithFieldOffset, (long) ((maxDoc + 63) >>> 6) * Long.BYTES),
+                entry.length, maxDoc, entry.docCount);
+    }
+
+    @Override
+    public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+        return delegate.getNumeric(field);
+    }
+
+    @Override
+    public SortedDocValues getSorted(FieldInfo field) throws IOException {
+        return delegate.getSorted(field);
+    }
+
+    @Override
+    public SortedNumericDocValues getSortedNumeric(FieldInfo field) throws IOException {
+        return delegate.getSortedNumeric(field);
+    }
+
+    @Override
+    public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+        return delegate.getSortedSet(field);
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        delegate.checkIntegrity();
+        CodecUtil.checksumEntireFile(data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(data, delegate);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return delegate.ramBytesUsed() + entries.size() * (RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 2 * Integer.BYTES
+                + 2 * Long.BYTES);
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return delegate.getChildResources();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(fields=" + entries.size() + ", delegate=" + delegate + ")";
+    }
+
+    private static class Entry {
+        int length;
+        int docCount;
+        long docsWithFieldOffset;
+        long recordsOffset;
+    }
+}
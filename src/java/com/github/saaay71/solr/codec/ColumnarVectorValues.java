@@ -0,0 +1,105 @@
+package com.github.saaay71.solr.codec;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Binary docValues of a {@link ColumnarVectorDocValuesFormat} field: fixed length records laid out by docID.
+ * {@link #binaryValue()} copies the record into a scratch buffer like other docValues do, scorers rather read it in
+ * place from {@link #getRecords()} at {@link #offset(int)}, which with {@link org.apache.lucene.store.MMapDirectory} are
+ * reads from the mapped file. Unlike other docValues, {@link #advanceExact(int)} may go backwards.
+ */
+public final class ColumnarVectorValues extends BinaryDocValues {
+    private final IndexInput input;
+    private final RandomAccessInput records;
+    private final RandomAccessInput docsWithField;
+    private final int length;
+    private final int maxDoc;
+    private final int docCount;
+    private final BytesRef value;
+    private int doc = -1;
+
+    ColumnarVectorValues(IndexInput input, RandomAccessInput records, RandomAccessInput docsWithField, int length,
+                         int maxDoc, int docCount) {
+        this.input = input;
+        this.records = records;
+        this.docsWithField = docsWithField;
+        this.length = length;
+        this.maxDoc = maxDoc;
+        this.docCount = docCount;
+        this.value = new BytesRef(new byte[length]);
+    }
+
+    /**
+     * @return the records of all the documents, documents without a value have a record of zeros
+     */
+    public RandomAccessInput getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the length of every record
+     */
+    public int getRecordLength() {
+        return length;
+    }
+
+    /**
+     * @return the position of the record of docID in {@link #getRecords()}
+     */
+    public long offset(int docID) {
+        return (long) docID * length;
+    }
+
+    public boolean hasValue(int docID) throws IOException {
+        return docsWithField == null || (docsWithField.readLong((long) (docID >>> 6) * Long.BYTES) & (1L << docID)) != 0;
+    }
+
+    @Override
+    public boolean advanceExact(int target) throws IOException {
+        doc = target;
+        return hasValue(target);
+    }
+
+    @Override
+    public BytesRef binaryValue() throws IOException {
+        input.seek(offset(doc));
+        input.readBytes(value.bytes, 0, length);
+        return value;
+    }
+
+    @Override
+    public int docID() {
+        return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        for(doc = target; doc < maxDoc; doc++) {
+            if(docsWithField == null) {
+                return doc;
+            }
+            final long word = docsWithField.readLong((long) (doc >>> 6) * Long.BYTES) >>> doc;
+            if(word != 0) {
+                return doc += Long.numberOfTrailingZeros(word);
+            }
+            // no more values in this word, go to the last doc of it
+            doc |= 63;
+        }
+        return doc = NO_MORE_DOCS;
+    }
+
+    @Override
+    public long cost() {
+        return docCount;
+    }
+}
@@ -0,0 +1,329 @@
+package com.github.saaay71.solr.handler;
+
+import com.github.saaay71.solr.VectorParser;
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.HitQueue;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import com.github.saaay71.solr.query.SegmentVectorValues;
+import com.github.saaay71.solr.query.VectorQuery;
+import com.github.saaay71.solr.updateprocessor.LSHUpdateProcessorFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.IteratorWriter;
+import org.apache.solr.common.MapWriter;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Exhaustive top-k search for many query vectors in one request, for batch jobs such as deduplication or nearest
+ * neighbour joins. Query vectors come from the {@code vector} params and from the request body, one per line, optionally
+ * prefixed by a query id and a tab. Queries are read and scored in batches of {@code batchSize}: every document vector
+ * is read once per batch and scored against all the queries of the batch. The hits of a batch are written as soon as the
+ * batch is scored, while the response streams out, and the next batch is read from the body after that.
+ * Dense query vectors must have the dimensions of the indexed vectors. An invalid query vector of the first batch fails the
+ * request, later ones, read once the response started, get an {@code error} entry instead of their hits.
+ */
+public class VectorSearchHandler extends RequestHandlerBase {
+
+    public static final String K = "k";
+    public static final String BATCH_SIZE = "batchSize";
+    public static final int DEFAULT_K = 10;
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        final SolrParams params = req.getParams();
+        final String field = params.get(QueryParsing.F);
+        if(field == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "'f' not specified");
+        }
+        final VectorQuery.VectorQueryType metric = VectorQuery.VectorQueryType.fromString(params.get("metric", "cosine"));
+        final int k = params.getInt(K, DEFAULT_K);
+        final int batchSize = params.getInt(BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        if(k < 1 || batchSize < 1) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "\"" + K + "\" and \"" + BATCH_SIZE + "\" must be positive");
+        }
+        final SchemaField uniqueKey = req.getSchema().getUniqueKeyField();
+        if(uniqueKey == null) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "vector search requires a uniqueKey");
+        }
+        final VectorUtils.VectorType vectorType = VectorUtils.getVectorType(req.getSchema().getField(field));
+        final DocSet filter = filter(req);
+        final SolrIndexSearcher searcher = req.getSearcher();
+        final QueryReader queries = new QueryReader(req, dimensions(searcher, vectorType), vectorType, metric);
+        // the first batch is read before the response starts, to reject invalid requests with a proper status
+        final List<QueryVector> first;
+        try {
+            first = queries.next(batchSize);
+            for(QueryVector query: first) {
+                if(query.error != null) {
+                    throw query.error;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            queries.close();
+            throw e;
+        }
+
+        // scored lazily, batch by batch, while the response is written
+        rsp.add("results", (IteratorWriter) writer -> {
+            try(QueryReader reader = queries) {
+                for(List<QueryVector> batch = first; !batch.isEmpty(); batch = reader.next(batchSize)) {
+                    final HitQueue[] hits = search(searcher, filter, batch, k);
+                    for(int i = 0; i < batch.size(); i++) {
+                        writer.add(result(searcher, uniqueKey, batch.get(i), hits[i]));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the dimensions of the first dense vector of the index, -1 when its vectors are sparse or there are none
+     */
+    private static int dimensions(SolrIndexSearcher searcher, VectorUtils.VectorType vectorType) throws IOException {
+        for(LeafReaderContext context: searcher.getIndexReader().leaves()) {
+            final SegmentVectorValues values = SegmentVectorValues.forSegment(context.reader(),
+                    LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME);
+            final int maxDoc = context.reader().maxDoc();
+            for(int doc = 0; doc < maxDoc; doc++) {
+                final BytesRef bytes = values.get(doc);
+                if(bytes != null) {
+                    final VectorUtils.ParsedVector vector = VectorUtils.decode(bytes, vectorType);
+                    return vector.isSparse()? -1: vector.getValues().length;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the live documents matching the filter queries, null without filter queries
+     */
+    private static DocSet filter(SolrQueryRequest req) throws SyntaxError, IOException {
+        final String[] fqs = req.getParams().getParams(CommonParams.FQ);
+        if(fqs == null) {
+            return null;
+        }
+        final List<Query> filters = new ArrayList<>(fqs.length);
+        for(String fq: fqs) {
+            if(fq != null && !fq.trim().isEmpty()) {
+                filters.add(QParser.getParser(fq, req).getQuery());
+            }
+        }
+        return filters.isEmpty()? null: req.getSearcher().getDocSet(filters);
+    }
+
+    /**
+     * One pass over the vectors of all segments for a batch of queries. Every vector is read once and scored by all the
+     * queries, each against a copy of its bounds since scorers may move them.
+     */
+    private static HitQueue[] search(SolrIndexSearcher searcher, DocSet filter, List<QueryVector> batch, int k)
+            throws IOException {
+        final HitQueue[] hits = new HitQueue[batch.size()];
+        final ScoreDoc[] spares = new ScoreDoc[batch.size()];
+        final BytesRef vector = new BytesRef();
+        for(int i = 0; i < hits.length; i++) {
+            hits[i] = new HitQueue(k);
+        }
+        for(LeafReaderContext context: searcher.getIndexReader().leaves()) {
+            final SegmentVectorValues values = SegmentVectorValues.forSegment(context.reader(),
+                    LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME);
+            final Bits liveDocs = context.reader().getLiveDocs();
+            final int maxDoc = context.reader().maxDoc();
+            for(int doc = 0; doc < maxDoc; doc++) {
+                if(filter != null? !filter.exists(context.docBase + doc): liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                final BytesRef bytes = values.get(doc);
+                if(bytes == null) {
+                    continue;
+                }
+                for(int i = 0; i < hits.length; i++) {
+                    if(batch.get(i).query == null) {
+                        continue;
+                    }
+                    vector.bytes = bytes.bytes;
+                    vector.offset = bytes.offset;
+                    vector.length = bytes.length;
+                    final float score = batch.get(i).query.score(vector);
+                    if(spares[i] == null) {
+                        spares[i] = new ScoreDoc(context.docBase + doc, score);
+                    } else {
+                        spares[i].doc = context.docBase + doc;
+                        spares[i].score = score;
+                    }
+                    spares[i] = hits[i].insertWithOverflow(spares[i]);
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static MapWriter result(SolrIndexSearcher searcher, SchemaField uniqueKey, QueryVector query, HitQueue hits)
+            throws IOException {
+        if(query.error != null) {
+            return entries -> entries.put("query", query.id).put("error", query.error.getMessage());
+        }
+        final Set<String> fields = Collections.singleton(uniqueKey.getName());
+        final ScoreDoc[] top = new ScoreDoc[hits.size()];
+        final String[] ids = new String[top.length];
+        for(int i = top.length - 1; i >= 0; i--) {
+            top[i] = hits.pop();
+            final Document document = searcher.doc(top[i].doc, fields);
+            final IndexableField id = document.getField(uniqueKey.getName());
+            ids[i] = id == null? null: uniqueKey.getType().toExternal(id);
+        }
+        return entries -> entries
+                .put("query", query.id)
+                .put("hits", (IteratorWriter) items -> {
+                    for(int i = 0; i < top.length; i++) {
+                        final int hit = i;
+                        items.add((MapWriter) hitEntries -> hitEntries.put("id", ids[hit]).put("score", top[hit].score));
+                    }
+                });
+    }
+
+    @Override
+    public String getDescription() {
+        return "Top-k vector search for batches of query vectors";
+    }
+
+    /**
+     * Reads the query vectors of the request batch by batch, from the {@code vector} params first and then from the lines
+     * of the request body. Queries without an id are numbered in the order they are read.
+     */
+    private static final class QueryReader implements Closeable {
+        private final Iterator<String> vectors;
+        private final Iterator<ContentStream> streams;
+        private final int dimensions;
+        private final VectorUtils.VectorType vectorType;
+        private final VectorQuery.VectorQueryType metric;
+        private BufferedReader lines;
+        private int count;
+
+        QueryReader(SolrQueryRequest req, int dimensions, VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType metric) {
+            final String[] vectorParams = req.getParams().getParams("vector");
+            final Iterable<ContentStream> contentStreams = req.getContentStreams();
+            this.vectors = vectorParams == null? Collections.emptyIterator(): Arrays.asList(vectorParams).iterator();
+            this.streams = contentStreams == null? Collections.emptyIterator(): contentStreams.iterator();
+            this.dimensions = dimensions;
+            this.vectorType = vectorType;
+            this.metric = metric;
+        }
+
+        /**
+         * @return up to size queries, none once all of them were read
+         */
+        List<QueryVector> next(int size) throws IOException {
+            final List<QueryVector> batch = new ArrayList<>(size);
+            while(batch.size() < size && vectors.hasNext()) {
+                batch.add(read(String.valueOf(count), vectors.next()));
+            }
+            while(batch.size() < size) {
+                if(lines == null) {
+                    if(!streams.hasNext()) {
+                        break;
+                    }
+                    lines = new BufferedReader(streams.next().getReader());
+                }
+                final String line = lines.readLine();
+                if(line == null) {
+                    lines.close();
+                    lines = null;
+                } else if(!line.trim().isEmpty()) {
+                    final int tab = line.indexOf('\t');
+                    batch.add(tab < 0? read(String.valueOf(count), line.trim()):
+                            read(line.substring(0, tab), line.substring(tab + 1).trim()));
+                }
+            }
+            return batch;
+        }
+
+        /**
+         * @return the query, or its error when the vector is invalid
+         */
+        private QueryVector read(String id, String vector) {
+            try {
+                return parse(id, vector);
+            } catch (SolrException e) {
+                return new QueryVector(id, null, e);
+            }
+        }
+
+        private QueryVector parse(String id, String vector) {
+            count++;
+            if(!VectorParser.isSparse(vector)) {
+                final double[] values = new double[VectorParser.size(vector)];
+                VectorParser.parseDense(vector, values);
+                if(dimensions >= 0 && values.length != dimensions) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "query vector \"" + id + "\" has "
+                            + values.length + " dimensions, the indexed vectors " + dimensions);
+                }
+                return new QueryVector(id, new PreparedVectorQuery(values, vectorType, metric), null);
+            }
+            final VectorUtils.ParsedVector parsed = VectorUtils.parse(vector);
+            if(dimensions < 0) {
+                return new QueryVector(id, PreparedVectorQuery.sparse(parsed.getIndices(), parsed.getValues(), vectorType, metric), null);
+            }
+            // scored against dense vectors, as the dense vector of their dimensions
+            final double[] values = new double[dimensions];
+            for(int i = 0; i < parsed.getIndices().length; i++) {
+                final int index = parsed.getIndices()[i];
+                if(index < 0 || index >= dimensions) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "query vector \"" + id + "\" has index "
+                            + index + ", out of the " + dimensions + " dimensions of the indexed vectors");
+                }
+                values[index] += parsed.getValues()[i];
+            }
+            return new QueryVector(id, new PreparedVectorQuery(values, vectorType, metric), null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(lines != null) {
+                lines.close();
+                lines = null;
+            }
+        }
+    }
+
+    private static final class QueryVector {
+        final String id;
+        // null when the vector is invalid
+        final PreparedVectorQuery query;
+        final SolrException error;
+
+        QueryVector(String id, PreparedVectorQuery query, SolrException error) {
+            this.id = id;
+            this.query = query;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.saaay71.solr.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.QueryCommand;
+import org.apache.solr.search.QueryResult;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Serves the top {@code k} hits of a vector query from the {@link VectorResultCache} of the searcher. On a miss the
+ * vector query is searched with the filters the search component parsed for the request, rank queries with their own
+ * collector, and its hits are cached. Hits served for a near-duplicate query vector keep the scores of the vector they
+ * were computed for. Outside of a search request the vector query is searched as is.
+ */
+public class CachedVectorQuery extends Query {
+	private final Query query;
+	// the filter queries of the request, only for the identity of the query
+	private final List<String> filters;
+	private final int k;
+	private final VectorResultCache cache;
+	private final VectorResultCache.Key key;
+	private final PreparedVectorQuery vector;
+	// per request counters, not part of the query identity
+	private final VectorQueryStats stats;
+
+	/**
+	 * @param filters the filter query strings of the request, the ones of the cache key
+	 * @param vector the query vector, to check the similarity of near-duplicate entries
+	 * @param stats counts cache hits and misses, null to not count them
+	 */
+	public CachedVectorQuery(Query query, List<String> filters, int k, VectorResultCache cache, VectorResultCache.Key key,
+			PreparedVectorQuery vector, VectorQueryStats stats) {
+		this.query = query;
+		this.filters = filters;
+		this.k = k;
+		this.cache = cache;
+		this.key = key;
+		this.vector = vector;
+		this.stats = stats;
+	}
+
+	public Query getQuery() {
+		return query;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+		SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+		ResponseBuilder rb = requestInfo == null ? null : requestInfo.getResponseBuilder();
+		if(!(searcher instanceof SolrIndexSearcher) || rb == null) {
+			return searcher.createWeight(searcher.rewrite(query), needsScores, boost);
+		}
+		SolrIndexSearcher solrSearcher = (SolrIndexSearcher) searcher;
+		SolrCache<VectorResultCache.Key, VectorResultCache.Entry> results = solrSearcher.getCache(cache.getName());
+		VectorResultCache.Entry entry = results == null ? null : results.get(key);
+		boolean hit = entry != null && cache.matches(entry, vector);
+		if(!hit) {
+			// the hits are cached here, not in the query result cache
+			QueryResult result = solrSearcher.search(new QueryResult(), new QueryCommand().setQuery(query)
+					.setFilterList(rb.getFilters()).setLen(k).setFlags(SolrIndexSearcher.GET_SCORES | SolrIndexSearcher.NO_CHECK_QCACHE));
+			entry = entry(result.getDocList());
+			// partial results of a timed out search would be served to later requests
+			if(results != null && !result.isPartialResults()) {
+				results.put(key, entry);
+			}
+		}
+		if(stats != null) {
+			stats.setResultCacheHit(hit);
+		}
+		float[] scores = entry.scores;
+		if(boost != 1f) {
+			scores = new float[scores.length];
+			for(int i = 0; i < scores.length; i++) {
+				scores[i] = boost * entry.scores[i];
+			}
+		}
+		return new TopHitsWeight(this, null, entry.docs, scores, "within the top " + k + (hit ? " cached" : "") + " vector hits");
+	}
+
+	private VectorResultCache.Entry entry(DocList hits) {
+		long[] sorted = new long[hits.size()];
+		float[] hitScores = new float[hits.size()];
+		DocIterator iterator = hits.iterator();
+		for(int i = 0; i < sorted.length; i++) {
+			// doc ids in the high bits, ranks in the low ones, to sort the scores along
+			sorted[i] = ((long) iterator.nextDoc() << 32) | i;
+			hitScores[i] = iterator.score();
+		}
+		Arrays.sort(sorted);
+		int[] docs = new int[sorted.length];
+		float[] scores = new float[sorted.length];
+		for(int i = 0; i < sorted.length; i++) {
+			docs[i] = (int) (sorted[i] >>> 32);
+			scores[i] = hitScores[(int) sorted[i]];
+		}
+		return new VectorResultCache.Entry(vector, docs, scores);
+	}
+
+	@Override
+	public String toString(String field) {
+		return "cached(" + query.toString(field) + ", k=" + k + (filters.isEmpty() ? "" : ", filters=" + filters) + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && equalsTo(getClass().cast(other));
+	}
+
+	private boolean equalsTo(CachedVectorQuery other) {
+		return k == other.k && query.equals(other.query) && Objects.equals(filters, other.filters);
+	}
+
+	@Override
+	public int hashCode() {
+		return classHash() + 31 * Objects.hash(query, filters, k);
+	}
+}
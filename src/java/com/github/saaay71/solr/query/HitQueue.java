@@ -0,0 +1,18 @@
+package com.github.saaay71.solr.query;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Orders hits by score and, on equal scores, prefers the lower doc id like the Lucene collectors do.
+ */
+public final class HitQueue extends PriorityQueue<ScoreDoc> {
+	public HitQueue(int size) {
+		super(size);
+	}
+
+	@Override
+	protected boolean lessThan(ScoreDoc a, ScoreDoc b) {
+		return a.score == b.score ? a.doc > b.doc : a.score < b.score;
+	}
+}
@@ -0,0 +1,423 @@
+package com.github.saaay71.solr.query;
+
+import com.github.saaay71.solr.VectorUtils;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.SolrException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph over the dense vectors of one segment. Segments never change, so a graph is
+ * built once per segment and metric. The graph only holds the links between documents: it is built and searched through
+ * the {@link SegmentVectorValues} of the segment, and navigates by the similarity queries score documents with.
+ */
+public final class HnswGraph implements Accountable {
+    private static final int MAX_LEVEL = 16;
+    // the graph of segments without vectors
+    static final HnswGraph EMPTY = new HnswGraph(null, 0, new int[0], new int[0][][], new int[0][], -1, -1);
+
+    private final VectorQuery.VectorQueryType metric;
+    private final int dimensions;
+    private final int[] docs;
+    // node, level, neighbor nodes, the first counts[node][level] of them are set
+    private final int[][][] neighbors;
+    private final int[][] counts;
+    private final int entryPoint;
+    private final int maxLevel;
+
+    private HnswGraph(VectorQuery.VectorQueryType metric, int dimensions, int[] docs, int[][][] neighbors, int[][] counts,
+                      int entryPoint, int maxLevel) {
+        this.metric = metric;
+        this.dimensions = dimensions;
+        this.docs = docs;
+        this.neighbors = neighbors;
+        this.counts = counts;
+        this.entryPoint = entryPoint;
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * Builds the graph of the documents of a segment that have a vector.
+     *
+     * @param m the number of neighbors of a node, twice as many on the bottom level
+     * @param efConstruction the number of candidates considered when linking a node
+     * @return the graph, null when no document has a vector
+     */
+    public static HnswGraph build(SegmentVectorValues values, int maxDoc, VectorUtils.VectorType vectorType,
+                                  VectorQuery.VectorQueryType metric, int m, int efConstruction, long seed) throws IOException {
+        int[] docs = new int[0];
+        int size = 0;
+        int dimensions = -1;
+        for(int doc = 0; doc < maxDoc; doc++) {
+            final BytesRef bytes = values.get(doc);
+            if(bytes == null) {
+                continue;
+            }
+            final VectorUtils.ParsedVector vector = VectorUtils.decode(bytes, vectorType);
+            if(vector.isSparse()) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "hnsw search requires dense vectors");
+            }
+            final int length = vector.getValues().length;
+            if(dimensions == -1) {
+                dimensions = length;
+            } else if(length != dimensions) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "hnsw search requires vectors of the same dimensions, got "
+                        + length + " and " + dimensions);
+            }
+            if(size == docs.length) {
+                docs = ArrayUtil.grow(docs, size + 1);
+            }
+            docs[size++] = doc;
+        }
+        if(size == 0) {
+            return null;
+        }
+        return new Builder(values, vectorType, metric, dimensions, Arrays.copyOf(docs, size), m, efConstruction, seed).build();
+    }
+
+    public int size() {
+        return docs.length;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public VectorQuery.VectorQueryType getMetric() {
+        return metric;
+    }
+
+    /**
+     * @return the heap used by the links
+     */
+    @Override
+    public long ramBytesUsed() {
+        long bytes = RamUsageEstimator.shallowSizeOfInstance(HnswGraph.class) + RamUsageEstimator.sizeOf(docs)
+                + RamUsageEstimator.shallowSizeOf(neighbors) + RamUsageEstimator.shallowSizeOf(counts);
+        for(int node = 0; node < docs.length; node++) {
+            bytes += RamUsageEstimator.sizeOf(counts[node])
+                    + RamUsageEstimator.shallowSizeOf(neighbors[node]);
+            for(int[] levelNeighbors: neighbors[node]) {
+                bytes += RamUsageEstimator.sizeOf(levelNeighbors);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimates the heap of the graph of a segment before it is built, from the links every node may get: twice m on the
+     * bottom level, m on the levels above that hold one node in m of the level below. The levels are drawn at random, so
+     * twice as many upper levels as expected are counted. The vectors are not copied, their dimensions do not matter.
+     *
+     * @param maxDoc the documents of the segment, all of them counted as if they had a vector
+     */
+    static long estimateRamBytes(int maxDoc, int m) {
+        final long upperLevels = 2L * maxDoc / Math.max(1, Math.max(2, m) - 1) + 1;
+        final long node = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + Integer.BYTES)
+                + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF)
+                + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + Integer.BYTES * (2L * m + 1));
+        final long upperLevel = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + Integer.BYTES * (m + 1L))
+                + RamUsageEstimator.NUM_BYTES_OBJECT_ALIGNMENT * 2L;
+        return RamUsageEstimator.shallowSizeOfInstance(HnswGraph.class)
+                + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) Integer.BYTES * maxDoc)
+                + 2 * RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                        + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * maxDoc)
+                + node * maxDoc + upperLevel * upperLevels;
+    }
+
+    /**
+     * Searches the graph for the nodes most similar to the query. Rejected documents are still traversed, so a filter does
+     * not disconnect the graph, but are not returned.
+     *
+     * @param values the vectors of the segment the graph was built from
+     * @param query a query of the metric of the graph
+     * @param acceptDocs the documents that may be returned, null for all of them
+     * @param visitLimit the number of nodes to visit at most
+     * @return the doc ids of up to ef accepted documents, most similar first, null when the visit limit was hit first
+     */
+    public int[] search(SegmentVectorValues values, PreparedVectorQuery query, int ef, Bits acceptDocs, int visitLimit)
+            throws IOException {
+        if(query.getDimensions() != dimensions) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "query vector has " + query.getDimensions()
+                    + " dimensions, the indexed vectors have " + dimensions);
+        }
+        final Similarity similarity = node -> values.score(query, docs[node]);
+        final SearchState state = new SearchState(docs.length);
+        int entry = entryPoint;
+        for(int level = maxLevel; level > 0; level--) {
+            entry = greedySearch(similarity, entry, level);
+        }
+        final NeighborQueue results = searchLevel(similarity, entry, ef, 0, acceptDocs, visitLimit, state);
+        if(results == null) {
+            return null;
+        }
+        final int[] hits = new int[results.size()];
+        for(int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = docs[results.pop()];
+        }
+        return hits;
+    }
+
+    private int greedySearch(Similarity similarity, int entry, int level) throws IOException {
+        float best = similarity.of(entry);
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            final int[] entryNeighbors = neighbors[entry][level];
+            for(int i = 0; i < counts[entry][level]; i++) {
+                final int neighbor = entryNeighbors[i];
+                final float candidate = similarity.of(neighbor);
+                if(candidate > best) {
+                    best = candidate;
+                    entry = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Best first search of one level, keeping the ef most similar accepted nodes.
+     */
+    private NeighborQueue searchLevel(Similarity similarity, int entry, int ef, int level, Bits acceptDocs, int visitLimit,
+                                      SearchState state) throws IOException {
+        final NeighborQueue candidates = new NeighborQueue(ef, true);
+        final NeighborQueue results = new NeighborQueue(ef, false);
+        final float entrySimilarity = similarity.of(entry);
+        state.visit(entry);
+        candidates.add(entry, entrySimilarity);
+        if(acceptDocs == null || acceptDocs.get(docs[entry])) {
+            results.add(entry, entrySimilarity);
+        }
+        while(candidates.size() > 0) {
+            if(results.size() >= ef && candidates.topSimilarity() < results.topSimilarity()) {
+                break;
+            }
+            final int node = candidates.pop();
+            final int[] nodeNeighbors = neighbors[node][level];
+            for(int i = 0; i < counts[node][level]; i++) {
+                final int neighbor = nodeNeighbors[i];
+                if(!state.visit(neighbor)) {
+                    continue;
+                }
+                if(state.visited > visitLimit) {
+                    return null;
+                }
+                final float neighborSimilarity = similarity.of(neighbor);
+                if(results.size() < ef || neighborSimilarity > results.topSimilarity()) {
+                    candidates.add(neighbor, neighborSimilarity);
+                    if(acceptDocs == null || acceptDocs.get(docs[neighbor])) {
+                        results.insertWithOverflow(neighbor, neighborSimilarity, ef);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    @FunctionalInterface
+    private interface Similarity {
+        float of(int node) throws IOException;
+    }
+
+    /**
+     * Nodes visited by one search. The touched nodes are remembered so the builder can reset the set for the next
+     * insertion without clearing all of it.
+     */
+    private static final class SearchState {
+        private final FixedBitSet bits;
+        private int[] touched = new int[16];
+        private int visited;
+
+        SearchState(int size) {
+            bits = new FixedBitSet(size);
+        }
+
+        /**
+         * @return true when the node had not been visited yet
+         */
+        boolean visit(int node) {
+            if(bits.getAndSet(node)) {
+                return false;
+            }
+            if(visited == touched.length) {
+                touched = ArrayUtil.grow(touched, visited + 1);
+            }
+            touched[visited++] = node;
+            return true;
+        }
+
+        void reset() {
+            for(int i = 0; i < visited; i++) {
+                bits.clear(touched[i]);
+            }
+            visited = 0;
+        }
+    }
+
+    /**
+     * Inserts the nodes one after the other, linking each to the neighbors picked by the HNSW heuristic: a candidate is
+     * kept when it is closer to the node than to the neighbors already kept, which spreads the links out.
+     */
+    private static final class Builder {
+        private final SegmentVectorValues values;
+        private final VectorUtils.VectorType vectorType;
+        private final VectorQuery.VectorQueryType metric;
+        private final int dimensions;
+        private final int[] docs;
+        private final int m;
+        private final int efConstruction;
+        private final Random random;
+        private final double levelMultiplier;
+        private final int[][][] links;
+        private final int[][] linkCounts;
+        private final SearchState state;
+        // searches the links while they are built
+        private final HnswGraph graph;
+
+        Builder(SegmentVectorValues values, VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType metric, int dimensions,
+                int[] docs, int m, int efConstruction, long seed) {
+            this.values = values;
+            this.vectorType = vectorType;
+            this.metric = metric;
+            this.dimensions = dimensions;
+            this.docs = docs;
+            this.m = m;
+            this.efConstruction = Math.max(efConstruction, m);
+            this.random = new Random(seed);
+            this.levelMultiplier = 1d / Math.log(Math.max(2, m));
+            this.links = new int[docs.length][][];
+            this.linkCounts = new int[docs.length][];
+            this.state = new SearchState(docs.length);
+            this.graph = new HnswGraph(metric, dimensions, docs, links, linkCounts, -1, -1);
+        }
+
+        HnswGraph build() throws IOException {
+            int entryPoint = -1;
+            int maxLevel = -1;
+            for(int node = 0; node < docs.length; node++) {
+                final int level = Math.min(MAX_LEVEL, (int) (-Math.log(1d - random.nextDouble()) * levelMultiplier));
+                links[node] = new int[level + 1][];
+                linkCounts[node] = new int[level + 1];
+                for(int l = 0; l <= level; l++) {
+                    links[node][l] = new int[maxConnections(l) + 1];
+                }
+                if(entryPoint != -1) {
+                    insert(node, level, entryPoint, maxLevel);
+                }
+                if(level > maxLevel) {
+                    entryPoint = node;
+                    maxLevel = level;
+                }
+            }
+            return new HnswGraph(metric, dimensions, docs, links, linkCounts, entryPoint, maxLevel);
+        }
+
+        /**
+         * @return the similarity of the other nodes to node
+         */
+        private Similarity similarityTo(int node) throws IOException {
+            final float[] vector = VectorUtils.decode(values.get(docs[node]), vectorType).getValues();
+            final double[] query = new double[vector.length];
+            for(int i = 0; i < vector.length; i++) {
+                query[i] = vector[i];
+            }
+            final PreparedVectorQuery prepared = new PreparedVectorQuery(query, vectorType, metric);
+            return other -> values.score(prepared, docs[other]);
+        }
+
+        private void insert(int node, int level, int entryPoint, int maxLevel) throws IOException {
+            final Similarity similarity = similarityTo(node);
+            int entry = entryPoint;
+            for(int l = maxLevel; l > level; l--) {
+                entry = graph.greedySearch(similarity, entry, l);
+            }
+            for(int l = Math.min(level, maxLevel); l >= 0; l--) {
+                state.reset();
+                final NeighborQueue candidates = graph.searchLevel(similarity, entry, efConstruction, l, null, Integer.MAX_VALUE, state);
+                final int[] nodes = candidates.nodes();
+                final float[] similarities = new float[nodes.length];
+                int best = 0;
+                for(int i = 0; i < nodes.length; i++) {
+                    similarities[i] = similarity.of(nodes[i]);
+                    if(similarities[i] > similarities[best]) {
+                        best = i;
+                    }
+                }
+                final int[] selected = selectNeighbors(nodes, similarities, maxConnections(l));
+                System.arraycopy(selected, 0, links[node][l], 0, selected.length);
+                linkCounts[node][l] = selected.length;
+                for(int neighbor: selected) {
+                    link(neighbor, node, l);
+                }
+                entry = nodes[best];
+            }
+        }
+
+        /**
+         * Adds the back link from neighbor to node, pruning the links of neighbor with the heuristic once it has too many.
+         */
+        private void link(int neighbor, int node, int level) throws IOException {
+            final int[] neighborLinks = links[neighbor][level];
+            int count = linkCounts[neighbor][level];
+            neighborLinks[count++] = node;
+            if(count <= maxConnections(level)) {
+                linkCounts[neighbor][level] = count;
+                return;
+            }
+            final int[] nodes = Arrays.copyOf(neighborLinks, count);
+            final Similarity similarity = similarityTo(neighbor);
+            final float[] similarities = new float[count];
+            for(int i = 0; i < count; i++) {
+                similarities[i] = similarity.of(nodes[i]);
+            }
+            final int[] selected = selectNeighbors(nodes, similarities, maxConnections(level));
+            System.arraycopy(selected, 0, neighborLinks, 0, selected.length);
+            linkCounts[neighbor][level] = selected.length;
+        }
+
+        /**
+         * @return up to max of the nodes, diverse ones first and then the most similar of the pruned ones
+         */
+        private int[] selectNeighbors(int[] nodes, float[] similarities, int max) throws IOException {
+            final Integer[] order = new Integer[nodes.length];
+            for(int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Float.compare(similarities[b], similarities[a]));
+            final int[] selected = new int[Math.min(max, nodes.length)];
+            final boolean[] kept = new boolean[nodes.length];
+            int size = 0;
+            for(int i = 0; i < order.length && size < selected.length; i++) {
+                final int candidate = nodes[order[i]];
+                final Similarity similarity = size == 0? null: similarityTo(candidate);
+                boolean diverse = true;
+                for(int j = 0; j < size && diverse; j++) {
+                    diverse = similarity.of(selected[j]) < similarities[order[i]];
+                }
+                if(diverse) {
+                    selected[size++] = candidate;
+                    kept[order[i]] = true;
+                }
+            }
+            for(int i = 0; i < order.length && size < selected.length; i++) {
+                if(!kept[order[i]]) {
+                    selected[size++] = nodes[order[i]];
+                }
+            }
+            return selected;
+        }
+
+        private int maxConnections(int level) {
+            return level == 0? 2 * m: m;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.saaay71.solr.query;
+
+import com.github.saaay71.solr.VectorUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.Accountable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HNSW graphs of the segments of a core. Graphs are built by {@link HnswGraphWarmer} while a new searcher warms, before it
+ * serves queries, and dropped when their segment core is closed; queries only look them up. Deletes do not change a
+ * segment core, deleted documents are filtered out at search time.
+ * The links of the graphs are kept within {@code maxRamBytes}: their size is estimated before they are built, the
+ * segments that do not fit have no graph until other segments are closed and a later searcher warms them.
+ */
+public class HnswGraphCache implements Accountable {
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    public static final long DEFAULT_MAX_RAM_MB = 1024;
+    // graphs are rebuilt identically, e.g. on every replica
+    private static final long SEED = 0x5eedL;
+
+    private final int m;
+    private final int efConstruction;
+    private final long maxRamBytes;
+    private final AtomicLong ramBytesUsed = new AtomicLong();
+    private final ConcurrentMap<IndexReader.CacheKey, Map<String, HnswGraph>> segments = new ConcurrentHashMap<>();
+
+    public HnswGraphCache(int m, int efConstruction, long maxRamBytes) {
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.maxRamBytes = maxRamBytes;
+    }
+
+    /**
+     * @return the graph of the vectors of the segment, empty when none of its documents has one, null when it was not
+     * built: the segment was not warmed or did not fit
+     */
+    public HnswGraph get(LeafReader reader, String vectorField, VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType metric) {
+        final IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+        final Map<String, HnswGraph> graphs = cacheHelper == null? null: segments.get(cacheHelper.getKey());
+        return graphs == null? null: graphs.get(key(vectorField, vectorType, metric));
+    }
+
+    /**
+     * Builds the graph of the segment, unless it has one already or its estimated size does not fit in the memory budget.
+     *
+     * @return whether the segment has a graph
+     */
+    public boolean warm(LeafReader reader, String vectorField, VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType metric)
+            throws IOException {
+        final IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+        if(cacheHelper == null) {
+            return false;
+        }
+        Map<String, HnswGraph> graphs = segments.get(cacheHelper.getKey());
+        if(graphs == null) {
+            graphs = segments.computeIfAbsent(cacheHelper.getKey(), key -> {
+                cacheHelper.addClosedListener(this::release);
+                return new ConcurrentHashMap<>();
+            });
+        }
+        final String key = key(vectorField, vectorType, metric);
+        if(graphs.containsKey(key)) {
+            return true;
+        }
+        // reserved while the graph is built, so concurrent warmers do not overshoot the budget either
+        final long estimate = HnswGraph.estimateRamBytes(reader.maxDoc(), m);
+        if(ramBytesUsed.addAndGet(estimate) > maxRamBytes) {
+            ramBytesUsed.addAndGet(-estimate);
+            return false;
+        }
+        long bytes = 0;
+        try {
+            HnswGraph graph = HnswGraph.build(SegmentVectorValues.forSegment(reader, vectorField), reader.maxDoc(), vectorType,
+                    metric, m, efConstruction, SEED);
+            if(graph == null) {
+                graph = HnswGraph.EMPTY;
+            }
+            if(graphs.putIfAbsent(key, graph) == null) {
+                bytes = graph.ramBytesUsed();
+            }
+        } finally {
+            ramBytesUsed.addAndGet(bytes - estimate);
+        }
+        return true;
+    }
+
+    private void release(IndexReader.CacheKey key) {
+        final Map<String, HnswGraph> graphs = segments.remove(key);
+        if(graphs == null) {
+            return;
+        }
+        for(HnswGraph graph: graphs.values()) {
+            ramBytesUsed.addAndGet(-graph.ramBytesUsed());
+        }
+    }
+
+    private static String key(String vectorField, VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType metric) {
+        return vectorField + '/' + vectorType.name() + '/' + metric.name();
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    public long getMaxRamBytes() {
+        return maxRamBytes;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return ramBytesUsed.get();
+    }
+
+    public void clear() {
+        segments.clear();
+        ramBytesUsed.set(0);
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.saaay71.solr.query;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.updateprocessor.LSHUpdateProcessorFactory;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the HNSW graphs of the new segments of a searcher before it is registered, so that {@code ann="hnsw"} queries
+ * never wait for a graph. Register it for both the {@code firstSearcher} and the {@code newSearcher} events:
+ * <pre>
+ * &lt;listener event="newSearcher" class="com.github.saaay71.solr.query.HnswGraphWarmer"&gt;
+ *     &lt;str name="field"&gt;vector&lt;/str&gt;
+ *     &lt;str name="metrics"&gt;cosine,dot&lt;/str&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ * {@code queryParser} (default {@code vp}) names the vector query parser owning the graphs, {@code metrics} (default
+ * {@code cosine}) the metrics queries use, one graph each.
+ */
+public class HnswGraphWarmer extends AbstractSolrEventListener {
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public HnswGraphWarmer(SolrCore core) {
+        super(core);
+    }
+
+    @Override
+    public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+        final Object parserName = getArgs().get("queryParser");
+        final Object field = getArgs().get("field");
+        final Object metricNames = getArgs().get("metrics");
+        if(field == null) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "the HNSW graph warmer requires a \"field\"");
+        }
+        final QParserPlugin plugin = getCore().getQueryPlugin(parserName == null? "vp": parserName.toString());
+        if(!(plugin instanceof VectorQParserPlugin)) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "\"" + parserName + "\" is not a vector query parser");
+        }
+        final List<VectorQuery.VectorQueryType> metrics = new ArrayList<>();
+        for(String metric: StrUtils.splitSmart(metricNames == null? "cosine": metricNames.toString(), ',')) {
+            metrics.add(VectorQuery.VectorQueryType.fromString(metric.trim()));
+        }
+        final HnswGraphCache graphs = ((VectorQParserPlugin) plugin).getHnswGraphs();
+        final VectorUtils.VectorType vectorType = VectorUtils.getVectorType(newSearcher.getSchema().getField(field.toString()));
+        final long start = System.nanoTime();
+        int skipped = 0;
+        for(LeafReaderContext context: newSearcher.getIndexReader().leaves()) {
+            for(VectorQuery.VectorQueryType metric: metrics) {
+                try {
+                    if(!graphs.warm(context.reader(), LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME, vectorType, metric)) {
+                        skipped++;
+                    }
+                } catch (IOException e) {
+                    // the segment is searched without a graph
+                    log.warn("Could not build the HNSW graph of {}", context.reader(), e);
+                    skipped++;
+                } catch (SolrException e) {
+                    // e.g. sparse vectors
+                    log.warn("Could not build the HNSW graph of {}: {}", context.reader(), e.getMessage());
+                    skipped++;
+                }
+            }
+        }
+        if(skipped > 0) {
+            log.warn("{} HNSW graphs were not built, {} of {} bytes used, their segments are scored exhaustively", skipped,
+                    graphs.ramBytesUsed(), graphs.getMaxRamBytes());
+        }
+        log.info("Warmed HNSW graphs in {} ms, {} bytes", (System.nanoTime() - start) / 1_000_000, graphs.ramBytesUsed());
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.saaay71.solr.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Matches the {@code k} documents most similar to the query vector, found in the HNSW graph of every segment and
+ * scored like a {@link VectorScoreQuery}. The sub query of the vector query filters the hits: the graph is still
+ * traversed through filtered out documents, and segments where the filter matches too few documents for the graph to
+ * find them cheaply are scored exhaustively instead. So are the segments without a graph, see {@link HnswGraphCache}.
+ */
+public class HnswVectorQuery extends Query {
+	final VectorScoreQuery query;
+	final int k;
+	final int ef;
+	private final HnswGraphCache graphs;
+
+	/**
+	 * @param ef the number of candidates kept while searching a graph, at least k
+	 */
+	public HnswVectorQuery(VectorScoreQuery query, int k, int ef, HnswGraphCache graphs) {
+		this.query = query;
+		this.k = k;
+		this.ef = Math.max(k, ef);
+		this.graphs = graphs;
+	}
+
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		Query rewritten = query.rewrite(reader);
+		if(rewritten != query) {
+			return new HnswVectorQuery((VectorScoreQuery) rewritten, k, ef, graphs);
+		}
+		return super.rewrite(reader);
+	}
+
+	@Override
+	public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+		VectorScoreQuery.VectorScoreWeight weight = (VectorScoreQuery.VectorScoreWeight) query.createWeight(searcher, true, boost);
+		boolean filtered = !(query.getSubQuery() instanceof MatchAllDocsQuery);
+		Weight filterWeight = filtered ? searcher.createWeight(query.getSubQuery(), false, 1f) : null;
+		HitQueue hits = new HitQueue(k);
+		for(LeafReaderContext context: searcher.getIndexReader().leaves()) {
+			HnswGraph graph = graphs.get(context.reader(), query.getVectorField(), query.getPreparedQuery().getVectorType(),
+					query.getPreparedQuery().getQueryType());
+			if(graph != null && graph.size() == 0) {
+				continue;
+			}
+			Bits acceptDocs = context.reader().getLiveDocs();
+			int accepted = graph == null ? 0 : graph.size();
+			if(filtered) {
+				FixedBitSet filterDocs = filterDocs(filterWeight, context);
+				if(filterDocs == null) {
+					continue;
+				}
+				accepted = filterDocs.cardinality();
+				acceptDocs = filterDocs;
+			}
+			// visiting as many nodes as the filter accepts costs as much as scoring them all
+			int[] candidates = graph == null || accepted <= k ? null : graph.search(
+					SegmentVectorValues.forSegment(context.reader(), query.getVectorField()), query.getPreparedQuery(), ef, acceptDocs,
+					filtered ? accepted : Integer.MAX_VALUE);
+			if(candidates != null) {
+				Arrays.sort(candidates);
+			}
+			score(weight, context, candidates, acceptDocs, hits);
+		}
+		ScoreDoc[] topHits = new ScoreDoc[hits.size()];
+		for(int i = topHits.length - 1; i >= 0; i--) {
+			topHits[i] = hits.pop();
+		}
+		Arrays.sort(topHits, (a, b) -> Integer.compare(a.doc, b.doc));
+		int[] docs = new int[topHits.length];
+		float[] scores = new float[topHits.length];
+		for(int i = 0; i < topHits.length; i++) {
+			docs[i] = topHits[i].doc;
+			scores[i] = topHits[i].score;
+		}
+		return new TopHitsWeight(this, weight, docs, scores, "within the top " + k + " hnsw hits");
+	}
+
+	/**
+	 * @return the live documents matching the filter, null when there are none
+	 */
+	static FixedBitSet filterDocs(Weight filterWeight, LeafReaderContext context) throws IOException {
+		Scorer scorer = filterWeight.scorer(context);
+		if(scorer == null) {
+			return null;
+		}
+		Bits liveDocs = context.reader().getLiveDocs();
+		FixedBitSet docs = new FixedBitSet(context.reader().maxDoc());
+		DocIdSetIterator iterator = scorer.iterator();
+		for(int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+			if(liveDocs == null || liveDocs.get(doc)) {
+				docs.set(doc);
+			}
+		}
+		return docs;
+	}
+
+	/**
+	 * Scores the sorted candidates of the graph search, or every accepted document when there are none.
+	 */
+	private static void score(VectorScoreQuery.VectorScoreWeight weight, LeafReaderContext context, int[] candidates,
+							  Bits acceptDocs, HitQueue hits) throws IOException {
+		VectorScoreQuery.VectorScorer scorer = weight.scorer(context);
+		if(scorer == null) {
+			return;
+		}
+		try {
+			score(scorer, context, candidates, acceptDocs, hits);
+		} finally {
+			scorer.recordScoringTime();
+		}
+	}
+
+	private static void score(VectorScoreQuery.VectorScorer scorer, LeafReaderContext context, int[] candidates,
+							  Bits acceptDocs, HitQueue hits) throws IOException {
+		DocIdSetIterator iterator = scorer.iterator();
+		if(candidates == null) {
+			for(int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+				if(acceptDocs == null || acceptDocs.get(doc)) {
+					hits.insertWithOverflow(new ScoreDoc(context.docBase + doc, scorer.score()));
+				}
+			}
+			return;
+		}
+		for(int candidate: candidates) {
+			int doc = iterator.docID();
+			if(doc < candidate) {
+				doc = iterator.advance(candidate);
+			}
+			if(doc == DocIdSetIterator.NO_MORE_DOCS) {
+				return;
+			}
+			if(doc == candidate) {
+				hits.insertWithOverflow(new ScoreDoc(context.docBase + doc, scorer.score()));
+			}
+		}
+	}
+
+	@Override
+	public String toString(String field) {
+		return "hnsw(" + query.toString(field) + ", k=" + k + ", ef=" + ef + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && k == ((HnswVectorQuery) other).k && ef == ((HnswVectorQuery) other).ef
+				&& query.equals(((HnswVectorQuery) other).query);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * (31 * classHash() + query.hashCode()) + k) + ef;
+	}
+}
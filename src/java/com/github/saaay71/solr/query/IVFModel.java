@@ -0,0 +1,278 @@
+package com.github.saaay71.solr.query;
+
+import com.github.saaay71.solr.VectorParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Immutable inverted file coarse quantizer: documents are assigned to the nearest of a fixed set of centroids, and a
+ * query only scores the documents of its {@code nprobe} nearest centroids.
+ * <p>
+ * The model file starts with a {@code version=<n>} line followed by one centroid per line, in the dense text format of
+ * vectors. Lines starting with {@code #} are ignored. The version is part of the indexed terms, so documents assigned by
+ * an older model never match the centroids of a retrained one.
+ */
+public final class IVFModel {
+
+    private static final String VERSION_PREFIX = "version=";
+
+    private final long version;
+    private final int dimensions;
+    private final double[][] centroids;
+
+    public IVFModel(long version, double[][] centroids) {
+        if(centroids.length == 0) {
+            throw new IllegalArgumentException("IVF model without centroids");
+        }
+        this.version = version;
+        this.dimensions = centroids[0].length;
+        this.centroids = new double[centroids.length][];
+        for(int i = 0; i < centroids.length; i++) {
+            if(centroids[i].length != dimensions) {
+                throw new IllegalArgumentException("IVF centroid " + i + " has " + centroids[i].length + " dimensions, expected "
+                        + dimensions);
+            }
+            this.centroids[i] = centroids[i].clone();
+        }
+    }
+
+    /**
+     * @return the nearest centroid of the vector
+     */
+    public int assign(double[] vector) {
+        int nearest = 0;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for(int i = 0; i < centroids.length; i++) {
+            final double distance = squaredDistance(centroids[i], vector);
+            if(distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @return the {@code nprobe} nearest centroids of the vector, nearest first
+     */
+    public int[] nearest(double[] vector, int nprobe) {
+        final int probes = Math.min(nprobe, centroids.length);
+        final Integer[] order = new Integer[centroids.length];
+        final double[] distances = new double[centroids.length];
+        for(int i = 0; i < centroids.length; i++) {
+            order[i] = i;
+            distances[i] = squaredDistance(centroids[i], vector);
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+        final int[] nearest = new int[probes];
+        for(int i = 0; i < probes; i++) {
+            nearest[i] = order[i];
+        }
+        return nearest;
+    }
+
+    /**
+     * @return the indexed term of the centroid
+     */
+    public String term(int centroid) {
+        return version + "_" + centroid;
+    }
+
+    private double squaredDistance(double[] centroid, double[] vector) {
+        if(vector.length != dimensions) {
+            throw new IllegalArgumentException("vector has " + vector.length + " dimensions, the IVF centroids have " + dimensions);
+        }
+        return squaredDistance(centroid, vector, dimensions);
+    }
+
+    private static double squaredDistance(double[] centroid, double[] vector, int dimensions) {
+        double sum = 0d;
+        for(int i = 0; i < dimensions; i++) {
+            final double diff = centroid[i] - vector[i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getNumCentroids() {
+        return centroids.length;
+    }
+
+    public static IVFModel read(InputStream input) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        Long version = null;
+        final List<double[]> centroids = new ArrayList<>();
+        for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if(version == null) {
+                if(!line.startsWith(VERSION_PREFIX)) {
+                    throw new IllegalArgumentException("IVF model must start with \"" + VERSION_PREFIX + "<n>\", got: \"" + line + "\"");
+                }
+                version = Long.parseLong(line.substring(VERSION_PREFIX.length()).trim());
+                continue;
+            }
+            final double[] centroid = new double[VectorParser.size(line)];
+            VectorParser.parseDense(line, centroid);
+            centroids.add(centroid);
+        }
+        if(version == null) {
+            throw new IllegalArgumentException("empty IVF model");
+        }
+        return new IVFModel(version, centroids.toArray(new double[0][]));
+    }
+
+    public void write(Writer writer) throws IOException {
+        writer.write(VERSION_PREFIX + version + "\n");
+        for(double[] centroid: centroids) {
+            for(int i = 0; i < centroid.length; i++) {
+                if(i > 0) {
+                    writer.write(',');
+                }
+                writer.write(Float.toString((float) centroid[i]));
+            }
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Lloyd's k-means over a sample of the vectors, seeded with greedy k-means++. Empty clusters restart from the sample vector
+     * farthest from its centroid.
+     */
+    public static IVFModel train(double[][] sample, int nlist, int iterations, long seed, long version) {
+        if(nlist < 1 || sample.length < nlist) {
+            throw new IllegalArgumentException("training " + nlist + " centroids needs at least as many sample vectors, got "
+                    + sample.length);
+        }
+        final int dimensions = sample[0].length;
+        final Random random = new Random(seed);
+        final double[][] centroids = new double[nlist][];
+        final double[] seedDistances = new double[sample.length];
+        final double[] candidateDistances = new double[sample.length];
+        final double[] bestDistances = new double[sample.length];
+        centroids[0] = sample[random.nextInt(sample.length)].clone();
+        for(int i = 0; i < sample.length; i++) {
+            seedDistances[i] = squaredDistance(centroids[0], sample[i], dimensions);
+        }
+        // greedy k-means++: of a few candidates drawn proportionally to their squared distance to the nearest seed,
+        // keep the one that lowers the total distance the most
+        final int trials = 2 + (int) Math.log(nlist);
+        for(int c = 1; c < nlist; c++) {
+            double total = 0d;
+            for(double distance: seedDistances) {
+                total += distance;
+            }
+            int best = -1;
+            double bestTotal = Double.POSITIVE_INFINITY;
+            for(int trial = 0; trial < trials; trial++) {
+                int candidate = 0;
+                for(double target = random.nextDouble() * total; candidate < sample.length - 1; candidate++) {
+                    target -= seedDistances[candidate];
+                    if(target < 0) {
+                        break;
+                    }
+                }
+                double candidateTotal = 0d;
+                for(int i = 0; i < sample.length; i++) {
+                    candidateDistances[i] = Math.min(seedDistances[i], squaredDistance(sample[candidate], sample[i], dimensions));
+                    candidateTotal += candidateDistances[i];
+                }
+                if(candidateTotal < bestTotal) {
+                    best = candidate;
+                    bestTotal = candidateTotal;
+                    System.arraycopy(candidateDistances, 0, bestDistances, 0, sample.length);
+                }
+            }
+            centroids[c] = sample[best].clone();
+            System.arraycopy(bestDistances, 0, seedDistances, 0, sample.length);
+        }
+        final int[] assignments = new int[sample.length];
+        final double[] distances = new double[sample.length];
+        for(int iteration = 0; iteration < iterations; iteration++) {
+            final IVFModel model = new IVFModel(version, centroids);
+            boolean changed = iteration == 0;
+            for(int i = 0; i < sample.length; i++) {
+                final int centroid = model.assign(sample[i]);
+                changed |= centroid != assignments[i];
+                assignments[i] = centroid;
+                distances[i] = model.squaredDistance(centroids[centroid], sample[i]);
+            }
+            if(!changed) {
+                break;
+            }
+            final double[][] sums = new double[nlist][dimensions];
+            final int[] counts = new int[nlist];
+            for(int i = 0; i < sample.length; i++) {
+                counts[assignments[i]]++;
+                for(int d = 0; d < dimensions; d++) {
+                    sums[assignments[i]][d] += sample[i][d];
+                }
+            }
+            for(int c = 0; c < nlist; c++) {
+                if(counts[c] == 0) {
+                    int farthest = 0;
+                    for(int i = 1; i < sample.length; i++) {
+                        if(distances[i] > distances[farthest]) {
+                            farthest = i;
+                        }
+                    }
+                    distances[farthest] = 0d;
+                    centroids[c] = sample[farthest].clone();
+                    continue;
+                }
+                for(int d = 0; d < dimensions; d++) {
+                    centroids[c][d] = sums[c][d] / counts[c];
+                }
+            }
+        }
+        return new IVFModel(version, centroids);
+    }
+
+    /**
+     * Trains a model file from a sample with one dense vector per line:
+     * {@code IVFModel <sample file> <nlist> <model file> [version] [iterations]}.
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("usage: IVFModel <sample file> <nlist> <model file> [version] [iterations]");
+            System.exit(1);
+        }
+        final List<double[]> sample = new ArrayList<>();
+        for(String line: Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            if(!line.trim().isEmpty()) {
+                final double[] vector = new double[VectorParser.size(line)];
+                VectorParser.parseDense(line, vector);
+                sample.add(vector);
+            }
+        }
+        final long version = args.length > 3? Long.parseLong(args[3]): System.currentTimeMillis();
+        final int iterations = args.length > 4? Integer.parseInt(args[4]): 25;
+        final IVFModel model = train(sample.toArray(new double[0][]), Integer.parseInt(args[1]), iterations, version, version);
+        try(Writer writer = new OutputStreamWriter(Files.newOutputStream(Paths.get(args[2])), StandardCharsets.UTF_8)) {
+            model.write(writer);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.github.saaay71.solr.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Counts in how many stages every document shares a hash with the query, in one pass over the postings of the hash
+ * terms, and matches the documents colliding in at least {@code minCollisions} stages. With {@code maxCandidates} only
+ * the documents with the most collisions are kept, among the live documents matching the filter: a selective filter
+ * ANDed afterwards would drop most of them, and they are picked once per searcher, later weights reuse them. Documents
+ * score {@code stageScore} per colliding stage.
+ */
+public class LSHCollisionQuery extends Query {
+	private final String field;
+	private final int[][] buckets;
+	private final float stageScore;
+	private final int minCollisions;
+	private final int maxCandidates;
+	private final Query filter;
+	// per request counters, not part of the query identity
+	private final VectorQueryStats stats;
+	// the hash terms of all stages, sorted to seek them in order
+	private final BytesRef[] terms;
+	// not part of the query identity
+	private final AtomicReference<ParallelVectorScoreQuery.TopHits> topHits = new AtomicReference<>();
+
+	/**
+	 * @param buckets per stage, the buckets to look up
+	 * @param maxCandidates the number of documents to keep at most, 0 to keep all of them
+	 */
+	public LSHCollisionQuery(String field, int[][] buckets, float stageScore, int minCollisions, int maxCandidates) {
+		this(field, buckets, stageScore, minCollisions, maxCandidates, null);
+	}
+
+	/**
+	 * @param stats counts the candidates, null to not count them
+	 */
+	public LSHCollisionQuery(String field, int[][] buckets, float stageScore, int minCollisions, int maxCandidates,
+			VectorQueryStats stats) {
+		this(field, buckets, stageScore, minCollisions, maxCandidates, null, stats);
+	}
+
+	/**
+	 * @param filter the documents to pick the {@code maxCandidates} among, null for all of them
+	 * @param stats counts the candidates, null to not count them
+	 */
+	public LSHCollisionQuery(String field, int[][] buckets, float stageScore, int minCollisions, int maxCandidates,
+			Query filter, VectorQueryStats stats) {
+		this.field = field;
+		this.buckets = buckets;
+		this.stageScore = stageScore;
+		this.minCollisions = minCollisions;
+		this.maxCandidates = maxCandidates;
+		this.filter = filter;
+		this.stats = stats;
+		int size = 0;
+		for(int[] stageBuckets: buckets) {
+			size += stageBuckets.length;
+		}
+		terms = new BytesRef[size];
+		int index = 0;
+		for(int stage = 0; stage < buckets.length; stage++) {
+			for(int bucket: buckets[stage]) {
+				terms[index++] = new BytesRef(LSHUtils.hashTerm(stage, bucket));
+			}
+		}
+		Arrays.sort(terms);
+	}
+
+	@Override
+	public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+		CollisionWeight weight = new CollisionWeight(boost);
+		if(maxCandidates <= 0) {
+			return weight;
+		}
+		ParallelVectorScoreQuery.TopHits hits = topHits.get();
+		if(hits == null || hits.context != searcher.getTopReaderContext() || hits.boost != boost) {
+			hits = new ParallelVectorScoreQuery.TopHits(searcher.getTopReaderContext(), boost, collect(searcher, weight));
+			topHits.set(hits);
+			if(stats != null) {
+				stats.addLSHCandidates(hits.docs.length);
+			}
+		}
+		return new TopHitsWeight(this, weight, hits.docs, hits.scores, "within the top " + maxCandidates + " LSH candidates");
+	}
+
+	/**
+	 * @return the maxCandidates accepted documents with the most collisions
+	 */
+	private ScoreDoc[] collect(IndexSearcher searcher, CollisionWeight weight) throws IOException {
+		HitQueue hits = new HitQueue(maxCandidates);
+		Weight filterWeight = filter == null ? null : searcher.createWeight(searcher.rewrite(filter), false, 1f);
+		for(LeafReaderContext context: searcher.getIndexReader().leaves()) {
+			int[] collisions = weight.collisions(context);
+			if(collisions == null) {
+				continue;
+			}
+			Bits acceptDocs = context.reader().getLiveDocs();
+			if(filterWeight != null) {
+				acceptDocs = HnswVectorQuery.filterDocs(filterWeight, context);
+				if(acceptDocs == null) {
+					continue;
+				}
+			}
+			ScoreDoc spare = null;
+			for(int doc = 0; doc < collisions.length; doc++) {
+				if(collisions[doc] < minCollisions || (acceptDocs != null && !acceptDocs.get(doc))) {
+					continue;
+				}
+				if(spare == null) {
+					spare = new ScoreDoc(context.docBase + doc, weight.score(collisions[doc]));
+				} else {
+					spare.doc = context.docBase + doc;
+					spare.score = weight.score(collisions[doc]);
+				}
+				spare = hits.insertWithOverflow(spare);
+			}
+		}
+		ScoreDoc[] topHits = new ScoreDoc[hits.size()];
+		for(int i = topHits.length - 1; i >= 0; i--) {
+			topHits[i] = hits.pop();
+		}
+		return topHits;
+	}
+
+	public int getMinCollisions() {
+		return minCollisions;
+	}
+
+	public int getMaxCandidates() {
+		return maxCandidates;
+	}
+
+	@Override
+	public String toString(String f) {
+		return "lshCollisions(" + field + ", stages=" + buckets.length + ", terms=" + terms.length + ", minCollisions="
+				+ minCollisions + (maxCandidates > 0 ? ", maxCandidates=" + maxCandidates : "")
+				+ (filter == null ? "" : ", filter=" + filter.toString(f)) + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && equalsTo(getClass().cast(other));
+	}
+
+	private boolean equalsTo(LSHCollisionQuery other) {
+		return field.equals(other.field) && Arrays.deepEquals(buckets, other.buckets) && stageScore == other.stageScore
+				&& minCollisions == other.minCollisions && maxCandidates == other.maxCandidates && Objects.equals(filter, other.filter);
+	}
+
+	@Override
+	public int hashCode() {
+		return classHash() + 31 * Objects.hash(field, Arrays.deepHashCode(buckets), stageScore, minCollisions, maxCandidates, filter);
+	}
+
+	private class CollisionWeight extends Weight {
+		private final float boost;
+
+		CollisionWeight(float boost) {
+			super(LSHCollisionQuery.this);
+			this.boost = boost;
+		}
+
+		float score(int collisions) {
+			return boost * collisions * stageScore;
+		}
+
+		/**
+		 * @return the number of colliding stages of every document of the segment, null when there are none
+		 */
+		int[] collisions(LeafReaderContext context) throws IOException {
+			Terms fieldTerms = context.reader().terms(field);
+			if(fieldTerms == null) {
+				return null;
+			}
+			TermsEnum termsEnum = fieldTerms.iterator();
+			PostingsEnum postings = null;
+			int[] collisions = null;
+			for(BytesRef term: terms) {
+				if(!termsEnum.seekExact(term)) {
+					continue;
+				}
+				if(collisions == null) {
+					collisions = new int[context.reader().maxDoc()];
+				}
+				postings = termsEnum.postings(postings, PostingsEnum.NONE);
+				// a document has a single hash per stage, so every matching term is a colliding stage
+				for(int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+					collisions[doc]++;
+				}
+			}
+			return collisions;
+		}
+
+		@Override
+		public void extractTerms(Set<Term> extracted) {
+			for(BytesRef term: terms) {
+				extracted.add(new Term(field, term));
+			}
+		}
+
+		@Override
+		public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+			int collisions = 0;
+			Terms fieldTerms = context.reader().terms(field);
+			if(fieldTerms != null) {
+				TermsEnum termsEnum = fieldTerms.iterator();
+				for(BytesRef term: terms) {
+					if(termsEnum.seekExact(term) && termsEnum.postings(null, PostingsEnum.NONE).advance(doc) == doc) {
+						collisions++;
+					}
+				}
+			}
+			if(collisions < minCollisions) {
+				return Explanation.noMatch("collides in " + collisions + " of " + buckets.length + " LSH stages, fewer than "
+						+ minCollisions);
+			}
+			return Explanation.match(score(collisions), "collides in " + collisions + " of " + buckets.length + " LSH stages");
+		}
+
+		@Override
+		public Scorer scorer(LeafReaderContext context) throws IOException {
+			int[] collisions = collisions(context);
+			if(collisions == null) {
+				return null;
+			}
+			int size = 0;
+			for(int count: collisions) {
+				if(count >= minCollisions) {
+					size++;
+				}
+			}
+			if(stats != null) {
+				stats.addLSHCandidates(size);
+			}
+			if(size == 0) {
+				return null;
+			}
+			int[] docs = new int[size];
+			float[] scores = new float[size];
+			int index = 0;
+			for(int doc = 0; doc < collisions.length; doc++) {
+				if(collisions[doc] >= minCollisions) {
+					docs[index] = doc;
+					scores[index++] = score(collisions[doc]);
+				}
+			}
+			return new CollisionScorer(this, docs, scores);
+		}
+
+		@Override
+		public boolean isCacheable(LeafReaderContext context) {
+			return true;
+		}
+	}
+
+	private static class CollisionScorer extends Scorer {
+		private final int[] docs;
+		private final float[] scores;
+		private int index = -1;
+		private final DocIdSetIterator iterator = new DocIdSetIterator() {
+			@Override
+			public int docID() {
+				return index < 0 ? -1 : index >= docs.length ? NO_MORE_DOCS : docs[index];
+			}
+
+			@Override
+			public int nextDoc() {
+				index++;
+				return docID();
+			}
+
+			@Override
+			public int advance(int target) {
+				int found = Arrays.binarySearch(docs, Math.min(docs.length, Math.max(0, index + 1)), docs.length, target);
+				index = found >= 0 ? found : -found - 1;
+				return docID();
+			}
+
+			@Override
+			public long cost() {
+				return docs.length;
+			}
+		};
+
+		CollisionScorer(Weight weight, int[] docs, float[] scores) {
+			super(weight);
+			this.docs = docs;
+			this.scores = scores;
+		}
+
+		@Override
+		public int docID() {
+			return iterator.docID();
+		}
+
+		@Override
+		public float score() {
+			return scores[index];
+		}
+
+		@Override
+		public DocIdSetIterator iterator() {
+			return iterator;
+		}
+	}
+}
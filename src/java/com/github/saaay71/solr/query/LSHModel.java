@@ -0,0 +1,232 @@
+package com.github.saaay71.solr.query;
+
+import info.debatty.java.lsh.LSH;
+import info.debatty.java.lsh.SuperBit;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Immutable super-bit LSH model, hashing vectors exactly like {@link info.debatty.java.lsh.LSHSuperBit} built with the
+ * same parameters. The hyperplanes are generated once and kept row by row in a single array, so one instance can be
+ * shared by the update processors and the query parser of a core.
+ */
+public final class LSHModel {
+
+    // the constants LSH.hashSignature sums the set bits of a stage with
+    private static final long LARGE_PRIME = 433494437L;
+    private static final long MODULUS = Integer.MAX_VALUE;
+
+    private final int stages;
+    private final int buckets;
+    private final int dimensions;
+    private final long seed;
+    private final int codeLength;
+    private final double[] hyperplanes;
+    private final LSH signatureHasher;
+
+    public LSHModel(int stages, int buckets, int dimensions, long seed) {
+        this.stages = stages;
+        this.buckets = buckets;
+        this.dimensions = dimensions;
+        this.seed = seed;
+        this.codeLength = stages * buckets / 2;
+        final int superBit = computeSuperBit(stages, buckets, dimensions);
+        final double[][] planes = new SuperBit(dimensions, superBit, codeLength / superBit, seed).getHyperplanes();
+        this.hyperplanes = new double[planes.length * dimensions];
+        for(int i = 0; i < planes.length; i++) {
+            System.arraycopy(planes[i], 0, hyperplanes, i * dimensions, dimensions);
+        }
+        this.signatureHasher = new LSH(stages, buckets) {};
+    }
+
+    /**
+     * Same as LSHSuperBit: the largest divisor of the code length that does not exceed the dimensions.
+     */
+    private static int computeSuperBit(int stages, int buckets, int dimensions) {
+        final int code = stages * buckets / 2;
+        int superBit = dimensions;
+        while(superBit >= 1 && code % superBit != 0) {
+            superBit--;
+        }
+        if(superBit == 0) {
+            throw new IllegalArgumentException("Superbit is 0 with parameters: s=" + stages + " b=" + buckets + " n=" + dimensions);
+        }
+        return superBit;
+    }
+
+    /**
+     * @return the bucket of every stage for the vector
+     */
+    public int[] hash(double[] vector) {
+        return signatureHasher.hashSignature(signature(vector));
+    }
+
+    /**
+     * @return the side of every hyperplane the vector falls on
+     */
+    public boolean[] signature(double[] vector) {
+        final boolean[] signature = new boolean[codeLength];
+        for(int i = 0; i < codeLength; i++) {
+            signature[i] = dotProduct(i, vector) >= 0;
+        }
+        return signature;
+    }
+
+    /**
+     * Multi-probe lookup: the bucket of every stage, plus the {@code probes} other buckets most likely to hold near
+     * neighbours. A bucket is reached by flipping signature bits of its stage, and is the more likely the closer the vector
+     * lies to the flipped hyperplanes: sets of flipped bits are visited by increasing sum of squared margins, across stages.
+     *
+     * @return per stage, the buckets to look up, the one of {@link #hash(double[])} first
+     */
+    public int[][] probe(double[] vector, int probes) {
+        final int rows = codeLength / stages;
+        final double[] margins = new double[codeLength];
+        final boolean[] signature = new boolean[codeLength];
+        for(int i = 0; i < codeLength; i++) {
+            margins[i] = dotProduct(i, vector);
+            signature[i] = margins[i] >= 0;
+        }
+        final int[] exact = signatureHasher.hashSignature(signature);
+        final int[][] probed = new int[stages][];
+        for(int stage = 0; stage < stages; stage++) {
+            probed[stage] = new int[] {exact[stage]};
+        }
+        if(probes <= 0) {
+            return probed;
+        }
+
+        // the bits of every stage by increasing margin, the last stage takes the bits left over like hashSignature does
+        final int[][] order = new int[stages][];
+        final long[] sums = new long[stages];
+        final PriorityQueue<Perturbation> queue = new PriorityQueue<>();
+        for(int stage = 0; stage < stages; stage++) {
+            final int from = stage * rows, to = stage == stages - 1? codeLength: from + rows;
+            final Integer[] bits = new Integer[to - from];
+            for(int i = from; i < to; i++) {
+                bits[i - from] = i;
+                if(signature[i]) {
+                    sums[stage] = (sums[stage] + bitValue(i)) % MODULUS;
+                }
+            }
+            Arrays.sort(bits, (a, b) -> Double.compare(Math.abs(margins[a]), Math.abs(margins[b])));
+            order[stage] = new int[bits.length];
+            for(int i = 0; i < bits.length; i++) {
+                order[stage][i] = bits[i];
+            }
+            if(bits.length > 0) {
+                queue.add(new Perturbation(stage, new int[] {0}, square(margins[order[stage][0]])));
+            }
+        }
+
+        final Set<Long> seen = new HashSet<>();
+        for(int stage = 0; stage < stages; stage++) {
+            seen.add(((long) stage << 32) | exact[stage]);
+        }
+        final int[] found = new int[stages];
+        int remaining = probes;
+        // sets of flipped bits may land in buckets seen already, bound the expansion anyway
+        for(int visits = probes * 8 + stages; remaining > 0 && visits > 0 && !queue.isEmpty(); visits--) {
+            final Perturbation perturbation = queue.poll();
+            final int stage = perturbation.stage;
+            final int[] stageOrder = order[stage];
+            long sum = sums[stage];
+            for(int position: perturbation.positions) {
+                final int bit = stageOrder[position];
+                sum = signature[bit]? (sum - bitValue(bit) + MODULUS) % MODULUS: (sum + bitValue(bit)) % MODULUS;
+            }
+            final int bucket = (int) (sum % buckets);
+            if(seen.add(((long) stage << 32) | bucket)) {
+                if(found[stage] + 1 == probed[stage].length) {
+                    probed[stage] = Arrays.copyOf(probed[stage], probed[stage].length * 2);
+                }
+                probed[stage][++found[stage]] = bucket;
+                remaining--;
+            }
+            // shift the last flipped bit to the next one, or flip the next one as well
+            final int[] positions = perturbation.positions;
+            final int last = positions[positions.length - 1];
+            if(last + 1 < stageOrder.length) {
+                final double lastScore = square(margins[stageOrder[last]]);
+                final double nextScore = square(margins[stageOrder[last + 1]]);
+                final int[] shifted = positions.clone();
+                shifted[shifted.length - 1] = last + 1;
+                queue.add(new Perturbation(stage, shifted, perturbation.score - lastScore + nextScore));
+                final int[] expanded = Arrays.copyOf(positions, positions.length + 1);
+                expanded[positions.length] = last + 1;
+                queue.add(new Perturbation(stage, expanded, perturbation.score + nextScore));
+            }
+        }
+        for(int stage = 0; stage < stages; stage++) {
+            probed[stage] = Arrays.copyOf(probed[stage], found[stage] + 1);
+        }
+        return probed;
+    }
+
+    private static long bitValue(int bit) {
+        return ((bit + 1) * LARGE_PRIME) % MODULUS;
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    /**
+     * Signature bits to flip in a stage, as positions in the margin order of the stage.
+     */
+    private static final class Perturbation implements Comparable<Perturbation> {
+        final int stage;
+        final int[] positions;
+        final double score;
+
+        Perturbation(int stage, int[] positions, double score) {
+            this.stage = stage;
+            this.positions = positions;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Perturbation other) {
+            return Double.compare(score, other.score);
+        }
+    }
+
+    /**
+     * @return the dot product of hyperplane {@code plane} and the vector, summed in the order LSHSuperBit does
+     */
+    double dotProduct(int plane, double[] vector) {
+        final int offset = plane * dimensions;
+        double sum = 0;
+        for(int i = 0; i < dimensions; i++) {
+            sum += hyperplanes[offset + i] * vector[i];
+        }
+        return sum;
+    }
+
+    public float getStageScore() {
+        return 1f / stages;
+    }
+
+    public int getStages() {
+        return stages;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getCodeLength() {
+        return codeLength;
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.saaay71.solr.query;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * A heap of graph nodes by similarity, each entry packed in a long with the sortable similarity in the high bits, so
+ * graph searches do not allocate per visited node. A min heap keeps the best results, a max heap the next candidates.
+ */
+final class NeighborQueue {
+    private final boolean maxHeap;
+    private long[] heap;
+    private int size;
+
+    NeighborQueue(int initialSize, boolean maxHeap) {
+        this.heap = new long[Math.max(1, initialSize)];
+        this.maxHeap = maxHeap;
+    }
+
+    void add(int node, float similarity) {
+        if(size == heap.length) {
+            heap = ArrayUtil.grow(heap, size + 1);
+        }
+        heap[size] = encode(node, similarity);
+        upHeap(size++);
+    }
+
+    /**
+     * Adds the node to a min heap of at most maxSize entries, dropping the least similar one when full.
+     */
+    void insertWithOverflow(int node, float similarity, int maxSize) {
+        if(size < maxSize) {
+            add(node, similarity);
+        } else if(similarity > topSimilarity()) {
+            heap[0] = encode(node, similarity);
+            downHeap(0);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int topNode() {
+        return (int) heap[0];
+    }
+
+    float topSimilarity() {
+        return NumericUtils.sortableIntToFloat((int) (heap[0] >> 32));
+    }
+
+    /**
+     * @return the node at the top of the heap
+     */
+    int pop() {
+        final int node = topNode();
+        heap[0] = heap[--size];
+        downHeap(0);
+        return node;
+    }
+
+    /**
+     * @return the nodes of the heap, in no particular order
+     */
+    int[] nodes() {
+        final int[] nodes = new int[size];
+        for(int i = 0; i < size; i++) {
+            nodes[i] = (int) heap[i];
+        }
+        return nodes;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    private static long encode(int node, float similarity) {
+        return ((long) NumericUtils.floatToSortableInt(similarity)) << 32 | (node & 0xffffffffL);
+    }
+
+    private boolean above(long a, long b) {
+        return maxHeap? a > b: a < b;
+    }
+
+    private void upHeap(int i) {
+        final long value = heap[i];
+        while(i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if(!above(value, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    private void downHeap(int i) {
+        final long value = heap[i];
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size) {
+                break;
+            }
+            if(child + 1 < size && above(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if(!above(heap[child], value)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+}
@@ -0,0 +1,218 @@
+package com.github.saaay71.solr.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.common.SolrException;
+
+/**
+ * Scores the hits of a {@link VectorScoreQuery} concurrently and only matches the best {@code topK} of them.
+ * Segments are cut into slices of at most {@code maxDocsPerSlice} documents. Up to {@code threads} workers, the request
+ * thread being one of them, take slices in doc id order and keep their own top-k heap; the heaps are merged once every
+ * slice has been scored. The top hits are computed once per searcher, later weights, e.g. for a DocSet, reuse them.
+ */
+public class ParallelVectorScoreQuery extends Query {
+	final VectorScoreQuery query;
+	final int topK;
+	private final ExecutorService executor;
+	private final int threads;
+	private final int maxDocsPerSlice;
+	// shared with the rewritten query, not part of the query identity
+	private final AtomicReference<TopHits> topHits;
+
+	public ParallelVectorScoreQuery(VectorScoreQuery query, int topK, ExecutorService executor, int threads, int maxDocsPerSlice) {
+		this(query, topK, executor, threads, maxDocsPerSlice, new AtomicReference<>());
+	}
+
+	private ParallelVectorScoreQuery(VectorScoreQuery query, int topK, ExecutorService executor, int threads, int maxDocsPerSlice,
+			AtomicReference<TopHits> topHits) {
+		this.query = query;
+		this.topK = topK;
+		this.executor = executor;
+		this.threads = threads;
+		this.maxDocsPerSlice = maxDocsPerSlice;
+		this.topHits = topHits;
+	}
+
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		Query rewritten = query.rewrite(reader);
+		if(rewritten != query) {
+			return new ParallelVectorScoreQuery((VectorScoreQuery) rewritten, topK, executor, threads, maxDocsPerSlice, topHits);
+		}
+		return super.rewrite(reader);
+	}
+
+	@Override
+	public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+		// the top hits are picked by score, so the vector scores are needed either way
+		VectorScoreQuery.VectorScoreWeight weight = (VectorScoreQuery.VectorScoreWeight) query.createWeight(searcher, true, boost);
+		TopHits hits = topHits.get();
+		if(hits == null || hits.context != searcher.getTopReaderContext() || hits.boost != boost) {
+			hits = new TopHits(searcher.getTopReaderContext(), boost, collect(weight, slices(searcher.getIndexReader().leaves())));
+			topHits.set(hits);
+		}
+		return new TopHitsWeight(this, weight, hits.docs, hits.scores, "within the top " + topK + " vector hits");
+	}
+
+	private List<Slice> slices(List<LeafReaderContext> leaves) {
+		List<Slice> slices = new ArrayList<>();
+		for(LeafReaderContext leaf: leaves) {
+			int maxDoc = leaf.reader().maxDoc();
+			for(int minDoc = 0; minDoc < maxDoc; minDoc += maxDocsPerSlice) {
+				slices.add(new Slice(leaf, minDoc, (int) Math.min(maxDoc, (long) minDoc + maxDocsPerSlice)));
+			}
+		}
+		return slices;
+	}
+
+	private ScoreDoc[] collect(VectorScoreQuery.VectorScoreWeight weight, List<Slice> slices) throws IOException {
+		final AtomicInteger nextSlice = new AtomicInteger();
+		final int workers = Math.min(threads, slices.size());
+		List<Future<HitQueue>> futures = new ArrayList<>();
+		HitQueue merged = new HitQueue(topK);
+		boolean success = false;
+		try {
+			for(int i = 1; i < workers; i++) {
+				futures.add(executor.submit(() -> score(weight, slices, nextSlice)));
+			}
+			merge(score(weight, slices, nextSlice), merged);
+			for(Future<HitQueue> future: futures) {
+				merge(future.get(), merged);
+			}
+			success = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Interrupted while scoring vectors", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Failed to score vectors", cause);
+		} finally {
+			if(!success) {
+				// stop the other workers from taking new slices
+				nextSlice.set(slices.size());
+				futures.forEach(future -> future.cancel(false));
+			}
+		}
+		ScoreDoc[] hits = new ScoreDoc[merged.size()];
+		for(int i = hits.length - 1; i >= 0; i--) {
+			hits[i] = merged.pop();
+		}
+		return hits;
+	}
+
+	private HitQueue score(VectorScoreQuery.VectorScoreWeight weight, List<Slice> slices, AtomicInteger nextSlice) throws IOException {
+		final HitQueue queue = new HitQueue(topK);
+		final float maxScore = weight.getMaxScore();
+		int sliceIndex;
+		while((sliceIndex = nextSlice.getAndIncrement()) < slices.size()) {
+			Slice slice = slices.get(sliceIndex);
+			VectorScoreQuery.VectorScorer scorer = weight.scorer(slice.context);
+			if(scorer == null) {
+				continue;
+			}
+			DocIdSetIterator iterator = scorer.iterator();
+			Bits liveDocs = slice.context.reader().getLiveDocs();
+			int docBase = slice.context.docBase;
+			try {
+				for(int doc = iterator.advance(slice.minDoc); doc < slice.maxDoc; doc = iterator.nextDoc()) {
+					if(liveDocs != null && !liveDocs.get(doc)) {
+						continue;
+					}
+					float score = scorer.score();
+					if(queue.size() < topK) {
+						queue.add(new ScoreDoc(docBase + doc, score));
+					} else if(score > queue.top().score) {
+						queue.top().doc = docBase + doc;
+						queue.top().score = score;
+						queue.updateTop();
+					} else if(queue.top().score >= maxScore) {
+						// slices are taken in doc id order, whatever is left loses the tie against the queued hits
+						return queue;
+					}
+				}
+			} finally {
+				scorer.recordScoringTime();
+			}
+		}
+		return queue;
+	}
+
+	private static void merge(HitQueue from, HitQueue into) {
+		while(from.size() > 0) {
+			into.insertWithOverflow(from.pop());
+		}
+	}
+
+	@Override
+	public String toString(String field) {
+		return "parallel(" + query.toString(field) + ", topK=" + topK + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && topK == ((ParallelVectorScoreQuery) other).topK
+				&& query.equals(((ParallelVectorScoreQuery) other).query);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * classHash() + query.hashCode()) + topK;
+	}
+
+	/**
+	 * The top hits of a searcher, sorted by global doc id.
+	 */
+	static final class TopHits {
+		final IndexReaderContext context;
+		final float boost;
+		final int[] docs;
+		final float[] scores;
+
+		TopHits(IndexReaderContext context, float boost, ScoreDoc[] hits) {
+			this.context = context;
+			this.boost = boost;
+			Arrays.sort(hits, (a, b) -> Integer.compare(a.doc, b.doc));
+			this.docs = new int[hits.length];
+			this.scores = new float[hits.length];
+			for(int i = 0; i < hits.length; i++) {
+				docs[i] = hits[i].doc;
+				scores[i] = hits[i].score;
+			}
+		}
+	}
+
+	private static final class Slice {
+		final LeafReaderContext context;
+		final int minDoc;
+		final int maxDoc;
+
+		Slice(LeafReaderContext context, int minDoc, int maxDoc) {
+			this.context = context;
+			this.minDoc = minDoc;
+			this.maxDoc = maxDoc;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.github.saaay71.solr.query;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.score.VectorQueryScorer;
+import com.github.saaay71.solr.query.score.VectorQueryScorerFactory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Query side state of a vector query: the query vector, its norm, the resolved vector type and scorer.
+ * It is built once per query so scoring a document only does the document side work.
+ */
+public class PreparedVectorQuery {
+    private final int[] sparseIndices;
+    private final double[] sparseValues;
+    private final int dimensions;
+    private volatile double[] vector;
+    private volatile double[] normalizedVector;
+    private final double norm;
+    private final double sum;
+    private final VectorUtils.VectorType vectorType;
+    private final VectorQuery.VectorQueryType queryType;
+    private final VectorQueryScorer scorer;
+
+    public PreparedVectorQuery(double[] vector, VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType queryType) {
+        this(null, vector, vector, vector.length, vectorType, queryType);
+    }
+
+    private PreparedVectorQuery(int[] sparseIndices, double[] values, double[] vector, int dimensions,
+                                VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType queryType) {
+        this.sparseIndices = sparseIndices;
+        this.sparseValues = sparseIndices == null? null: values;
+        this.vector = vector;
+        this.dimensions = dimensions;
+        double sumOfSquares = 0d;
+        double sum = 0d;
+        for(double x: values) {
+            sumOfSquares += x * x;
+            sum += x;
+        }
+        this.norm = Math.sqrt(sumOfSquares);
+        this.sum = sum;
+        this.vectorType = vectorType;
+        this.queryType = queryType;
+        // AUTO vectors carry their type in the first byte, so their scorer is picked per document
+        this.scorer = vectorType == VectorUtils.VectorType.AUTO? null: VectorQueryScorerFactory.getScorer(vectorType);
+    }
+
+    /**
+     * A sparse query, scored against compact sparse documents without ever building its dense form. Indices do not need
+     * to be sorted, the values of repeated indices are added up.
+     */
+    public static PreparedVectorQuery sparse(int[] indices, float[] values, VectorUtils.VectorType vectorType,
+                                             VectorQuery.VectorQueryType queryType) {
+        final Integer[] order = new Integer[indices.length];
+        for(int i = 0; i < order.length; ++i) {
+            if(indices[i] < 0) {
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "negative sparse vector index: " + indices[i]);
+            }
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(indices[a], indices[b]));
+        int[] sortedIndices = new int[indices.length];
+        double[] sortedValues = new double[indices.length];
+        int size = 0;
+        for(int i: order) {
+            if(size > 0 && sortedIndices[size - 1] == indices[i]) {
+                sortedValues[size - 1] += values[i];
+            } else {
+                sortedIndices[size] = indices[i];
+                sortedValues[size++] = values[i];
+            }
+        }
+        sortedIndices = Arrays.copyOf(sortedIndices, size);
+        sortedValues = Arrays.copyOf(sortedValues, size);
+        return new PreparedVectorQuery(sortedIndices, sortedValues, null, size == 0? 0: sortedIndices[size - 1] + 1,
+                vectorType, queryType);
+    }
+
+    public float score(BytesRef docVector) {
+        VectorQueryScorer docScorer = scorer;
+        if(docScorer == null) {
+            docScorer = VectorQueryScorerFactory.getScorer(vectorType, docVector);
+        }
+        return docScorer.score(this, docVector);
+    }
+
+    /**
+     * Scores the length bytes of the document vector at offset in input, in place.
+     */
+    public float score(RandomAccessInput input, long offset, int length) throws IOException {
+        VectorQueryScorer docScorer = scorer;
+        if(docScorer == null) {
+            docScorer = VectorQueryScorerFactory.getScorer(input.readByte(offset));
+            ++offset;
+            --length;
+        }
+        return docScorer.score(this, input, offset, length);
+    }
+
+    /**
+     * @return an upper bound of the similarities this query produces, infinite when it is not bounded
+     */
+    public float getMaxScore() {
+        switch (queryType) {
+            case COSINE:
+            case EUCLIDEAN:
+                return 1f;
+            default:
+                return Float.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @return the dense query vector, built on first use for sparse queries
+     */
+    public double[] getVector() {
+        double[] dense = vector;
+        if(dense == null) {
+            dense = new double[dimensions];
+            for(int i = 0; i < sparseIndices.length; ++i) {
+                dense[sparseIndices[i]] = sparseValues[i];
+            }
+            vector = dense;
+        }
+        return dense;
+    }
+
+    public double[] getNormalizedVector() {
+        double[] normalized = normalizedVector;
+        if(normalized == null) {
+            final double[] dense = getVector();
+            normalized = new double[dense.length];
+            if(norm != 0) {
+                for(int i = 0; i < dense.length; ++i) {
+                    normalized[i] = dense[i] / norm;
+                }
+            }
+            normalizedVector = normalized;
+        }
+        return normalized;
+    }
+
+    public boolean isSparse() {
+        return sparseIndices != null;
+    }
+
+    /**
+     * @return the sorted, distinct indices of a sparse query, null for dense ones
+     */
+    public int[] getSparseIndices() {
+        return sparseIndices;
+    }
+
+    /**
+     * @return the values of a sparse query, in the order of {@link #getSparseIndices()}
+     */
+    public double[] getSparseValues() {
+        return sparseValues;
+    }
+
+    /**
+     * @return the length of the dense query, one more than the highest index for sparse ones
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public double getNorm() {
+        return norm;
+    }
+
+    /**
+     * @return the sum of the query components, the part of a dot product with quantized vectors shared by all documents
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    public VectorUtils.VectorType getVectorType() {
+        return vectorType;
+    }
+
+    public VectorQuery.VectorQueryType getQueryType() {
+        return queryType;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+        if(other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        PreparedVectorQuery that = (PreparedVectorQuery) other;
+        if(vectorType != that.vectorType || queryType != that.queryType || isSparse() != that.isSparse()) {
+            return false;
+        }
+        return isSparse()? Arrays.equals(sparseIndices, that.sparseIndices) && Arrays.equals(sparseValues, that.sparseValues):
+                Arrays.equals(vector, that.vector);
+    }
+
+    @Override
+    public int hashCode() {
+        final int vectorHash = isSparse()? 31 * Arrays.hashCode(sparseIndices) + Arrays.hashCode(sparseValues): Arrays.hashCode(vector);
+        return 31 * (31 * vectorHash + vectorType.hashCode()) + queryType.hashCode();
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.saaay71.solr.query;
+
+import com.github.saaay71.solr.codec.ColumnarVectorValues;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Per-segment access to the encoded vectors of a field.
+ * Vectors are read through {@link BinaryDocValues} when the segment has them, and from stored fields otherwise,
+ * so indexes built before docValues were enabled on the field keep working.
+ * Segments written with {@link com.github.saaay71.solr.codec.ColumnarVectorDocValuesFormat} are scored in place.
+ * The returned {@link BytesRef} is only valid until the next call; callers may move its offset and length.
+ */
+public abstract class SegmentVectorValues {
+
+    public abstract BytesRef get(int docID) throws IOException;
+
+    /**
+     * Scores the vector of docID against query.
+     */
+    public float score(PreparedVectorQuery query, int docID) throws IOException {
+        return score(query, docID, null);
+    }
+
+    /**
+     * Scores the vector of docID against query, counted in counts when not null.
+     */
+    float score(PreparedVectorQuery query, int docID, VectorQueryStats.SegmentCounts counts) throws IOException {
+        final BytesRef bytes = get(docID);
+        if(bytes == null) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Could not find vector for docId: \"" + docID + "\"");
+        }
+        if(counts != null) {
+            // before AUTO vectors are shifted past their marker byte while scored
+            counts.docsScored++;
+            counts.vectorBytesRead += bytes.length;
+        }
+        return query.score(bytes);
+    }
+
+    public static SegmentVectorValues forSegment(LeafReader reader, String field) throws IOException {
+        FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(field);
+        StoredVectorValues storedValues = new StoredVectorValues(reader, field);
+        if(fieldInfo != null && fieldInfo.getDocValuesType() == DocValuesType.BINARY) {
+            BinaryDocValues docValues = reader.getBinaryDocValues(field);
+            if(docValues instanceof ColumnarVectorValues) {
+                return new ColumnarSegmentVectorValues((ColumnarVectorValues) docValues, storedValues);
+            }
+            return new DocValuesVectorValues(reader, field, storedValues);
+        }
+        return storedValues;
+    }
+
+    private static class StoredVectorValues extends SegmentVectorValues {
+        private final LeafReader reader;
+        private final String field;
+        private final Set<String> fieldsToLoad;
+
+        StoredVectorValues(LeafReader reader, String field) {
+            this.reader = reader;
+            this.field = field;
+            this.fieldsToLoad = Collections.singleton(field);
+        }
+
+        @Override
+        public BytesRef get(int docID) throws IOException {
+            return reader.document(docID, fieldsToLoad).getBinaryValue(field);
+        }
+    }
+
+    private static class DocValuesVectorValues extends SegmentVectorValues {
+        private final LeafReader reader;
+        private final String field;
+        private final SegmentVectorValues fallback;
+        private final BytesRef scratch = new BytesRef();
+        private BinaryDocValues docValues;
+        private int lastDocID = -1;
+        private boolean lastDocExists;
+
+        DocValuesVectorValues(LeafReader reader, String field, SegmentVectorValues fallback) {
+            this.reader = reader;
+            this.field = field;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public BytesRef get(int docID) throws IOException {
+            if(docValues == null || docID < lastDocID) {
+                // docValues iterators only move forward, start over for out of order lookups (e.g. explain)
+                docValues = reader.getBinaryDocValues(field);
+                lastDocID = -1;
+            }
+            if(docID != lastDocID) {
+                lastDocExists = docValues.advanceExact(docID);
+                lastDocID = docID;
+            }
+            if(!lastDocExists) {
+                // document was indexed before docValues were enabled, e.g. in a merged segment
+                return fallback.get(docID);
+            }
+            BytesRef value = docValues.binaryValue();
+            scratch.bytes = value.bytes;
+            scratch.offset = value.offset;
+            scratch.length = value.length;
+            return scratch;
+        }
+    }
+
+    private static class ColumnarSegmentVectorValues extends SegmentVectorValues {
+        private final ColumnarVectorValues values;
+        private final SegmentVectorValues fallback;
+
+        ColumnarSegmentVectorValues(ColumnarVectorValues values, SegmentVectorValues fallback) {
+            this.values = values;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public BytesRef get(int docID) throws IOException {
+            if(!values.advanceExact(docID)) {
+                return fallback.get(docID);
+            }
+            return values.binaryValue();
+        }
+
+        @Override
+        float score(PreparedVectorQuery query, int docID, VectorQueryStats.SegmentCounts counts) throws IOException {
+            if(!values.hasValue(docID)) {
+                return super.score(query, docID, counts);
+            }
+            final int length = values.getRecordLength();
+            if(counts != null) {
+                counts.docsScored++;
+                counts.vectorBytesRead += length;
+            }
+            return query.score(values.getRecords(), values.offset(docID), length);
+        }
+    }
+}
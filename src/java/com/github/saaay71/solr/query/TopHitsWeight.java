@@ -0,0 +1,126 @@
+package com.github.saaay71.solr.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Matches top hits collected up front, sorted by global doc id, with their scores.
+ */
+class TopHitsWeight extends Weight {
+	private final Weight vectorWeight;
+	private final int[] docs;
+	private final float[] scores;
+	private final String description;
+
+	/**
+	 * @param vectorWeight the weight that scored the hits, explains them and provides their terms, null when the hits
+	 *                     were not scored by this searcher, e.g. cached ones
+	 * @param description how the hits were picked, for explanations
+	 */
+	TopHitsWeight(Query query, Weight vectorWeight, int[] docs, float[] scores, String description) {
+		super(query);
+		this.vectorWeight = vectorWeight;
+		this.docs = docs;
+		this.scores = scores;
+		this.description = description;
+	}
+
+	@Override
+	public void extractTerms(Set<Term> terms) {
+		if(vectorWeight != null) {
+			vectorWeight.extractTerms(terms);
+		}
+	}
+
+	@Override
+	public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+		int index = Arrays.binarySearch(docs, context.docBase + doc);
+		if(index < 0) {
+			return Explanation.noMatch("not " + description);
+		}
+		if(vectorWeight == null) {
+			return Explanation.match(scores[index], description);
+		}
+		return Explanation.match(scores[index], description + ", scored by:", vectorWeight.explain(context, doc));
+	}
+
+	@Override
+	public Scorer scorer(LeafReaderContext context) throws IOException {
+		int from = lowerBound(0, context.docBase);
+		int to = lowerBound(from, context.docBase + context.reader().maxDoc());
+		return from == to ? null : new TopHitsScorer(this, context.docBase, from, to);
+	}
+
+	@Override
+	public boolean isCacheable(LeafReaderContext context) {
+		// the hits of a segment depend on the scores of the other segments
+		return false;
+	}
+
+	private int lowerBound(int from, int doc) {
+		int index = Arrays.binarySearch(docs, from, docs.length, doc);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	private class TopHitsScorer extends Scorer {
+		private final int docBase;
+		private final int from;
+		private final int to;
+		private int index;
+		private final DocIdSetIterator iterator = new DocIdSetIterator() {
+			@Override
+			public int docID() {
+				return index < from ? -1 : index >= to ? NO_MORE_DOCS : docs[index] - docBase;
+			}
+
+			@Override
+			public int nextDoc() {
+				index++;
+				return docID();
+			}
+
+			@Override
+			public int advance(int target) {
+				index = Math.min(to, lowerBound(Math.min(to, Math.max(from, index + 1)), docBase + target));
+				return docID();
+			}
+
+			@Override
+			public long cost() {
+				return to - from;
+			}
+		};
+
+		TopHitsScorer(Weight weight, int docBase, int from, int to) {
+			super(weight);
+			this.docBase = docBase;
+			this.from = from;
+			this.to = to;
+			this.index = from - 1;
+		}
+
+		@Override
+		public int docID() {
+			return iterator.docID();
+		}
+
+		@Override
+		public float score() {
+			return scores[index];
+		}
+
+		@Override
+		public DocIdSetIterator iterator() {
+			return iterator;
+		}
+	}
+}
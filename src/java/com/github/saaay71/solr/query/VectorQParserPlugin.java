@@ -1,39 +1,211 @@
 package com.github.saaay71.solr.query;
 
+import com.github.saaay71.solr.VectorParser;
 import com.github.saaay71.solr.VectorUtils;
 import com.github.saaay71.solr.updateprocessor.LSHUpdateProcessorFactory;
-import info.debatty.java.lsh.LSHSuperBit;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import org.apache.solr.common.IteratorWriter;
 import org.apache.solr.common.SolrException;
-import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.InitParams;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.metrics.SolrMetricProducer;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.search.*;
 import org.apache.solr.update.processor.UpdateRequestProcessorChain;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-public class VectorQParserPlugin extends QParserPlugin {
+public class VectorQParserPlugin extends QParserPlugin implements AutoCloseable, SolrMetricProducer {
 
 	public static final Double DEFAULT_RERANK_WEIGHT = 1.0d;
-	private static final Map<String, LSHSuperBit> superBitCache = new HashMap<>();
-	private static final Map<String, Double> stagesScoreCache = new HashMap<>();
+	public static final String SCORING_THREADS = "scoringThreads";
+	public static final String MAX_THREADS_PER_REQUEST = "maxThreadsPerRequest";
+	public static final String MAX_DOCS_PER_SLICE = "maxDocsPerSlice";
+	public static final int DEFAULT_MAX_THREADS_PER_REQUEST = 4;
+	public static final int DEFAULT_MAX_DOCS_PER_SLICE = 250_000;
+	public static final String PARALLEL = "parallel";
+	public static final String THREADS = "threads";
+	public static final String TOP_K = "topK";
+	public static final String VECTOR_FORMAT = "vectorFormat";
+	public static final String EXACT_RERANK = "exactRerank";
+	public static final String HNSW_M = "hnswM";
+	public static final String HNSW_EF_CONSTRUCTION = "hnswEfConstruction";
+	public static final String HNSW_MAX_RAM_MB = "hnswMaxRamMB";
+	public static final String ANN = "ann";
+	public static final String K = "k";
+	public static final String EF = "ef";
+	public static final int DEFAULT_EF = 100;
+	public static final String NPROBE = "nprobe";
+	public static final int DEFAULT_NPROBE = 4;
+	public static final String PROBES = "probes";
+	public static final String MIN_COLLISIONS = "minCollisions";
+	public static final String MAX_CANDIDATES = "maxCandidates";
+	public static final String METRICS = "metrics";
+	public static final String RESULT_CACHE = "resultCache";
+	public static final String RESULT_CACHE_KEY = "resultCacheKey";
+	public static final String RESULT_CACHE_STEP = "resultCacheStep";
+	public static final String RESULT_CACHE_MIN_SIMILARITY = "resultCacheMinSimilarity";
+	// debug param value adding the counters of every vector query to the debug section
+	public static final String DEBUG_VECTOR = "vector";
+	private static final String STATS_CONTEXT_KEY = VectorQParserPlugin.class.getName() + ".stats";
+
+	/**
+	 * LSH update processors of the update chains, by chain name. Query parser plugins are created per core, so a reloaded core
+	 * starts with an empty registry and the models of the old core are dropped when its plugins are closed.
+	 */
+	private final ConcurrentMap<String, LSHUpdateProcessorFactory> lshProcessors = new ConcurrentHashMap<>();
+	private ExecutorService scoringExecutor;
+	private int maxThreadsPerRequest = DEFAULT_MAX_THREADS_PER_REQUEST;
+	private int maxDocsPerSlice = DEFAULT_MAX_DOCS_PER_SLICE;
+	private HnswGraphCache hnswGraphs = new HnswGraphCache(HnswGraphCache.DEFAULT_M, HnswGraphCache.DEFAULT_EF_CONSTRUCTION,
+			HnswGraphCache.DEFAULT_MAX_RAM_MB << 20);
+	private boolean metricsEnabled = true;
+	// null unless a user cache of the searcher is named by the resultCache arg
+	private VectorResultCache resultCache;
+	private final Set<String> metricNames = ConcurrentHashMap.newKeySet();
+	// null until registered in the metrics registry of the core, and when metrics are disabled
+	private Timer parseTimer;
+	private Timer scoringTimer;
+	private Histogram lshCandidates;
+	private Histogram docsScored;
+	private Histogram vectorBytesRead;
+	private Counter resultCacheHits;
+	private Counter resultCacheMisses;
+	// to unregister the gauges of this instance when it is closed
+	private SolrMetricManager metricManager;
+	private String registryName;
+	private String metricsTag;
+
+	@Override
+	public void init(NamedList args) {
+		super.init(args);
+		if(args == null) {
+			return;
+		}
+		SolrParams initParams = SolrParams.toSolrParams(args);
+		int scoringThreads = initParams.getInt(SCORING_THREADS, 0);
+		maxThreadsPerRequest = initParams.getInt(MAX_THREADS_PER_REQUEST, DEFAULT_MAX_THREADS_PER_REQUEST);
+		maxDocsPerSlice = initParams.getInt(MAX_DOCS_PER_SLICE, DEFAULT_MAX_DOCS_PER_SLICE);
+		if(maxThreadsPerRequest < 1 || maxDocsPerSlice < 1) {
+			throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, MAX_THREADS_PER_REQUEST + " and " + MAX_DOCS_PER_SLICE + " must be positive");
+		}
+		int hnswM = initParams.getInt(HNSW_M, HnswGraphCache.DEFAULT_M);
+		int hnswEfConstruction = initParams.getInt(HNSW_EF_CONSTRUCTION, HnswGraphCache.DEFAULT_EF_CONSTRUCTION);
+		long hnswMaxRamMB = initParams.getLong(HNSW_MAX_RAM_MB, HnswGraphCache.DEFAULT_MAX_RAM_MB);
+		if(hnswM < 2 || hnswEfConstruction < 1 || hnswMaxRamMB < 0) {
+			throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, HNSW_M + " must be at least 2, " + HNSW_EF_CONSTRUCTION
+					+ " positive and " + HNSW_MAX_RAM_MB + " not negative");
+		}
+		hnswGraphs = new HnswGraphCache(hnswM, hnswEfConstruction, hnswMaxRamMB << 20);
+		metricsEnabled = initParams.getBool(METRICS, true);
+		String resultCacheName = initParams.get(RESULT_CACHE);
+		if(resultCacheName != null) {
+			resultCache = new VectorResultCache(resultCacheName, VectorResultCache.KeyType.fromString(initParams.get(RESULT_CACHE_KEY, "exact")),
+					initParams.getDouble(RESULT_CACHE_STEP, VectorResultCache.DEFAULT_STEP),
+					initParams.getDouble(RESULT_CACHE_MIN_SIMILARITY, VectorResultCache.DEFAULT_MIN_SIMILARITY));
+		}
+		if(scoringThreads > 0) {
+			scoringExecutor = ExecutorUtil.newMDCAwareFixedThreadPool(scoringThreads, new DefaultSolrThreadFactory("vectorScoring"));
+		}
+	}
+
+	@Override
+	public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+		if(!metricsEnabled) {
+			return;
+		}
+		String category = getCategory().toString();
+		metricManager = manager;
+		this.registryName = registryName;
+		metricsTag = tag;
+		manager.registerGauge(this, registryName, () -> hnswGraphs.ramBytesUsed(), tag, true, "hnswGraphsRamBytes", category, scope);
+		parseTimer = manager.timer(this, registryName, "parse", category, scope);
+		scoringTimer = manager.timer(this, registryName, "scoring", category, scope);
+		lshCandidates = manager.histogram(this, registryName, "lshCandidates", category, scope);
+		docsScored = manager.histogram(this, registryName, "docsScored", category, scope);
+		vectorBytesRead = manager.histogram(this, registryName, "vectorBytesRead", category, scope);
+		if(resultCache != null) {
+			resultCacheHits = manager.counter(this, registryName, "resultCacheHits", category, scope);
+			resultCacheMisses = manager.counter(this, registryName, "resultCacheMisses", category, scope);
+		}
+	}
+
+	@Override
+	public Set<String> getMetricNames() {
+		return metricNames;
+	}
+
+	/**
+	 * @return the HNSW graphs of the segments of the core, built by {@link HnswGraphWarmer}
+	 */
+	public HnswGraphCache getHnswGraphs() {
+		return hnswGraphs;
+	}
+
+	@Override
+	public void close() {
+		if(metricManager != null) {
+			metricManager.unregisterGauges(registryName, metricsTag);
+		}
+		lshProcessors.clear();
+		hnswGraphs.clear();
+		if(scoringExecutor != null) {
+			ExecutorUtil.shutdownAndAwaitTermination(scoringExecutor);
+		}
+	}
 
 	@Override
 	public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
 		return new QParser(qstr, localParams, params, req) {
+			private VectorQueryStats stats;
+			// the query vector, only prepared for the result cache
+			private PreparedVectorQuery cacheVector;
+
 			@Override
 			public Query parse() throws SyntaxError {
+				stats = newStats(req, localParams);
+				if(stats == null) {
+					return cacheResults(parseVectorQuery());
+				}
+				long start = System.nanoTime();
+				Query parsed = cacheResults(parseVectorQuery());
+				stats.setParseNanos(System.nanoTime() - start);
+				register(req, stats);
+				return parsed;
+			}
+
+			private Query parseVectorQuery() throws SyntaxError {
 				String field = localParams.get(QueryParsing.F);
 				String vector = localParams.get("vector");
 				boolean cosine = localParams.getBool("cosine", true);
+				String metric = localParams.get("metric");
+				VectorQuery.VectorQueryType queryType = metric != null? VectorQuery.VectorQueryType.fromString(metric):
+						(cosine? VectorQuery.VectorQueryType.COSINE: VectorQuery.VectorQueryType.DOT);
 
 				if (field == null) {
 					throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "'f' not specified");
@@ -47,7 +219,75 @@ public class VectorQParserPlugin extends QParserPlugin {
 				String subQueryStr = localParams.get(QueryParsing.V);
 				VectorQuery q = null;
 
-				String[] vectorArray = vector.split(",");
+				VectorUtils.VectorFormat vectorFormat = VectorUtils.VectorFormat.fromString(localParams.get(VECTOR_FORMAT, VectorUtils.VectorFormat.TEXT.name()));
+				// dense text vectors are parsed straight to doubles, the others are kept for hashing
+				VectorUtils.ParsedVector parsedVector = null;
+				double[] vectorValues = null;
+				if(vectorFormat == VectorUtils.VectorFormat.TEXT && !VectorParser.isSparse(vector)) {
+					vectorValues = new double[VectorParser.size(vector)];
+					VectorParser.parseDense(vector, vectorValues);
+				} else if(vectorFormat == VectorUtils.VectorFormat.TEXT) {
+					parsedVector = VectorUtils.parse(vector);
+				} else {
+					BytesRef bytes = VectorUtils.toBytesRef(vector);
+					parsedVector = vectorFormat == VectorUtils.VectorFormat.FLOATS_LE? VectorUtils.decodeLittleEndian(bytes):
+							VectorUtils.decode(bytes, VectorUtils.getVectorType(req.getSchema().getField(field)));
+				}
+				if(parsedVector != null && !parsedVector.isSparse()) {
+					float[] values = parsedVector.getValues();
+					vectorValues = new double[values.length];
+					for(int i = 0; i < values.length; i++) {
+						vectorValues[i] = values[i];
+					}
+				}
+				final VectorUtils.ParsedVector sparseVector = vectorValues == null? parsedVector: null;
+				final double[] denseVector = vectorValues;
+				// sparse queries are merge joined with compact sparse documents, never densified for them
+				final Function<VectorUtils.VectorType, PreparedVectorQuery> prepare = vectorType -> sparseVector != null?
+						PreparedVectorQuery.sparse(sparseVector.getIndices(), sparseVector.getValues(), vectorType, queryType):
+						new PreparedVectorQuery(denseVector, vectorType, queryType);
+				if(resultCache != null) {
+					cacheVector = prepare.apply(VectorUtils.VectorType.AUTO);
+				}
+
+				final int exactRerank = localParams.getInt(EXACT_RERANK, 0);
+				if(exactRerank < 0) {
+					throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid " + EXACT_RERANK + ": " + exactRerank);
+				}
+
+				String ann = localParams.get(ANN);
+				if(ann != null && ann.equalsIgnoreCase("ivf")) {
+					final int nprobe = localParams.getInt(NPROBE, DEFAULT_NPROBE);
+					if(nprobe < 1) {
+						throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "\"" + NPROBE + "\" must be positive");
+					}
+					// only the documents of the nearest centroids are scored, the sub query filters them further
+					Query candidates = computeIVFQuery(sparseVector, denseVector, nprobe);
+					if(subQueryStr != null && !subQueryStr.equals("")) {
+						candidates = new BooleanQuery.Builder()
+								.add(subQuery(subQueryStr, null).getQuery(), BooleanClause.Occur.MUST)
+								.add(candidates, BooleanClause.Occur.FILTER)
+								.build();
+					}
+					PreparedVectorQuery preparedQuery = prepare.apply(VectorUtils.getVectorType(req.getSchema().getField(field)));
+					Query ivfQuery = vectorScoreQuery(candidates, preparedQuery);
+					return exactRerank > 0? exactRerank(ivfQuery, prepare.apply(VectorUtils.VectorType.AUTO), exactRerank): ivfQuery;
+				}
+				if(ann != null) {
+					if(!ann.equalsIgnoreCase("hnsw")) {
+						throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown " + ANN + ": \"" + ann + "\", expected hnsw or ivf");
+					}
+					final int k = localParams.getInt(K, params.getInt(CommonParams.START, 0) + params.getInt(CommonParams.ROWS, CommonParams.ROWS_DEFAULT));
+					final int ef = localParams.getInt(EF, DEFAULT_EF);
+					if(k < 1 || ef < 1) {
+						throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "\"" + K + "\" and \"" + EF + "\" must be positive");
+					}
+					// the sub query filters the graph hits
+					Query filter = subQueryStr == null || subQueryStr.isEmpty() ? new MatchAllDocsQuery() : subQuery(subQueryStr, null).getQuery();
+					PreparedVectorQuery preparedQuery = prepare.apply(VectorUtils.getVectorType(req.getSchema().getField(field)));
+					Query hnswQuery = new HnswVectorQuery(vectorScoreQuery(filter, preparedQuery), k, ef, hnswGraphs);
+					return exactRerank > 0? exactRerank(hnswQuery, prepare.apply(VectorUtils.VectorType.AUTO), exactRerank): hnswQuery;
+				}
 
 				if(ft != null && !localParams.getBool("lsh", false)) {
 					q = new VectorQuery(subQuery(subQueryStr, null).getQuery());
@@ -55,51 +295,247 @@ public class VectorQParserPlugin extends QParserPlugin {
 					query = q;
 				} else {
 					final int topNDocs = localParams.getInt(ReRankQParserPlugin.RERANK_DOCS, ReRankQParserPlugin.RERANK_DOCS_DEFAULT);
-					String lshQuery = computeLSHQueryString(vector, vectorArray);
-					if(subQueryStr != null && !subQueryStr.equals("")) {
-						lshQuery = subQuery(subQueryStr, null).getQuery() + " AND " + lshQuery;
+					if(topNDocs < 0) {
+						throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid " + ReRankQParserPlugin.RERANK_DOCS + ": " + topNDocs);
+					}
+					final int probes = localParams.getInt(PROBES, 0);
+					if(probes < 0) {
+						throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid " + PROBES + ": " + probes);
+					}
+					final int minCollisions = localParams.getInt(MIN_COLLISIONS, 1);
+					final int maxCandidates = localParams.getInt(MAX_CANDIDATES, 0);
+					if(minCollisions < 1 || maxCandidates < 0) {
+						throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "\"" + MIN_COLLISIONS + "\" must be positive and \""
+								+ MAX_CANDIDATES + "\" not negative");
+					}
+					Query subQuery = subQueryStr == null || subQueryStr.isEmpty() ? null : subQuery(subQueryStr, null).getQuery();
+					// the candidates are picked among the documents of the sub query, which still adds its score
+					Query luceneQuery = computeLSHQuery(parsedVector != null? parsedVector: floatVector(denseVector), probes,
+							minCollisions, maxCandidates, maxCandidates > 0? subQuery: null);
+					if(subQuery != null) {
+						luceneQuery = new BooleanQuery.Builder()
+								.add(subQuery, BooleanClause.Occur.MUST)
+								.add(luceneQuery, BooleanClause.Occur.MUST)
+								.build();
 					}
-					Query luceneQuery = req.getCore().getQueryPlugin("lucene")
-							.createParser(lshQuery, localParams, params, req).parse();
 
+					// exact vectors replace the LSH score directly, scoring quantized vectors in between would not add anything
+					if(exactRerank > 0) {
+						return exactRerank(luceneQuery, prepare.apply(VectorUtils.VectorType.AUTO), exactRerank);
+					}
 					// do not run cosine similarity
 					if(topNDocs == 0) {
 						return luceneQuery;
 					}
 					final double reRankWeight = localParams.getDouble(ReRankQParserPlugin.RERANK_WEIGHT, DEFAULT_RERANK_WEIGHT);
-					SolrParams computedLocalParams = new ModifiableSolrParams(localParams)
-							.set(ReRankQParserPlugin.RERANK_QUERY, "{!vp f=" + field + " vector=\"" +vector + "\" lsh=\"false\"}")
-							.setNonNull(ReRankQParserPlugin.RERANK_WEIGHT, reRankWeight)
-							.set("q", lshQuery);
-					return ((AbstractReRankQuery) req.getCore().getQueryPlugin(ReRankQParserPlugin.NAME)
-							.createParser(lshQuery, computedLocalParams, params, req).getQuery()).wrap(luceneQuery);
+					PreparedVectorQuery preparedQuery = prepare.apply(VectorUtils.getVectorType(req.getSchema().getField(field)));
+					return new VectorReRankQuery(luceneQuery, vectorScoreQuery(new MatchAllDocsQuery(), preparedQuery), topNDocs,
+							reRankWeight);
+				}
+
+				PreparedVectorQuery preparedQuery = prepare.apply(VectorUtils.getVectorType(req.getSchema().getField(field)));
+				VectorScoreQuery vectorQuery = vectorScoreQuery(query, preparedQuery);
+				if(!localParams.getBool(PARALLEL, false)) {
+					return exactRerank > 0? exactRerank(vectorQuery, prepare.apply(VectorUtils.VectorType.AUTO), exactRerank): vectorQuery;
+				}
+				if(scoringExecutor == null) {
+					throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "parallel scoring is disabled, set \"" + SCORING_THREADS + "\" on the query parser to enable it");
+				}
+				final int topK = localParams.getInt(TOP_K, params.getInt(CommonParams.START, 0) + params.getInt(CommonParams.ROWS, CommonParams.ROWS_DEFAULT));
+				final int threads = Math.min(localParams.getInt(THREADS, maxThreadsPerRequest), maxThreadsPerRequest);
+				if(topK < 1 || threads < 1) {
+					throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "\"" + TOP_K + "\" and \"" + THREADS + "\" must be positive");
+				}
+				Query parallelQuery = new ParallelVectorScoreQuery(vectorQuery, topK, scoringExecutor, threads, maxDocsPerSlice);
+				return exactRerank > 0? exactRerank(parallelQuery, prepare.apply(VectorUtils.VectorType.AUTO), exactRerank): parallelQuery;
+			}
+
+			/**
+			 * Serves the top hits of the main query of the request from the result cache of the searcher. Sub queries,
+			 * e.g. in filters or boosts, are not cached: their hits are not what the request returns. Neither are the hits
+			 * of requests sorted by anything but the score, the cached top hits are not theirs.
+			 */
+			private Query cacheResults(Query vectorQuery) {
+				// qstr is what follows the local params
+				String string = stringIncludingLocalParams != null? stringIncludingLocalParams: qstr;
+				if(resultCache == null || !localParams.getBool(CommonParams.CACHE, true) || !string.equals(params.get(CommonParams.Q))
+						|| req.getSearcher().getCache(resultCache.getName()) == null) {
+					return vectorQuery;
+				}
+				// a null sort is by score, descending
+				String sort = params.get(CommonParams.SORT);
+				if(sort != null && !sort.trim().isEmpty() && SortSpecParsing.parseSortSpec(sort, req).getSort() != null) {
+					return vectorQuery;
+				}
+				int k = params.getInt(CommonParams.START, 0) + params.getInt(CommonParams.ROWS, CommonParams.ROWS_DEFAULT);
+				// the filters themselves are parsed once by the search component, after the main query
+				List<String> filterStrings = new ArrayList<>();
+				String[] fqs = params.getParams(CommonParams.FQ);
+				if(fqs != null) {
+					for(String fq: fqs) {
+						if(fq != null && !fq.trim().isEmpty()) {
+							filterStrings.add(fq);
+						}
+					}
+				}
+				// everything but the vector that the top hits depend on
+				StringBuilder identity = new StringBuilder();
+				SortedSet<String> names = new TreeSet<>();
+				localParams.getParameterNamesIterator().forEachRemaining(names::add);
+				for(String name: names) {
+					if(!name.equals("vector") && !name.equals(VECTOR_FORMAT) && !name.equals(CommonParams.CACHE)) {
+						identity.append(name).append('=').append(Arrays.toString(localParams.getParams(name))).append(' ');
+					}
 				}
+				Collections.sort(filterStrings);
+				identity.append("fq=").append(filterStrings).append(" update.chain=").append(req.getParams().get("update.chain"))
+						.append(" k=").append(k);
+				LSHModel model = resultCache.getKeyType() == VectorResultCache.KeyType.LSH? getLSHProcessor(req).getModel(): null;
+				return new CachedVectorQuery(vectorQuery, filterStrings, k, resultCache,
+						resultCache.key(identity.toString(), cacheVector, model), cacheVector, stats);
+			}
+
+			private VectorScoreQuery vectorScoreQuery(Query subQuery, PreparedVectorQuery preparedQuery) {
+				return new VectorScoreQuery(subQuery, localParams.get(QueryParsing.F), preparedQuery,
+						LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME, stats);
+			}
+
+			/**
+			 * Rescores the top documents of the main query with the full precision vectors kept next to quantized ones.
+			 */
+			private Query exactRerank(Query mainQuery, PreparedVectorQuery exactQuery, int reRankDocs) {
+				return VectorReRankQuery.replacing(mainQuery, new VectorScoreQuery(new MatchAllDocsQuery(), localParams.get(QueryParsing.F),
+						exactQuery, LSHUpdateProcessorFactory.DEFAULT_EXACT_FIELD_NAME, stats), reRankDocs);
+			}
 
-				List<Double> vectorList = new ArrayList<>();
-				for(int i=0;i<vectorArray.length;i++){
-					double v = Double.parseDouble(vectorArray[i]);
-					vectorList.add(v);
+			private Query computeIVFQuery(VectorUtils.ParsedVector sparseVector, double[] denseVector, int nprobe) {
+				IVFModel model = getLSHProcessor(req).getIVFModel();
+				if(model == null) {
+					throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "the LSH update processor of the update chain has no \"ivfModel\"");
 				}
+				double[] vector = denseVector;
+				if(sparseVector != null) {
+					int dimensions = model.getDimensions();
+					for(int index: sparseVector.getIndices()) {
+						dimensions = Math.max(dimensions, index + 1);
+					}
+					vector = sparseVector.toHashVector(dimensions);
+				}
+				if(vector.length != model.getDimensions()) {
+					throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "query vector has " + vector.length
+							+ " dimensions, the IVF centroids have " + model.getDimensions());
+				}
+				List<BytesRef> terms = new ArrayList<>(nprobe);
+				for(int centroid: model.nearest(vector, nprobe)) {
+					terms.add(new BytesRef(model.term(centroid)));
+				}
+				return new TermInSetQuery(LSHUpdateProcessorFactory.DEFAULT_IVF_FIELD_NAME, terms);
+			}
 
-				return new VectorScoreQuery(query, vectorList, req.getSchema().getField(field), cosine);
+			/**
+			 * @return the dense text vector as the floats the update processor hashes, without parsing it again
+			 */
+			private VectorUtils.ParsedVector floatVector(double[] vector) {
+				float[] values = new float[vector.length];
+				for(int i = 0; i < vector.length; i++) {
+					values[i] = (float) vector[i];
+				}
+				return new VectorUtils.ParsedVector(null, values);
 			}
 
-			private String computeLSHQueryString(String vector, String[] vectorArray) {
-				String reqChain = getUpdateChainName(req);
-				LSHSuperBit superBit = superBitCache.computeIfAbsent(reqChain, (k) -> {
-					LSHUpdateProcessorFactory lshFactory = getLSHProcessorFromChain(req.getCore(), reqChain);
-					stagesScoreCache.put(reqChain, 1d / (double)lshFactory.getStages());
-					return new LSHSuperBit(lshFactory.getStages(), lshFactory.getBuckets(), lshFactory.getDimensions(), lshFactory.getSeed());
-				});
-				int[] intHash = superBit.hash(VectorUtils.parseInputVec(vector, vectorArray.length));
-				final Double stagesScorePercentage = stagesScoreCache.get(reqChain);
-				Stream<String> queryStringStream = LSHUtils.getLSHStringStream(intHash)
-						.map(x -> "("+ LSHUpdateProcessorFactory.DEFAULT_LSH_FIELD_NAME + ":\"" + x + "\")^=" + stagesScorePercentage);
-				return queryStringStream.collect(Collectors.joining(" OR "));
+			private Query computeLSHQuery(VectorUtils.ParsedVector vector, int probes, int minCollisions, int maxCandidates,
+					Query filter) {
+				LSHModel model = getLSHProcessor(req).getModel();
+				// hash the float rounded values, like the update processor does, probe(vector, 0) is the plain hash
+				int[][] buckets = model.probe(vector.toHashVector(model.getDimensions()), probes);
+				return new LSHCollisionQuery(LSHUpdateProcessorFactory.DEFAULT_LSH_FIELD_NAME, buckets, model.getStageScore(),
+						minCollisions, maxCandidates, filter, stats);
 			}
 		};
 	}
 
+	/**
+	 * @return the counters of a vector query, null when neither metrics nor {@code debug=vector} need them
+	 */
+	private VectorQueryStats newStats(SolrQueryRequest req, SolrParams localParams) {
+		if((parseTimer == null && !isDebugVector(req.getParams())) || SolrRequestInfo.getRequestInfo() == null) {
+			return null;
+		}
+		String ann = localParams.get(ANN);
+		String mode = ann != null? ann.toLowerCase(Locale.ROOT): localParams.getBool("lsh", false)? "lsh":
+				localParams.getBool(PARALLEL, false)? PARALLEL: "exact";
+		return new VectorQueryStats(localParams.get(QueryParsing.F), mode);
+	}
+
+	private static boolean isDebugVector(SolrParams params) {
+		String[] debug = params.getParams(CommonParams.DEBUG);
+		if(debug != null) {
+			for(String value: debug) {
+				if(DEBUG_VECTOR.equals(value) || "all".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Keeps the counters of the vector queries of the request until it is closed, they are final by then. The debug
+	 * section is written with the response, once the queries ran.
+	 */
+	@SuppressWarnings("unchecked")
+	private void register(SolrQueryRequest req, VectorQueryStats stats) {
+		List<VectorQueryStats> requestStats = (List<VectorQueryStats>) req.getContext().get(STATS_CONTEXT_KEY);
+		if(requestStats == null) {
+			List<VectorQueryStats> all = new ArrayList<>();
+			req.getContext().put(STATS_CONTEXT_KEY, all);
+			SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+			if(parseTimer != null) {
+				requestInfo.addCloseHook(() -> all.forEach(this::record));
+			}
+			if(isDebugVector(req.getParams())) {
+				IteratorWriter debug = items -> {
+					for(VectorQueryStats queryStats: all) {
+						items.add(queryStats);
+					}
+				};
+				ResponseBuilder rb = requestInfo.getResponseBuilder();
+				if(rb != null && rb.isDebug()) {
+					rb.addDebug(debug, DEBUG_VECTOR);
+				} else {
+					SimpleOrderedMap<Object> section = new SimpleOrderedMap<>();
+					section.add(DEBUG_VECTOR, debug);
+					requestInfo.getRsp().add(CommonParams.DEBUG, section);
+				}
+			}
+			requestStats = all;
+		}
+		requestStats.add(stats);
+	}
+
+	private void record(VectorQueryStats stats) {
+		parseTimer.update(stats.getParseNanos(), TimeUnit.NANOSECONDS);
+		if(stats.isLSH()) {
+			lshCandidates.update(stats.getLSHCandidates());
+		}
+		docsScored.update(stats.getDocsScored());
+		vectorBytesRead.update(stats.getVectorBytesRead());
+		scoringTimer.update(stats.getScoringNanos(), TimeUnit.NANOSECONDS);
+		if(stats.getResultCache() != null && resultCacheHits != null) {
+			(stats.getResultCache().equals("hit")? resultCacheHits: resultCacheMisses).inc();
+		}
+	}
+
+	private LSHUpdateProcessorFactory getLSHProcessor(SolrQueryRequest req) {
+		String reqChain = getUpdateChainName(req);
+		// lock-free once the processor is registered
+		LSHUpdateProcessorFactory processor = lshProcessors.get(reqChain);
+		if(processor == null) {
+			processor = lshProcessors.computeIfAbsent(reqChain, (k) -> getLSHProcessorFromChain(req.getCore(), k));
+		}
+		return processor;
+	}
+
 	private static LSHUpdateProcessorFactory getLSHProcessorFromChain(SolrCore core, String reqChainName) {
 		UpdateRequestProcessorChain chain = core.getUpdateProcessingChain(reqChainName);
 		if(chain == null) {
@@ -1,6 +1,9 @@
 package com.github.saaay71.solr.query;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.ConstantScoreScorer;
 import org.apache.lucene.search.ConstantScoreWeight;
@@ -9,6 +12,7 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
+import org.apache.solr.common.SolrException;
 
 public class VectorQuery extends Query {
 	String queryStr = "";
@@ -60,7 +64,18 @@ public class VectorQuery extends Query {
 	}
 
 	public enum VectorQueryType {
-		COSINE
+		COSINE,
+		DOT,
+		EUCLIDEAN;
+
+		public static VectorQueryType fromString(String metric) {
+			try {
+				return valueOf(metric.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown metric: \"" + metric + "\", expected one of "
+						+ Arrays.toString(values()));
+			}
+		}
 	}
 
 }
@@ -0,0 +1,132 @@
+package com.github.saaay71.solr.query;
+
+import org.apache.solr.common.MapWriter;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one vector query, for the query parser metrics and the {@code debug=vector} section. The scorers of parallel
+ * slices add to them concurrently. Scored documents are counted per segment or slice without synchronization, and only
+ * summed once the query ran; scoring is timed per segment or slice too.
+ */
+public final class VectorQueryStats implements MapWriter {
+
+    private final String field;
+    private final String mode;
+    private volatile long parseNanos;
+    // null when the query is not served by the result cache
+    private volatile String resultCache;
+    private final LongAdder lshCandidates = new LongAdder();
+    private final Queue<SegmentCounts> segments = new ConcurrentLinkedQueue<>();
+    private final LongAdder scoringNanos = new LongAdder();
+
+    /**
+     * @param mode how candidates are found: exact, parallel, lsh, hnsw or ivf
+     */
+    public VectorQueryStats(String field, String mode) {
+        this.field = field;
+        this.mode = mode;
+    }
+
+    void setParseNanos(long nanos) {
+        parseNanos = nanos;
+    }
+
+    void setResultCacheHit(boolean hit) {
+        resultCache = hit? "hit": "miss";
+    }
+
+    void addLSHCandidates(int candidates) {
+        lshCandidates.add(candidates);
+    }
+
+    /**
+     * @return the counts of a segment or slice, updated by the single thread scoring it
+     */
+    SegmentCounts newSegment() {
+        final SegmentCounts counts = new SegmentCounts();
+        segments.add(counts);
+        return counts;
+    }
+
+    /**
+     * @param nanos the time spent scoring a segment or slice
+     */
+    void addScoringNanos(long nanos) {
+        scoringNanos.add(nanos);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public boolean isLSH() {
+        return "lsh".equals(mode);
+    }
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @return hit or miss for queries served by the result cache, null for the others
+     */
+    public String getResultCache() {
+        return resultCache;
+    }
+
+    public long getLSHCandidates() {
+        return lshCandidates.sum();
+    }
+
+    public long getDocsScored() {
+        long sum = 0;
+        for(SegmentCounts counts: segments) {
+            sum += counts.docsScored;
+        }
+        return sum;
+    }
+
+    public long getVectorBytesRead() {
+        long sum = 0;
+        for(SegmentCounts counts: segments) {
+            sum += counts.vectorBytesRead;
+        }
+        return sum;
+    }
+
+    public long getScoringNanos() {
+        return scoringNanos.sum();
+    }
+
+    @Override
+    public void writeMap(EntryWriter ew) throws IOException {
+        ew.put("field", field);
+        ew.put("mode", mode);
+        ew.put("parseTime", parseNanos / 1e6);
+        if(resultCache != null) {
+            ew.put("resultCache", resultCache);
+        }
+        if(isLSH()) {
+            ew.put("lshCandidates", getLSHCandidates());
+        }
+        ew.put("docsScored", getDocsScored());
+        ew.put("vectorBytesRead", getVectorBytesRead());
+        ew.put("scoringTime", getScoringNanos() / 1e6);
+    }
+
+    /**
+     * Plain counters, read once the threads of the query are done with them.
+     */
+    static final class SegmentCounts {
+        long docsScored;
+        long vectorBytesRead;
+    }
+}
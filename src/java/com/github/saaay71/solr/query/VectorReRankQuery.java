@@ -0,0 +1,90 @@
+package com.github.saaay71.solr.query;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryRescorer;
+import org.apache.solr.search.AbstractReRankQuery;
+
+/**
+ * Reranks the top documents of the main query by adding the weighted score of a {@link VectorScoreQuery}, like the
+ * rerank query parser does, without going through its string parameters. A replacing rerank uses the score of the
+ * {@link VectorScoreQuery} alone, to refine approximate scores with exact ones.
+ */
+public class VectorReRankQuery extends AbstractReRankQuery {
+	private final VectorScoreQuery reRankQuery;
+	private final double reRankWeight;
+	private final boolean replaceScore;
+
+	public VectorReRankQuery(Query mainQuery, VectorScoreQuery reRankQuery, int reRankDocs, double reRankWeight) {
+		this(mainQuery, reRankQuery, reRankDocs, reRankWeight, false);
+	}
+
+	private VectorReRankQuery(Query mainQuery, VectorScoreQuery reRankQuery, int reRankDocs, double reRankWeight, boolean replaceScore) {
+		super(mainQuery, reRankDocs, new VectorReRankRescorer(reRankQuery, reRankWeight, replaceScore));
+		this.reRankQuery = reRankQuery;
+		this.reRankWeight = reRankWeight;
+		this.replaceScore = replaceScore;
+	}
+
+	/**
+	 * @return a rerank of the top documents of the main query that replaces their score with the one of reRankQuery
+	 */
+	public static VectorReRankQuery replacing(Query mainQuery, VectorScoreQuery reRankQuery, int reRankDocs) {
+		return new VectorReRankQuery(mainQuery, reRankQuery, reRankDocs, VectorQParserPlugin.DEFAULT_RERANK_WEIGHT, true);
+	}
+
+	public VectorScoreQuery getReRankQuery() {
+		return reRankQuery;
+	}
+
+	@Override
+	protected Query rewrite(Query rewrittenMainQuery) throws IOException {
+		return new VectorReRankQuery(rewrittenMainQuery, reRankQuery, reRankDocs, reRankWeight, replaceScore);
+	}
+
+	@Override
+	public String toString(String field) {
+		return "{!vp mainQuery='" + mainQuery.toString(field) + "' reRankQuery='" + reRankQuery.toString(field)
+				+ "' reRankDocs=" + reRankDocs + (replaceScore? " replaceScore=true": " reRankWeight=" + reRankWeight) + "}";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && equalsTo(getClass().cast(other));
+	}
+
+	private boolean equalsTo(VectorReRankQuery other) {
+		return reRankDocs == other.reRankDocs && reRankWeight == other.reRankWeight && replaceScore == other.replaceScore
+				&& mainQuery.equals(other.mainQuery) && reRankQuery.equals(other.reRankQuery);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(classHash(), mainQuery, reRankQuery, reRankDocs, reRankWeight, replaceScore);
+	}
+
+	private static final class VectorReRankRescorer extends QueryRescorer {
+		private final double reRankWeight;
+		private final boolean replaceScore;
+
+		VectorReRankRescorer(Query reRankQuery, double reRankWeight, boolean replaceScore) {
+			super(reRankQuery);
+			this.reRankWeight = reRankWeight;
+			this.replaceScore = replaceScore;
+		}
+
+		@Override
+		protected float combine(float firstPassScore, boolean secondPassMatches, float secondPassScore) {
+			if(replaceScore) {
+				return secondPassMatches? secondPassScore: firstPassScore;
+			}
+			float score = firstPassScore;
+			if(secondPassMatches) {
+				score += reRankWeight * secondPassScore;
+			}
+			return score;
+		}
+	}
+}
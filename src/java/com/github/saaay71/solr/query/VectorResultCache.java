@@ -0,0 +1,225 @@
+package com.github.saaay71.solr.query;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.SolrException;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keys and entries of the top hits of vector queries, stored in a user cache of the searcher, e.g. a {@code solr.LRUCache}
+ * or {@code solr.LFUCache} named by the {@code resultCache} arg of the query parser. The cache is dropped with its
+ * searcher, so entries never outlive the index they were computed on.
+ * Query vectors are canonicalized into the key: {@link KeyType#EXACT} rounds their components to floats,
+ * {@link KeyType#QUANTIZED} to a grid of {@code step} (after normalizing them for cosine queries) and {@link KeyType#LSH}
+ * replaces them by their LSH buckets. Distinct vectors sharing a key share its entry when their similarity reaches
+ * {@code minSimilarity}, otherwise the entry is recomputed and replaced.
+ */
+public class VectorResultCache {
+    public static final double DEFAULT_STEP = 0.01d;
+    public static final double DEFAULT_MIN_SIMILARITY = 0.999d;
+
+    public enum KeyType {
+        EXACT,
+        QUANTIZED,
+        LSH;
+
+        public static KeyType fromString(String keyType) {
+            try {
+                return valueOf(keyType.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "unknown result cache key: \"" + keyType
+                        + "\", expected one of " + Arrays.toString(values()));
+            }
+        }
+    }
+
+    private final String name;
+    private final KeyType keyType;
+    private final double step;
+    private final double minSimilarity;
+
+    public VectorResultCache(String name, KeyType keyType, double step, double minSimilarity) {
+        if(!(step > 0) || !(minSimilarity > 0 && minSimilarity <= 1)) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "the result cache step must be positive and its "
+                    + "minimum similarity in (0, 1]");
+        }
+        this.name = name;
+        this.keyType = keyType;
+        this.step = step;
+        this.minSimilarity = minSimilarity;
+    }
+
+    /**
+     * @return the name of the user cache of the searcher
+     */
+    public String getName() {
+        return name;
+    }
+
+    public KeyType getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * @param identity everything but the vector the top hits depend on: query params, filters, number of hits
+     * @param lshModel the model hashing the vectors of the field, only used by {@link KeyType#LSH} keys
+     */
+    public Key key(String identity, PreparedVectorQuery query, LSHModel lshModel) {
+        switch (keyType) {
+            case LSH:
+                return new Key(identity, lshModel.hash(Arrays.copyOf(query.getVector(), lshModel.getDimensions())), null);
+            case QUANTIZED:
+                return quantizedKey(identity, query);
+            default:
+                final double[] values = query.isSparse()? query.getSparseValues(): query.getVector();
+                final float[] floats = new float[values.length];
+                for(int i = 0; i < values.length; i++) {
+                    floats[i] = (float) values[i];
+                }
+                return new Key(identity, query.getSparseIndices(), floats);
+        }
+    }
+
+    private Key quantizedKey(String identity, PreparedVectorQuery query) {
+        // only the direction of cosine queries matters
+        final double scale = query.getQueryType() == VectorQuery.VectorQueryType.COSINE && query.getNorm() != 0?
+                1d / (query.getNorm() * step): 1d / step;
+        if(!query.isSparse()) {
+            final double[] vector = query.getVector();
+            final int[] codes = new int[vector.length];
+            for(int i = 0; i < vector.length; i++) {
+                codes[i] = (int) Math.round(vector[i] * scale);
+            }
+            return new Key(identity, codes, null);
+        }
+        final double[] values = query.getSparseValues();
+        final int[] codes = new int[2 * values.length];
+        for(int i = 0; i < values.length; i++) {
+            codes[2 * i] = query.getSparseIndices()[i];
+            codes[2 * i + 1] = (int) Math.round(values[i] * scale);
+        }
+        return new Key(identity, codes, null);
+    }
+
+    /**
+     * @return whether the hits of entry can be served for query
+     */
+    public boolean matches(Entry entry, PreparedVectorQuery query) {
+        return entry.query.equals(query) || similarity(entry.query, query) >= minSimilarity;
+    }
+
+    /**
+     * @return the cosine similarity of the vectors, or for euclidean queries 1 / (1 + their distance)
+     */
+    static double similarity(PreparedVectorQuery a, PreparedVectorQuery b) {
+        final double dot = dotProduct(a, b);
+        if(a.getQueryType() == VectorQuery.VectorQueryType.EUCLIDEAN) {
+            final double squaredDistance = a.getNorm() * a.getNorm() + b.getNorm() * b.getNorm() - 2 * dot;
+            return 1d / (1d + Math.sqrt(Math.max(0d, squaredDistance)));
+        }
+        if(a.getNorm() == 0 || b.getNorm() == 0) {
+            return a.getNorm() == b.getNorm()? 1d: 0d;
+        }
+        return dot / (a.getNorm() * b.getNorm());
+    }
+
+    private static double dotProduct(PreparedVectorQuery a, PreparedVectorQuery b) {
+        if(!a.isSparse() && b.isSparse()) {
+            return dotProduct(b, a);
+        }
+        double dot = 0d;
+        if(a.isSparse() && b.isSparse()) {
+            // both are sorted by index
+            final int[] x = a.getSparseIndices(), y = b.getSparseIndices();
+            for(int i = 0, j = 0; i < x.length && j < y.length; ) {
+                if(x[i] == y[j]) {
+                    dot += a.getSparseValues()[i++] * b.getSparseValues()[j++];
+                } else if(x[i] < y[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        } else if(a.isSparse()) {
+            final double[] y = b.getVector();
+            for(int i = 0; i < a.getSparseIndices().length && a.getSparseIndices()[i] < y.length; i++) {
+                dot += a.getSparseValues()[i] * y[a.getSparseIndices()[i]];
+            }
+        } else {
+            final double[] x = a.getVector(), y = b.getVector();
+            for(int i = 0; i < Math.min(x.length, y.length); i++) {
+                dot += x[i] * y[i];
+            }
+        }
+        return dot;
+    }
+
+    public static final class Key implements Accountable {
+        private final String identity;
+        private final int[] ints;
+        private final float[] floats;
+        private final int hash;
+
+        Key(String identity, int[] ints, float[] floats) {
+            this.identity = identity;
+            this.ints = ints;
+            this.floats = floats;
+            this.hash = 31 * (31 * identity.hashCode() + Arrays.hashCode(ints)) + Arrays.hashCode(floats);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(this == other) {
+                return true;
+            }
+            if(!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) other;
+            return hash == that.hash && identity.equals(that.identity) && Arrays.equals(ints, that.ints)
+                    && Arrays.equals(floats, that.floats);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.shallowSizeOfInstance(Key.class) + RamUsageEstimator.alignObjectSize(
+                    RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) Character.BYTES * identity.length())
+                    + (ints == null? 0: RamUsageEstimator.sizeOf(ints)) + (floats == null? 0: RamUsageEstimator.sizeOf(floats));
+        }
+
+        @Override
+        public String toString() {
+            return identity + (ints == null? "": Arrays.toString(ints)) + (floats == null? "": Arrays.toString(floats));
+        }
+    }
+
+    /**
+     * The top hits of a query, sorted by global doc id, and the query they were computed for.
+     */
+    public static final class Entry implements Accountable {
+        final PreparedVectorQuery query;
+        final int[] docs;
+        final float[] scores;
+
+        Entry(PreparedVectorQuery query, int[] docs, float[] scores) {
+            this.query = query;
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            final double[] vector = query.isSparse()? query.getSparseValues(): query.getVector();
+            return RamUsageEstimator.shallowSizeOfInstance(Entry.class) + RamUsageEstimator.sizeOf(docs)
+                    + RamUsageEstimator.sizeOf(scores) + RamUsageEstimator.sizeOf(vector)
+                    + (query.isSparse()? RamUsageEstimator.sizeOf(query.getSparseIndices()): 0);
+        }
+    }
+}
@@ -1,46 +1,222 @@
 package com.github.saaay71.solr.query;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.Locale;
+import java.util.Objects;
 
-import com.github.saaay71.solr.VectorUtils;
-import com.github.saaay71.solr.query.score.VectorQueryScorerFactory;
-import org.apache.lucene.index.*;
-import org.apache.lucene.queries.CustomScoreProvider;
-import org.apache.lucene.queries.CustomScoreQuery;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.FilterScorer;
+import org.apache.lucene.search.FilterWeight;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.util.BytesRef;
-import org.apache.solr.common.SolrException;
-import org.apache.solr.schema.SchemaField;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
 
-public class VectorScoreQuery extends CustomScoreQuery {
+/**
+ * Matches the documents of the sub query and scores them with the vector similarity of their encoded vector.
+ * The sub query only drives iteration, its scores are not used.
+ */
+public class VectorScoreQuery extends Query {
 	private static final String DEFAULT_BINARY_FIELD_NAME = "_vector_";
-	private static final Set<String> FIELDS = new HashSet<String>(){{add(DEFAULT_BINARY_FIELD_NAME);}};
-	List<Double> vector;
-	SchemaField field;
-	boolean cosine;
+	final Query subQuery;
+	final String field;
+	final PreparedVectorQuery preparedQuery;
+	final String vectorField;
+	// per request counters, not part of the query identity
+	final VectorQueryStats stats;
 
-	public VectorScoreQuery(Query subQuery, List<Double> vector, SchemaField field, boolean cosine) {
-		super(subQuery);
+	public VectorScoreQuery(Query subQuery, String field, PreparedVectorQuery preparedQuery) {
+		this(subQuery, field, preparedQuery, DEFAULT_BINARY_FIELD_NAME);
+	}
+
+	/**
+	 * @param vectorField the field holding the encoded vectors, e.g. the full precision copy of quantized vectors
+	 */
+	public VectorScoreQuery(Query subQuery, String field, PreparedVectorQuery preparedQuery, String vectorField) {
+		this(subQuery, field, preparedQuery, vectorField, null);
+	}
+
+	/**
+	 * @param stats counts the scored documents, null to not count them
+	 */
+	public VectorScoreQuery(Query subQuery, String field, PreparedVectorQuery preparedQuery, String vectorField, VectorQueryStats stats) {
+		this.subQuery = Objects.requireNonNull(subQuery);
 		this.field = field;
-		this.cosine = cosine;
-		this.vector = vector;
+		this.preparedQuery = preparedQuery;
+		this.vectorField = vectorField;
+		this.stats = stats;
+	}
+
+	public Query getSubQuery() {
+		return subQuery;
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	public PreparedVectorQuery getPreparedQuery() {
+		return preparedQuery;
+	}
+
+	public String getVectorField() {
+		return vectorField;
 	}
+
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		Query rewrittenSubQuery = subQuery.rewrite(reader);
+		if(rewrittenSubQuery != subQuery) {
+			return new VectorScoreQuery(rewrittenSubQuery, field, preparedQuery, vectorField, stats);
+		}
+		return super.rewrite(reader);
+	}
+
 	@Override
-	protected CustomScoreProvider getCustomScoreProvider(LeafReaderContext context) throws IOException {
-		return new CustomScoreProvider(context){
-			@Override
-			public float customScore(int docID, float subQueryScore, float valSrcScore) throws IOException {
-				BytesRef vecBytes = context.reader().document(docID, FIELDS).getBinaryValue(DEFAULT_BINARY_FIELD_NAME);
-				if(vecBytes == null) {
-					throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Could not find vector for docId: \"" + docID + "\"");
+	public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+		Weight subWeight = searcher.createWeight(subQuery, false, 1f);
+		if(!needsScores) {
+			return subWeight;
+		}
+		return new VectorScoreWeight(subWeight, boost);
+	}
+
+	@Override
+	public String toString(String defaultField) {
+		return "vp(" + field + ", metric=" + preparedQuery.getQueryType().name().toLowerCase(Locale.ROOT)
+				+ ", dimensions=" + preparedQuery.getDimensions()
+				+ (vectorField.equals(DEFAULT_BINARY_FIELD_NAME)? "": ", vectors=" + vectorField) + ", " + subQuery.toString(defaultField) + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && equalsTo(getClass().cast(other));
+	}
+
+	private boolean equalsTo(VectorScoreQuery other) {
+		return field.equals(other.field) && vectorField.equals(other.vectorField) && subQuery.equals(other.subQuery)
+				&& preparedQuery.equals(other.preparedQuery);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = classHash();
+		h = 31 * h + field.hashCode();
+		h = 31 * h + vectorField.hashCode();
+		h = 31 * h + subQuery.hashCode();
+		h = 31 * h + preparedQuery.hashCode();
+		return h;
+	}
+
+	class VectorScoreWeight extends FilterWeight {
+		private final float boost;
+
+		VectorScoreWeight(Weight subWeight, float boost) {
+			super(VectorScoreQuery.this, subWeight);
+			this.boost = boost;
+		}
+
+		@Override
+		public VectorScorer scorer(LeafReaderContext context) throws IOException {
+			Scorer subScorer = in.scorer(context);
+			if(subScorer == null) {
+				return null;
+			}
+			return new VectorScorer(this, subScorer, SegmentVectorValues.forSegment(context.reader(), vectorField), boost);
+		}
+
+		/**
+		 * Times the segments the vector query iterates itself, e.g. as the main query of a search.
+		 */
+		@Override
+		public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+			VectorScorer scorer = scorer(context);
+			if(scorer == null) {
+				return null;
+			}
+			BulkScorer bulkScorer = new DefaultBulkScorer(scorer);
+			if(stats == null) {
+				return bulkScorer;
+			}
+			return new BulkScorer() {
+				@Override
+				public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+					try {
+						return bulkScorer.score(collector, acceptDocs, min, max);
+					} finally {
+						scorer.recordScoringTime();
+					}
+				}
+
+				@Override
+				public long cost() {
+					return bulkScorer.cost();
 				}
-				VectorUtils.VectorType vecType = VectorUtils.VectorType.valueOf(
-						(String)((Map<String, Object>)(field.getArgs())).getOrDefault("vectorType", "AUTO")
-				);
+			};
+		}
 
-				return VectorQueryScorerFactory.getScorer(vecType, vecBytes).score(vector, VectorQuery.VectorQueryType.COSINE, vecBytes);
+		/**
+		 * @return an upper bound of the scores this weight produces, see {@link PreparedVectorQuery#getMaxScore()}
+		 */
+		public float getMaxScore() {
+			return boost * preparedQuery.getMaxScore();
+		}
+
+		@Override
+		public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+			Explanation subExplanation = in.explain(context, doc);
+			VectorScorer scorer = scorer(context);
+			if(scorer == null || scorer.iterator().advance(doc) != doc) {
+				return Explanation.noMatch("no matching sub query", subExplanation);
 			}
-		};
+			return Explanation.match(scorer.score(), preparedQuery.getQueryType().name().toLowerCase(Locale.ROOT)
+					+ " similarity of " + field + " with boost " + boost + ", matching:", subExplanation);
+		}
+	}
+
+	class VectorScorer extends FilterScorer {
+		private final SegmentVectorValues vectorValues;
+		private final float boost;
+		// null when the query is not counted
+		private final VectorQueryStats.SegmentCounts counts;
+		private long start;
+
+		VectorScorer(VectorScoreWeight weight, Scorer subScorer, SegmentVectorValues vectorValues, float boost) {
+			super(subScorer, weight);
+			this.vectorValues = vectorValues;
+			this.boost = boost;
+			this.counts = stats == null ? null : stats.newSegment();
+			this.start = stats == null ? 0L : System.nanoTime();
+		}
+
+		@Override
+		public float score() throws IOException {
+			return boost * vectorValues.score(preparedQuery, docID(), counts);
+		}
+
+		/**
+		 * Adds the time since the scorer was created, or since the last call, to the scoring time of the query. Called
+		 * by the owners of the scorer once they are done with a segment or slice, scorers nested in other queries are
+		 * not timed.
+		 */
+		void recordScoringTime() {
+			if(stats != null) {
+				long now = System.nanoTime();
+				stats.addScoringNanos(now - start);
+				start = now;
+			}
+		}
+
+		/**
+		 * Lucene 7 scorers have no max score hook, collectors of this package use this bound to stop early.
+		 */
+		public float getMaxScore() {
+			return boost * preparedQuery.getMaxScore();
+		}
 	}
-}
\ No newline at end of file
+}
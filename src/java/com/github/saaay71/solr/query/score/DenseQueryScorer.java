@@ -1,35 +1,86 @@
 package com.github.saaay71.solr.query.score;
 
-import com.github.saaay71.solr.VectorUtils;
-import com.github.saaay71.solr.query.VectorQuery;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.store.RandomAccessInput;
 import org.apache.lucene.util.BytesRef;
 
-import java.util.Iterator;
-import java.util.List;
+import java.io.IOException;
 
 public class DenseQueryScorer implements VectorQueryScorer {
-    public Float score(List<Double> vector, VectorQuery.VectorQueryType vQType, BytesRef buffer) {
-        float score = 0f;
-        double docVectorNorm = 0d;
-        int vectorIndex = 0;
-        Iterator<Float> vecIter = VectorUtils.decodeDense(buffer);
-        while(vecIter.hasNext()) {
-            Float val = vecIter.next();
-            score += (val) * (vector.get(vectorIndex));
+    private final boolean storedNorm;
+    private final DenseVectorKernel kernel;
+
+    public DenseQueryScorer() {
+        this(false);
+    }
+
+    /**
+     * @param storedNorm whether the buffer starts with the norm of the document vector,
+     *                   see {@link com.github.saaay71.solr.VectorUtils#DENSE_NORM_VECTOR_BYTE}
+     */
+    public DenseQueryScorer(boolean storedNorm) {
+        this(storedNorm, DenseVectorKernel.getDefault());
+    }
+
+    public DenseQueryScorer(boolean storedNorm, DenseVectorKernel kernel) {
+        this.storedNorm = storedNorm;
+        this.kernel = kernel;
+    }
 
-            if(vQType == VectorQuery.VectorQueryType.COSINE) {
-                docVectorNorm += Math.pow(val, 2.0);
-            }
+    public float score(PreparedVectorQuery query, BytesRef buffer) {
+        final byte[] bytes = buffer.bytes;
+        int start = buffer.offset;
+        int length = buffer.length;
+        double docVectorNorm = 0d;
+        if(storedNorm) {
+            docVectorNorm = PayloadHelper.decodeFloat(bytes, start);
+            start += Float.BYTES;
+            length -= Float.BYTES;
+        }
+        final int dimensions = length / Float.BYTES;
 
-            ++vectorIndex;
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) kernel.dotProduct(query.getVector(), bytes, start, dimensions);
+            case EUCLIDEAN:
+                return VectorQueryScorer.euclideanSimilarity(kernel.squaredDistance(query.getVector(), bytes, start, dimensions));
+            case COSINE:
+                final double score = kernel.dotProduct(query.getVector(), bytes, start, dimensions);
+                if(!storedNorm) {
+                    docVectorNorm = Math.sqrt(kernel.squaredNorm(bytes, start, dimensions));
+                }
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float)(score / (docVectorNorm * queryVectorNorm));
         }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
+    }
 
-        if(vQType == VectorQuery.VectorQueryType.COSINE) {
-            double queryVectorNorm = vector.stream().mapToDouble(x -> Math.pow(x, 2.0)).sum();
-            if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
-            return (float)(score / (Math.sqrt(docVectorNorm) * Math.sqrt(queryVectorNorm)));
+    @Override
+    public float score(PreparedVectorQuery query, RandomAccessInput input, long offset, int length) throws IOException {
+        double docVectorNorm = 0d;
+        if(storedNorm) {
+            docVectorNorm = DenseVectorKernel.floatAt(input, offset);
+            offset += Float.BYTES;
+            length -= Float.BYTES;
         }
+        final int dimensions = length / Float.BYTES;
 
-        return score;
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) kernel.dotProduct(query.getVector(), input, offset, dimensions);
+            case EUCLIDEAN:
+                return VectorQueryScorer.euclideanSimilarity(kernel.squaredDistance(query.getVector(), input, offset, dimensions));
+            case COSINE:
+                final double score = kernel.dotProduct(query.getVector(), input, offset, dimensions);
+                if(!storedNorm) {
+                    docVectorNorm = Math.sqrt(kernel.squaredNorm(input, offset, dimensions));
+                }
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float)(score / (docVectorNorm * queryVectorNorm));
+        }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
     }
 }
@@ -0,0 +1,317 @@
+package com.github.saaay71.solr.query.score;
+
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Dot product and norm loops over dense vectors, either encoded as big endian floats (the {@link com.github.saaay71.solr.VectorUtils}
+ * layout) in byte arrays or in a {@link RandomAccessInput}, or held in contiguous float arrays.
+ * {@link #UNROLLED} keeps four independent accumulators so the loop is not bound by the latency of a single add chain
+ * and stays simple enough for C2 to unroll and vectorize. {@link #SCALAR} accumulates in float, one component at a time,
+ * exactly like the original scorer did, and is bit-for-bit comparable with it.
+ * The kernel used by the scorers can be switched with the {@value #KERNEL_PROPERTY} system property (scalar|unrolled).
+ * The plugin targets Java 8, so there is no jdk.incubator.vector implementation; one can be added as another subclass.
+ */
+public abstract class DenseVectorKernel {
+    public static final String KERNEL_PROPERTY = "solr.vector.kernel";
+    public static final DenseVectorKernel SCALAR = new ScalarKernel();
+    public static final DenseVectorKernel UNROLLED = new UnrolledKernel();
+    private static final DenseVectorKernel DEFAULT = "scalar".equals(System.getProperty(KERNEL_PROPERTY))? SCALAR: UNROLLED;
+
+    public static DenseVectorKernel getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the dot product of query with the length floats encoded in bytes starting at offset
+     */
+    public abstract double dotProduct(double[] query, byte[] bytes, int offset, int length);
+
+    /**
+     * @return the sum of squares of the length floats encoded in bytes starting at offset
+     */
+    public abstract double squaredNorm(byte[] bytes, int offset, int length);
+
+    /**
+     * @return the squared euclidean distance between query and the length floats encoded in bytes starting at offset
+     */
+    public abstract double squaredDistance(double[] query, byte[] bytes, int offset, int length);
+
+    /**
+     * @return the dot product of query with the length floats encoded in input starting at offset, read in place
+     */
+    public abstract double dotProduct(double[] query, RandomAccessInput input, long offset, int length) throws IOException;
+
+    public abstract double squaredNorm(RandomAccessInput input, long offset, int length) throws IOException;
+
+    public abstract double squaredDistance(double[] query, RandomAccessInput input, long offset, int length) throws IOException;
+
+    public abstract double dotProduct(double[] query, float[] vector, int length);
+
+    public abstract double dotProduct(float[] a, float[] b, int length);
+
+    /**
+     * @return a view of the floats encoded in buffer, without copying them
+     */
+    public static FloatBuffer asFloatBuffer(BytesRef buffer) {
+        return ByteBuffer.wrap(buffer.bytes, buffer.offset, buffer.length).slice().asFloatBuffer();
+    }
+
+    /**
+     * Decodes the floats of buffer into dest, which must hold at least buffer.length / Float.BYTES floats.
+     * @return the number of decoded floats
+     */
+    public static int decode(BytesRef buffer, float[] dest) {
+        final int length = buffer.length / Float.BYTES;
+        for(int i = 0, offset = buffer.offset; i < length; ++i, offset += Float.BYTES) {
+            dest[i] = floatAt(buffer.bytes, offset);
+        }
+        return length;
+    }
+
+    // same as PayloadHelper.decodeFloat, kept here so the loops below inline it
+    static float floatAt(byte[] bytes, int offset) {
+        return Float.intBitsToFloat(((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF));
+    }
+
+    static float floatAt(RandomAccessInput input, long offset) throws IOException {
+        return Float.intBitsToFloat(input.readInt(offset));
+    }
+
+    private static final class ScalarKernel extends DenseVectorKernel {
+        @Override
+        public double dotProduct(double[] query, byte[] bytes, int offset, int length) {
+            float score = 0f;
+            for(int i = 0; i < length; ++i) {
+                score += floatAt(bytes, offset + i * Float.BYTES) * query[i];
+            }
+            return score;
+        }
+
+        @Override
+        public double squaredNorm(byte[] bytes, int offset, int length) {
+            double sumOfSquares = 0d;
+            for(int i = 0; i < length; ++i) {
+                final float val = floatAt(bytes, offset + i * Float.BYTES);
+                sumOfSquares += (double) val * val;
+            }
+            return sumOfSquares;
+        }
+
+        @Override
+        public double squaredDistance(double[] query, byte[] bytes, int offset, int length) {
+            double distance = 0d;
+            for(int i = 0; i < length; ++i) {
+                final double diff = floatAt(bytes, offset + i * Float.BYTES) - query[i];
+                distance += diff * diff;
+            }
+            return distance;
+        }
+
+        @Override
+        public double dotProduct(double[] query, RandomAccessInput input, long offset, int length) throws IOException {
+            float score = 0f;
+            for(int i = 0; i < length; ++i) {
+                score += floatAt(input, offset + i * Float.BYTES) * query[i];
+            }
+            return score;
+        }
+
+        @Override
+        public double squaredNorm(RandomAccessInput input, long offset, int length) throws IOException {
+            double sumOfSquares = 0d;
+            for(int i = 0; i < length; ++i) {
+                final float val = floatAt(input, offset + i * Float.BYTES);
+                sumOfSquares += (double) val * val;
+            }
+            return sumOfSquares;
+        }
+
+        @Override
+        public double squaredDistance(double[] query, RandomAccessInput input, long offset, int length) throws IOException {
+            double distance = 0d;
+            for(int i = 0; i < length; ++i) {
+                final double diff = floatAt(input, offset + i * Float.BYTES) - query[i];
+                distance += diff * diff;
+            }
+            return distance;
+        }
+
+        @Override
+        public double dotProduct(double[] query, float[] vector, int length) {
+            float score = 0f;
+            for(int i = 0; i < length; ++i) {
+                score += vector[i] * query[i];
+            }
+            return score;
+        }
+
+        @Override
+        public double dotProduct(float[] a, float[] b, int length) {
+            float score = 0f;
+            for(int i = 0; i < length; ++i) {
+                score += a[i] * b[i];
+            }
+            return score;
+        }
+    }
+
+    private static final class UnrolledKernel extends DenseVectorKernel {
+        @Override
+        public double dotProduct(double[] query, byte[] bytes, int offset, int length) {
+            double acc0 = 0d, acc1 = 0d, acc2 = 0d, acc3 = 0d;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                final int o = offset + i * Float.BYTES;
+                acc0 += floatAt(bytes, o) * query[i];
+                acc1 += floatAt(bytes, o + 4) * query[i + 1];
+                acc2 += floatAt(bytes, o + 8) * query[i + 2];
+                acc3 += floatAt(bytes, o + 12) * query[i + 3];
+            }
+            for(; i < length; ++i) {
+                acc0 += floatAt(bytes, offset + i * Float.BYTES) * query[i];
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+
+        @Override
+        public double squaredNorm(byte[] bytes, int offset, int length) {
+            double acc0 = 0d, acc1 = 0d, acc2 = 0d, acc3 = 0d;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                final int o = offset + i * Float.BYTES;
+                final double v0 = floatAt(bytes, o), v1 = floatAt(bytes, o + 4), v2 = floatAt(bytes, o + 8), v3 = floatAt(bytes, o + 12);
+                acc0 += v0 * v0;
+                acc1 += v1 * v1;
+                acc2 += v2 * v2;
+                acc3 += v3 * v3;
+            }
+            for(; i < length; ++i) {
+                final double v = floatAt(bytes, offset + i * Float.BYTES);
+                acc0 += v * v;
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+
+        @Override
+        public double squaredDistance(double[] query, byte[] bytes, int offset, int length) {
+            double acc0 = 0d, acc1 = 0d, acc2 = 0d, acc3 = 0d;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                final int o = offset + i * Float.BYTES;
+                final double d0 = floatAt(bytes, o) - query[i], d1 = floatAt(bytes, o + 4) - query[i + 1],
+                        d2 = floatAt(bytes, o + 8) - query[i + 2], d3 = floatAt(bytes, o + 12) - query[i + 3];
+                acc0 += d0 * d0;
+                acc1 += d1 * d1;
+                acc2 += d2 * d2;
+                acc3 += d3 * d3;
+            }
+            for(; i < length; ++i) {
+                final double d = floatAt(bytes, offset + i * Float.BYTES) - query[i];
+                acc0 += d * d;
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+
+        @Override
+        public double dotProduct(double[] query, RandomAccessInput input, long offset, int length) throws IOException {
+            double acc0 = 0d, acc1 = 0d, acc2 = 0d, acc3 = 0d;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                final long o = offset + i * Float.BYTES;
+                acc0 += floatAt(input, o) * query[i];
+                acc1 += floatAt(input, o + 4) * query[i + 1];
+                acc2 += floatAt(input, o + 8) * query[i + 2];
+                acc3 += floatAt(input, o + 12) * query[i + 3];
+            }
+            for(; i < length; ++i) {
+                acc0 += floatAt(input, offset + i * Float.BYTES) * query[i];
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+
+        @Override
+        public double squaredNorm(RandomAccessInput input, long offset, int length) throws IOException {
+            double acc0 = 0d, acc1 = 0d, acc2 = 0d, acc3 = 0d;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                final long o = offset + i * Float.BYTES;
+                final double v0 = floatAt(input, o), v1 = floatAt(input, o + 4), v2 = floatAt(input, o + 8), v3 = floatAt(input, o + 12);
+                acc0 += v0 * v0;
+                acc1 += v1 * v1;
+                acc2 += v2 * v2;
+                acc3 += v3 * v3;
+            }
+            for(; i < length; ++i) {
+                final double v = floatAt(input, offset + i * Float.BYTES);
+                acc0 += v * v;
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+
+        @Override
+        public double squaredDistance(double[] query, RandomAccessInput input, long offset, int length) throws IOException {
+            double acc0 = 0d, acc1 = 0d, acc2 = 0d, acc3 = 0d;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                final long o = offset + i * Float.BYTES;
+                final double d0 = floatAt(input, o) - query[i], d1 = floatAt(input, o + 4) - query[i + 1],
+                        d2 = floatAt(input, o + 8) - query[i + 2], d3 = floatAt(input, o + 12) - query[i + 3];
+                acc0 += d0 * d0;
+                acc1 += d1 * d1;
+                acc2 += d2 * d2;
+                acc3 += d3 * d3;
+            }
+            for(; i < length; ++i) {
+                final double d = floatAt(input, offset + i * Float.BYTES) - query[i];
+                acc0 += d * d;
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+
+        @Override
+        public double dotProduct(double[] query, float[] vector, int length) {
+            double acc0 = 0d, acc1 = 0d, acc2 = 0d, acc3 = 0d;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                acc0 += vector[i] * query[i];
+                acc1 += vector[i + 1] * query[i + 1];
+                acc2 += vector[i + 2] * query[i + 2];
+                acc3 += vector[i + 3] * query[i + 3];
+            }
+            for(; i < length; ++i) {
+                acc0 += vector[i] * query[i];
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+
+        @Override
+        public double dotProduct(float[] a, float[] b, int length) {
+            float acc0 = 0f, acc1 = 0f, acc2 = 0f, acc3 = 0f;
+            final int upperBound = length & ~3;
+            int i = 0;
+            for(; i < upperBound; i += 4) {
+                acc0 += a[i] * b[i];
+                acc1 += a[i + 1] * b[i + 1];
+                acc2 += a[i + 2] * b[i + 2];
+                acc3 += a[i + 3] * b[i + 3];
+            }
+            for(; i < length; ++i) {
+                acc0 += a[i] * b[i];
+            }
+            return (acc0 + acc1) + (acc2 + acc3);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.saaay71.solr.query.score;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Scores the full precision query against {@link VectorUtils.VectorType#FLOAT16} document vectors, widening every
+ * half through a lookup table.
+ */
+public class Float16QueryScorer implements VectorQueryScorer {
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for(int i = 0; i < HALF_TO_FLOAT.length; ++i) {
+            HALF_TO_FLOAT[i] = VectorUtils.fromHalfFloat((short) i);
+        }
+    }
+
+    public float score(PreparedVectorQuery query, BytesRef buffer) {
+        final byte[] bytes = buffer.bytes;
+        final int start = buffer.offset + VectorUtils.FLOAT16_HEADER_SIZE;
+        final int dimensions = (buffer.length - VectorUtils.FLOAT16_HEADER_SIZE) / Short.BYTES;
+        final double[] vector = query.getVector();
+
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) dotProduct(vector, bytes, start, dimensions);
+            case EUCLIDEAN:
+                double squaredDistance = 0d;
+                for(int i = 0; i < dimensions; ++i) {
+                    final double diff = vector[i] - valueAt(bytes, start + i * Short.BYTES);
+                    squaredDistance += diff * diff;
+                }
+                return VectorQueryScorer.euclideanSimilarity(squaredDistance);
+            case COSINE:
+                final double docVectorNorm = PayloadHelper.decodeFloat(bytes, buffer.offset);
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float) (dotProduct(vector, bytes, start, dimensions) / (docVectorNorm * queryVectorNorm));
+        }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
+    }
+
+    @Override
+    public float score(PreparedVectorQuery query, RandomAccessInput input, long offset, int length) throws IOException {
+        final long start = offset + VectorUtils.FLOAT16_HEADER_SIZE;
+        final int dimensions = (length - VectorUtils.FLOAT16_HEADER_SIZE) / Short.BYTES;
+        final double[] vector = query.getVector();
+
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) dotProduct(vector, input, start, dimensions);
+            case EUCLIDEAN:
+                double squaredDistance = 0d;
+                for(int i = 0; i < dimensions; ++i) {
+                    final double diff = vector[i] - valueAt(input, start + i * Short.BYTES);
+                    squaredDistance += diff * diff;
+                }
+                return VectorQueryScorer.euclideanSimilarity(squaredDistance);
+            case COSINE:
+                final double docVectorNorm = DenseVectorKernel.floatAt(input, offset);
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float) (dotProduct(vector, input, start, dimensions) / (docVectorNorm * queryVectorNorm));
+        }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
+    }
+
+    private static double dotProduct(double[] vector, RandomAccessInput input, long start, int dimensions) throws IOException {
+        double score = 0d;
+        for(int i = 0; i < dimensions; ++i) {
+            score += vector[i] * valueAt(input, start + i * Short.BYTES);
+        }
+        return score;
+    }
+
+    private static float valueAt(RandomAccessInput input, long offset) throws IOException {
+        return HALF_TO_FLOAT[input.readShort(offset) & 0xffff];
+    }
+
+    private static double dotProduct(double[] vector, byte[] bytes, int start, int dimensions) {
+        double score = 0d;
+        for(int i = 0; i < dimensions; ++i) {
+            score += vector[i] * valueAt(bytes, start + i * Short.BYTES);
+        }
+        return score;
+    }
+
+    private static float valueAt(byte[] bytes, int offset) {
+        return HALF_TO_FLOAT[((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff)];
+    }
+}
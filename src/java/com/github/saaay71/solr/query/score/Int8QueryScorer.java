@@ -0,0 +1,89 @@
+package com.github.saaay71.solr.query.score;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Scores the full precision query against {@link VectorUtils.VectorType#INT8} document vectors without dequantizing
+ * them: with document values offset + scale * step, the dot product is offset * sum(query) + scale * sum(query * step).
+ */
+public class Int8QueryScorer implements VectorQueryScorer {
+
+    public float score(PreparedVectorQuery query, BytesRef buffer) {
+        final byte[] bytes = buffer.bytes;
+        final double offset = PayloadHelper.decodeFloat(bytes, buffer.offset);
+        final double scale = PayloadHelper.decodeFloat(bytes, buffer.offset + Float.BYTES);
+        final int start = buffer.offset + VectorUtils.INT8_HEADER_SIZE;
+        final int dimensions = buffer.length - VectorUtils.INT8_HEADER_SIZE;
+        final double[] vector = query.getVector();
+
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) dotProduct(query, bytes, start, dimensions, offset, scale);
+            case EUCLIDEAN:
+                double squaredDistance = 0d;
+                for(int i = 0; i < dimensions; ++i) {
+                    final double diff = vector[i] - (offset + scale * (bytes[start + i] + 128));
+                    squaredDistance += diff * diff;
+                }
+                return VectorQueryScorer.euclideanSimilarity(squaredDistance);
+            case COSINE:
+                final double docVectorNorm = PayloadHelper.decodeFloat(bytes, buffer.offset + 2 * Float.BYTES);
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float) (dotProduct(query, bytes, start, dimensions, offset, scale) / (docVectorNorm * queryVectorNorm));
+        }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
+    }
+
+    @Override
+    public float score(PreparedVectorQuery query, RandomAccessInput input, long offset, int length) throws IOException {
+        final double valueOffset = DenseVectorKernel.floatAt(input, offset);
+        final double scale = DenseVectorKernel.floatAt(input, offset + Float.BYTES);
+        final long start = offset + VectorUtils.INT8_HEADER_SIZE;
+        final int dimensions = length - VectorUtils.INT8_HEADER_SIZE;
+        final double[] vector = query.getVector();
+
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) dotProduct(query, input, start, dimensions, valueOffset, scale);
+            case EUCLIDEAN:
+                double squaredDistance = 0d;
+                for(int i = 0; i < dimensions; ++i) {
+                    final double diff = vector[i] - (valueOffset + scale * (input.readByte(start + i) + 128));
+                    squaredDistance += diff * diff;
+                }
+                return VectorQueryScorer.euclideanSimilarity(squaredDistance);
+            case COSINE:
+                final double docVectorNorm = DenseVectorKernel.floatAt(input, offset + 2 * Float.BYTES);
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float) (dotProduct(query, input, start, dimensions, valueOffset, scale) / (docVectorNorm * queryVectorNorm));
+        }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
+    }
+
+    private static double dotProduct(PreparedVectorQuery query, RandomAccessInput input, long start, int dimensions,
+                                     double offset, double scale) throws IOException {
+        final double[] vector = query.getVector();
+        double stepSum = 0d;
+        for(int i = 0; i < dimensions; ++i) {
+            stepSum += vector[i] * (input.readByte(start + i) + 128);
+        }
+        return offset * query.getSum() + scale * stepSum;
+    }
+
+    private static double dotProduct(PreparedVectorQuery query, byte[] bytes, int start, int dimensions, double offset, double scale) {
+        final double[] vector = query.getVector();
+        double stepSum = 0d;
+        for(int i = 0; i < dimensions; ++i) {
+            stepSum += vector[i] * (bytes[start + i] + 128);
+        }
+        return offset * query.getSum() + scale * stepSum;
+    }
+}
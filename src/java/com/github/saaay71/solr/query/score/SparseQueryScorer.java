@@ -1,34 +1,81 @@
 package com.github.saaay71.solr.query.score;
 
 import com.github.saaay71.solr.VectorUtils;
-import com.github.saaay71.solr.query.VectorQuery;
-import org.apache.commons.lang3.tuple.Pair;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
 import org.apache.lucene.util.BytesRef;
 
-import java.util.Iterator;
-import java.util.List;
-
 public class SparseQueryScorer implements VectorQueryScorer {
-    public Float score(List<Double> vector, VectorQuery.VectorQueryType vQType, BytesRef buffer) {
-        float score = 0f;
+    private final boolean storedNorm;
+
+    public SparseQueryScorer() {
+        this(false);
+    }
+
+    /**
+     * @param storedNorm whether the buffer starts with the norm of the document vector,
+     *                   see {@link VectorUtils#SPARSE_NORM_VECTOR_BYTE}
+     */
+    public SparseQueryScorer(boolean storedNorm) {
+        this.storedNorm = storedNorm;
+    }
+
+    public float score(PreparedVectorQuery query, BytesRef buffer) {
+        final double[] vector = query.getVector();
+        final byte[] bytes = buffer.bytes;
+        final int maxOffset = buffer.offset + buffer.length;
+        int start = buffer.offset;
         double docVectorNorm = 0d;
-        Iterator<Pair<Integer, Float>> vecIter = VectorUtils.decodeSparse(buffer);
-        while(vecIter.hasNext()) {
-            Pair<Integer, Float> decodedPair = vecIter.next();
-            Float decodedFloat = decodedPair.getRight();
-            score += (decodedFloat) * (vector.get(decodedPair.getLeft()));
-
-            if(vQType == VectorQuery.VectorQueryType.COSINE) {
-                docVectorNorm += Math.pow(decodedFloat, 2.0);
-            }
+        if(storedNorm) {
+            docVectorNorm = PayloadHelper.decodeFloat(bytes, start);
+            start += Float.BYTES;
         }
 
-        if(vQType == VectorQuery.VectorQueryType.COSINE) {
-            double queryVectorNorm = vector.stream().mapToDouble(x -> Math.pow(x, 2.0)).sum();
-            if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
-            return (float)(score / (Math.sqrt(docVectorNorm) * Math.sqrt(queryVectorNorm)));
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) dotProduct(vector, bytes, start, maxOffset);
+            case EUCLIDEAN:
+                // components missing from the document contribute query[i]^2, which the query norm already holds
+                double distance = query.getNorm() * query.getNorm();
+                for(int i = start; i < maxOffset; i += VectorUtils.SPARSE_SIZE) {
+                    final double val = PayloadHelper.decodeFloat(bytes, i + Integer.BYTES);
+                    final double queryVal = valueAt(vector, PayloadHelper.decodeInt(bytes, i));
+                    distance += val * val - 2 * val * queryVal;
+                }
+                return VectorQueryScorer.euclideanSimilarity(Math.max(0d, distance));
+            case COSINE:
+                final double score = dotProduct(vector, bytes, start, maxOffset);
+                if(!storedNorm) {
+                    docVectorNorm = Math.sqrt(squaredNorm(bytes, start, maxOffset));
+                }
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float)(score / (docVectorNorm * queryVectorNorm));
         }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
+    }
 
+    private static double dotProduct(double[] vector, byte[] bytes, int start, int maxOffset) {
+        float score = 0f;
+        for(int i = start; i < maxOffset; i += VectorUtils.SPARSE_SIZE) {
+            score += PayloadHelper.decodeFloat(bytes, i + Integer.BYTES) * valueAt(vector, PayloadHelper.decodeInt(bytes, i));
+        }
         return score;
     }
+
+    /**
+     * @return the query value at the document index, 0 past the end of a query shorter than the document
+     */
+    private static double valueAt(double[] vector, int index) {
+        return index < vector.length? vector[index]: 0d;
+    }
+
+    private static double squaredNorm(byte[] bytes, int start, int maxOffset) {
+        double sumOfSquares = 0d;
+        for(int i = start; i < maxOffset; i += VectorUtils.SPARSE_SIZE) {
+            final float val = PayloadHelper.decodeFloat(bytes, i + Integer.BYTES);
+            sumOfSquares += (double) val * val;
+        }
+        return sumOfSquares;
+    }
 }
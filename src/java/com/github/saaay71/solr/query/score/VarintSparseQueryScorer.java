@@ -0,0 +1,80 @@
+package com.github.saaay71.solr.query.score;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Scores {@link VectorUtils#SPARSE_VARINT_VECTOR_BYTE} document vectors, the buffer starting at their norm. Sparse
+ * queries are merge joined with the sorted document indices, so neither side is densified. Every metric is derived from
+ * the dot product and the two norms.
+ */
+public class VarintSparseQueryScorer implements VectorQueryScorer {
+
+    public float score(PreparedVectorQuery query, BytesRef buffer) {
+        final byte[] bytes = buffer.bytes;
+        final int end = buffer.offset + buffer.length;
+        final double docVectorNorm = VectorUtils.decodeDouble(bytes, buffer.offset);
+        final int start = buffer.offset + Double.BYTES;
+        final double dot = query.isSparse()? mergeDotProduct(query.getSparseIndices(), query.getSparseValues(), bytes, start, end):
+                dotProduct(query.getVector(), bytes, start, end);
+
+        switch (query.getQueryType()) {
+            case DOT:
+                return (float) dot;
+            case EUCLIDEAN:
+                final double squaredDistance = query.getNorm() * query.getNorm() + docVectorNorm * docVectorNorm - 2 * dot;
+                return VectorQueryScorer.euclideanSimilarity(Math.max(0d, squaredDistance));
+            case COSINE:
+                final double queryVectorNorm = query.getNorm();
+                if ((docVectorNorm == 0) || (queryVectorNorm == 0)) return 0f;
+                return (float) (dot / (docVectorNorm * queryVectorNorm));
+        }
+        throw new IllegalArgumentException("unsupported query type: " + query.getQueryType());
+    }
+
+    private static double mergeDotProduct(int[] queryIndices, double[] queryValues, byte[] bytes, int pos, int end) {
+        double score = 0d;
+        int q = 0;
+        int index = 0;
+        while(pos < end && q < queryIndices.length) {
+            int b = bytes[pos++];
+            int delta = b & 0x7f;
+            for(int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = bytes[pos++];
+                delta |= (b & 0x7f) << shift;
+            }
+            index += delta;
+            while(q < queryIndices.length && queryIndices[q] < index) {
+                q++;
+            }
+            if(q < queryIndices.length && queryIndices[q] == index) {
+                score += queryValues[q] * PayloadHelper.decodeFloat(bytes, pos);
+            }
+            pos += Float.BYTES;
+        }
+        return score;
+    }
+
+    private static double dotProduct(double[] vector, byte[] bytes, int pos, int end) {
+        double score = 0d;
+        int index = 0;
+        while(pos < end) {
+            int b = bytes[pos++];
+            int delta = b & 0x7f;
+            for(int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = bytes[pos++];
+                delta |= (b & 0x7f) << shift;
+            }
+            index += delta;
+            if(index >= vector.length) {
+                // indices are sorted, the rest of the document is beyond the query
+                break;
+            }
+            score += vector[index] * PayloadHelper.decodeFloat(bytes, pos);
+            pos += Float.BYTES;
+        }
+        return score;
+    }
+}
@@ -1,11 +1,51 @@
 package com.github.saaay71.solr.query.score;
 
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
 import com.github.saaay71.solr.query.VectorQuery;
+import org.apache.lucene.store.RandomAccessInput;
 import org.apache.lucene.util.BytesRef;
 
+import java.io.IOException;
 import java.util.List;
 
 @FunctionalInterface
 public interface VectorQueryScorer {
-    Float score(List<Double> inputVec, VectorQuery.VectorQueryType vQType, BytesRef buffer);
+    /**
+     * Scores the encoded document vector in buffer against the prepared query.
+     * Implementations decode straight from the buffer's byte array and must not allocate per component.
+     */
+    float score(PreparedVectorQuery query, BytesRef buffer);
+
+    /**
+     * Scores the length bytes of the encoded document vector at offset in input, such as a record of a columnar vector
+     * file, see {@link com.github.saaay71.solr.codec.ColumnarVectorValues}. Dense layouts are read in place, this
+     * default copies the vector to score it like {@link #score(PreparedVectorQuery, BytesRef)} does.
+     */
+    default float score(PreparedVectorQuery query, RandomAccessInput input, long offset, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        for(int i = 0; i < length; ++i) {
+            bytes[i] = input.readByte(offset + i);
+        }
+        return score(query, new BytesRef(bytes));
+    }
+
+    default float score(double[] inputVec, VectorQuery.VectorQueryType vQType, BytesRef buffer) {
+        return score(new PreparedVectorQuery(inputVec, VectorUtils.VectorType.AUTO, vQType), buffer);
+    }
+
+    /**
+     * Turns a squared euclidean distance into a similarity in (0, 1], higher is closer.
+     */
+    static float euclideanSimilarity(double squaredDistance) {
+        return (float) (1d / (1d + Math.sqrt(squaredDistance)));
+    }
+
+    default Float score(List<Double> inputVec, VectorQuery.VectorQueryType vQType, BytesRef buffer) {
+        final double[] vector = new double[inputVec.size()];
+        for(int i = 0; i < vector.length; ++i) {
+            vector[i] = inputVec.get(i);
+        }
+        return score(vector, vQType, buffer);
+    }
 }
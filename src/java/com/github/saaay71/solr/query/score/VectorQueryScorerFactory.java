@@ -8,11 +8,20 @@ import java.util.Map;
 
 public class VectorQueryScorerFactory {
     public static final Map<VectorUtils.VectorType, VectorQueryScorer> scorers;
+    private static final VectorQueryScorer denseStoredNormScorer = new DenseQueryScorer(true);
+    private static final VectorQueryScorer sparseStoredNormScorer = new SparseQueryScorer(true);
+    private static final VectorQueryScorer varintSparseScorer = new VarintSparseQueryScorer();
 
     static {
-        scorers = new HashMap<>(2);
+        scorers = new HashMap<>(4);
         scorers.put(VectorUtils.VectorType.SPARSE, new SparseQueryScorer());
         scorers.put(VectorUtils.VectorType.DENSE, new DenseQueryScorer());
+        scorers.put(VectorUtils.VectorType.INT8, new Int8QueryScorer());
+        scorers.put(VectorUtils.VectorType.FLOAT16, new Float16QueryScorer());
+    }
+
+    public static VectorQueryScorer getScorer(VectorUtils.VectorType vectorType) {
+        return safeGet(vectorType);
     }
 
     public static VectorQueryScorer getScorer(VectorUtils.VectorType vectorType, BytesRef buffer) {
@@ -20,13 +29,37 @@ public class VectorQueryScorerFactory {
             return scorers.get(vectorType);
         }
 
-        if(buffer.bytes[buffer.offset] == VectorUtils.DENSE_VECTOR_BYTE) {
-            shiftBytesRef(buffer);
+        final byte marker = buffer.bytes[buffer.offset];
+        shiftBytesRef(buffer);
+        return getScorer(marker);
+    }
+
+    /**
+     * @return the scorer of {@link VectorUtils.VectorType#AUTO} vectors starting with marker
+     */
+    public static VectorQueryScorer getScorer(byte marker) {
+        if(marker == VectorUtils.DENSE_VECTOR_BYTE) {
             return safeGet(VectorUtils.VectorType.DENSE);
         }
-
-        shiftBytesRef(buffer);
-        return safeGet(VectorUtils.VectorType.SPARSE);
+        if(marker == VectorUtils.SPARSE_VECTOR_BYTE) {
+            return safeGet(VectorUtils.VectorType.SPARSE);
+        }
+        if(marker == VectorUtils.DENSE_NORM_VECTOR_BYTE) {
+            return denseStoredNormScorer;
+        }
+        if(marker == VectorUtils.SPARSE_NORM_VECTOR_BYTE) {
+            return sparseStoredNormScorer;
+        }
+        if(marker == VectorUtils.SPARSE_VARINT_VECTOR_BYTE) {
+            return varintSparseScorer;
+        }
+        if(marker == VectorUtils.INT8_VECTOR_BYTE) {
+            return safeGet(VectorUtils.VectorType.INT8);
+        }
+        if(marker == VectorUtils.FLOAT16_VECTOR_BYTE) {
+            return safeGet(VectorUtils.VectorType.FLOAT16);
+        }
+        throw new RuntimeException("unknown vector encoding marker \"" + marker + "\"");
     }
 
     private static VectorQueryScorer safeGet(VectorUtils.VectorType vectorType) {
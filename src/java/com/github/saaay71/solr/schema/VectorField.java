@@ -0,0 +1,47 @@
+package com.github.saaay71.solr.schema;
+
+import com.github.saaay71.solr.VectorUtils;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.solr.schema.BinaryField;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary field holding vectors encoded by {@link com.github.saaay71.solr.VectorUtils}.
+ * Unlike {@link BinaryField} the encoded bytes are also written to {@link org.apache.lucene.index.BinaryDocValues},
+ * so the scorers can read them per segment without loading stored documents.
+ * docValues are enabled unless the field type explicitly sets docValues="false".
+ */
+public class VectorField extends BinaryField {
+
+    @Override
+    protected void init(IndexSchema schema, Map<String, String> args) {
+        super.init(schema, args);
+        if((falseProperties & DOC_VALUES) == 0) {
+            properties |= DOC_VALUES;
+        }
+    }
+
+    @Override
+    protected void checkSupportsDocValues() {
+        // binary docValues are supported
+    }
+
+    @Override
+    public List<IndexableField> createFields(SchemaField field, Object value) {
+        List<IndexableField> fields = new ArrayList<>(2);
+        IndexableField storedField = createField(field, value);
+        if(storedField != null) {
+            fields.add(storedField);
+        }
+        if(field.hasDocValues() && value != null) {
+            fields.add(new BinaryDocValuesField(field.getName(), VectorUtils.toBytesRef(value)));
+        }
+        return fields;
+    }
+}
@@ -1,37 +1,78 @@
 package com.github.saaay71.solr.updateprocessor;
 
 import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.IVFModel;
+import com.github.saaay71.solr.query.LSHModel;
 import com.github.saaay71.solr.query.LSHUtils;
-import info.debatty.java.lsh.LSHSuperBit;
 
+import com.codahale.metrics.Timer;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.metrics.SolrMetricProducer;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.MergeIndexesCommand;
+import org.apache.solr.update.RollbackUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-public class LSHUpdateProcessorFactory extends UpdateRequestProcessorFactory {
+public class LSHUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware, SolrMetricProducer {
 
     private static final Random random = new Random();
     public static final String DEFAULT_LSH_FIELD_NAME = "_lsh_hash_";
     public static final String DEFAULT_BINARY_FIELD_NAME = "_vector_";
+    // full precision copy of quantized vectors, for exact reranking
+    public static final String DEFAULT_EXACT_FIELD_NAME = "_vector_exact_";
+    // nearest IVF centroid, as "<model version>_<centroid>"
+    public static final String DEFAULT_IVF_FIELD_NAME = "_ivf_centroid_";
 
     private String fieldName;
     private Long seed;
     private Integer buckets;
     private Integer stages;
     private Integer dimensions;
+    private boolean storeNorms;
+    private boolean normalize;
+    private boolean storeExact;
+    private VectorUtils.VectorType quantize;
+    private VectorUtils.VectorFormat vectorFormat;
+    private LSHModel model;
+    private String ivfModelResource;
+    private IVFModel ivfModel;
+    private int batchSize;
+    private int threads;
+    private ExecutorService executor;
+    private boolean metricsEnabled;
+    // null when metrics are disabled
+    private Timer encodeTimer;
+    private Timer hashTimer;
 
     @Override
     public void init( NamedList args )
@@ -43,10 +84,97 @@ public class LSHUpdateProcessorFactory extends UpdateRequestProcessorFactory {
         dimensions = new Integer(getArgString(args, "dimensions"));
         Object argFieldName = args.get("field");
         fieldName = argFieldName==null? DEFAULT_LSH_FIELD_NAME: (String) argFieldName;
+        Object argStoreNorms = args.get("storeNorms");
+        storeNorms = argStoreNorms != null && Boolean.parseBoolean(argStoreNorms.toString());
+        Object argNormalize = args.get("normalize");
+        normalize = argNormalize != null && Boolean.parseBoolean(argNormalize.toString());
+        Object argStoreExact = args.get("storeExact");
+        storeExact = argStoreExact != null && Boolean.parseBoolean(argStoreExact.toString());
+        Object argQuantize = args.get("quantize");
+        if(argQuantize != null) {
+            try {
+                quantize = VectorUtils.VectorType.valueOf(argQuantize.toString().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                quantize = null;
+            }
+            if(quantize == null || !quantize.isQuantized()) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, LSHUpdateProcessorFactory.class.getName()
+                        + " \"quantize\" must be one of int8, float16, got: \"" + argQuantize + "\"");
+            }
+        }
+        Object argVectorFormat = args.get("vectorFormat");
+        vectorFormat = argVectorFormat == null? VectorUtils.VectorFormat.TEXT: VectorUtils.VectorFormat.fromString(argVectorFormat.toString());
+        Object argIvfModel = args.get("ivfModel");
+        ivfModelResource = argIvfModel == null? null: argIvfModel.toString();
+        Object argBatchSize = args.get("batchSize");
+        batchSize = argBatchSize == null? 1: Integer.parseInt(argBatchSize.toString());
+        Object argThreads = args.get("threads");
+        threads = argThreads == null? Runtime.getRuntime().availableProcessors(): Integer.parseInt(argThreads.toString());
+        Object argMetrics = args.get("metrics");
+        metricsEnabled = argMetrics == null || Boolean.parseBoolean(argMetrics.toString());
+        if(batchSize < 1 || threads < 1) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, LSHUpdateProcessorFactory.class.getName()
+                    + " requires a positive \"batchSize\" and \"threads\"");
+        }
+        try {
+            model = new LSHModel(stages, buckets, dimensions, seed);
+        } catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e.getMessage(), e);
+        }
+        // the request thread prepares one share of every batch itself
+        if(batchSize > 1 && threads > 1) {
+            executor = ExecutorUtil.newMDCAwareFixedThreadPool(threads - 1, new DefaultSolrThreadFactory("lshUpdate"));
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        if(ivfModelResource != null) {
+            ivfModel = loadIVFModel(core);
+        }
+        // the timers are shared by the LSH processors of all the chains of the core
+        if(metricsEnabled) {
+            core.getCoreMetricManager().registerMetricProducer(LSHUpdateProcessorFactory.class.getName(), this);
+        }
+        if(executor == null) {
+            return;
+        }
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+                ExecutorUtil.shutdownAndAwaitTermination(executor);
+            }
+        });
+    }
+
+    @Override
+    public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+        final String category = SolrInfoBean.Category.UPDATE.toString();
+        encodeTimer = manager.registry(registryName).timer(SolrMetricManager.mkName("encode", category, scope));
+        hashTimer = manager.registry(registryName).timer(SolrMetricManager.mkName("hash", category, scope));
+    }
+
+    private IVFModel loadIVFModel(SolrCore core) {
+        final IVFModel loaded;
+        try(InputStream input = core.getResourceLoader().openResource(ivfModelResource)) {
+            loaded = IVFModel.read(input);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Could not load IVF model \"" + ivfModelResource + "\"", e);
+        }
+        if(loaded.getDimensions() != dimensions) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "IVF model \"" + ivfModelResource + "\" has "
+                    + loaded.getDimensions() + " dimensions, the chain has " + dimensions);
+        }
+        return loaded;
     }
 
     public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
-        return new LSHUpdateProcessor(req.getSchema(), fieldName, stages, buckets, dimensions, seed, next);
+        return new LSHUpdateProcessor(req.getSchema(), fieldName, model, ivfModel, storeNorms, normalize, storeExact, quantize, vectorFormat,
+                batchSize, threads, executor, encodeTimer, hashTimer, next);
     }
 
     private Long genRandomSeed() {
@@ -77,36 +205,279 @@ public class LSHUpdateProcessorFactory extends UpdateRequestProcessorFactory {
     public Integer getStages() {
         return stages;
     }
+
+    /**
+     * @return the LSH model of this factory, shared by its processors and the query parser
+     */
+    public LSHModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return the IVF model loaded from the "ivfModel" resource once per core, null when not configured
+     */
+    public IVFModel getIVFModel() {
+        return ivfModel;
+    }
+
+    public boolean isStoreNorms() {
+        return storeNorms;
+    }
+
+    public boolean isNormalize() {
+        return normalize;
+    }
+
+    public boolean isStoreExact() {
+        return storeExact;
+    }
+
+    /**
+     * @return INT8 or FLOAT16 when vectors are quantized, null otherwise
+     */
+    public VectorUtils.VectorType getQuantize() {
+        return quantize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
 }
 
+/**
+ * Encodes and hashes the vector of every added document. With a batch size above 1 the commands are held back until the
+ * batch is full, or until any other command or the end of the request, then prepared on the worker pool and forwarded
+ * in their original order.
+ */
 class LSHUpdateProcessor extends UpdateRequestProcessor {
 
-    private final LSHSuperBit superBit;
+    private final LSHModel model;
+    private final IVFModel ivfModel;
     private final SchemaField field;
     private final int vecDimensions;
     private final VectorUtils.VectorType vecType;
+    private final boolean storeNorms;
+    private final boolean normalize;
+    private final boolean storeExact;
+    private final VectorUtils.VectorType quantization;
+    private final VectorUtils.VectorFormat vectorFormat;
+    private final int batchSize;
+    private final int threads;
+    private final ExecutorService executor;
+    private final List<AddUpdateCommand> pending;
+    private final Timer encodeTimer;
+    private final Timer hashTimer;
 
-    public LSHUpdateProcessor(IndexSchema schema, String fieldName, int stages, int buckets, int dimensions, Long seed, UpdateRequestProcessor next) {
+    /**
+     * @param encodeTimer times parsing and encoding every vector, null to not time it
+     * @param hashTimer times hashing every vector and assigning its IVF centroid, null to not time it
+     */
+    public LSHUpdateProcessor(IndexSchema schema, String fieldName, LSHModel model, IVFModel ivfModel, boolean storeNorms,
+                              boolean normalize, boolean storeExact, VectorUtils.VectorType quantize,
+                              VectorUtils.VectorFormat vectorFormat, int batchSize, int threads, ExecutorService executor,
+                              Timer encodeTimer, Timer hashTimer, UpdateRequestProcessor next) {
         super(next);
-        superBit = new LSHSuperBit(stages, buckets, dimensions, seed);
+        this.model = model;
+        this.ivfModel = ivfModel;
         field = schema.getField(fieldName);
-        final String vecTypeArg = ((Map<String, Object>) field.getArgs()).getOrDefault("vectorType","AUTO").toString().toUpperCase();
-        vecType = VectorUtils.VectorType.valueOf(vecTypeArg);
-        vecDimensions = dimensions;
+        vecType = VectorUtils.getVectorType(field);
+        vecDimensions = model.getDimensions();
+        // norms are kept in the header of self describing (AUTO) vectors, normalizing alone works with any type
+        this.storeNorms = vecType == VectorUtils.VectorType.AUTO && (storeNorms || normalize);
+        this.normalize = normalize;
+        this.storeExact = storeExact;
+        // quantized field types are always quantized, AUTO ones when the chain asks for it and behind a marker byte
+        if(quantize != null && vecType != VectorUtils.VectorType.AUTO && vecType != quantize) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "cannot quantize vectors of field \"" + fieldName
+                    + "\" with vector type " + vecType.name());
+        }
+        this.quantization = vecType.isQuantized()? vecType: quantize;
+        this.vectorFormat = vectorFormat;
+        this.batchSize = batchSize;
+        this.threads = executor == null? 1: threads;
+        this.executor = executor;
+        this.pending = new ArrayList<>(batchSize);
+        this.encodeTimer = encodeTimer;
+        this.hashTimer = hashTimer;
     }
 
     @Override
     public void processAdd(AddUpdateCommand cmd) throws IOException {
-        SolrInputDocument cmdDoc = cmd.getSolrInputDocument();
+        if(batchSize == 1) {
+            prepare(cmd.getSolrInputDocument());
+            super.processAdd(cmd);
+            return;
+        }
+        // loaders reuse their command for the next document
+        pending.add((AddUpdateCommand) cmd.clone());
+        if(pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+        flush();
+        super.processDelete(cmd);
+    }
+
+    @Override
+    public void processMergeIndexes(MergeIndexesCommand cmd) throws IOException {
+        flush();
+        super.processMergeIndexes(cmd);
+    }
+
+    @Override
+    public void processCommit(CommitUpdateCommand cmd) throws IOException {
+        // a failed add of the batch does not swallow the commit
+        try {
+            flush();
+        } finally {
+            super.processCommit(cmd);
+        }
+    }
+
+    @Override
+    public void processRollback(RollbackUpdateCommand cmd) throws IOException {
+        try {
+            flush();
+        } finally {
+            super.processRollback(cmd);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            flush();
+        } finally {
+            super.finish();
+        }
+    }
+
+    private void prepare(SolrInputDocument cmdDoc) {
         if(cmdDoc.containsKey(field.getName())) {
-            final String vectorStr = (String) cmdDoc.getFieldValue(field.getName());
-            cmdDoc.setField(LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME,
-                    VectorUtils.encode(vectorStr, vecType).bytes);
-            int[] hashValues = superBit.hash(VectorUtils.parseInputVec(vectorStr, vecDimensions));
+            final long encodeStart = encodeTimer == null? 0L: System.nanoTime();
+            // the whole collection when the vector is given as a list of numbers
+            final Object value = cmdDoc.getField(field.getName()).getValue();
+            final VectorUtils.ParsedVector vector;
+            BytesRef encoded = null;
+            if(value instanceof String && vectorFormat == VectorUtils.VectorFormat.TEXT) {
+                vector = VectorUtils.parse((String) value);
+            } else if(value instanceof String || value instanceof byte[] || value instanceof ByteBuffer) {
+                final BytesRef bytes = VectorUtils.toBytesRef(value);
+                if(vectorFormat == VectorUtils.VectorFormat.FLOATS_LE) {
+                    vector = VectorUtils.decodeLittleEndian(bytes);
+                } else {
+                    vector = VectorUtils.decode(bytes, vecType);
+                    if(!normalize && quantization == null && VectorUtils.hasLayout(bytes, vecType, storeNorms)) {
+                        encoded = bytes;
+                    }
+                }
+            } else {
+                vector = VectorUtils.parseNumbers(value);
+            }
+            if(!(value instanceof String)) {
+                // binary and numeric vectors only live in the encoded field
+                cmdDoc.removeField(field.getName());
+            }
+            if(encoded == null && quantization != null) {
+                encoded = vector.encodeQuantized(quantization, vecType == VectorUtils.VectorType.AUTO, normalize);
+            } else if(encoded == null) {
+                encoded = vector.encode(vecType, storeNorms, normalize);
+            } else if(encoded.offset != 0 || encoded.length != encoded.bytes.length) {
+                encoded = BytesRef.deepCopyOf(encoded);
+            }
+            cmdDoc.setField(LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME, encoded.bytes);
+            if(storeExact) {
+                cmdDoc.setField(LSHUpdateProcessorFactory.DEFAULT_EXACT_FIELD_NAME, vector.encode(VectorUtils.VectorType.AUTO, true, normalize).bytes);
+            }
+            final long hashStart = encodeTimer == null && hashTimer == null? 0L: System.nanoTime();
+            if(encodeTimer != null) {
+                encodeTimer.update(hashStart - encodeStart, TimeUnit.NANOSECONDS);
+            }
+            final double[] hashVector = vector.toHashVector(vecDimensions);
+            int[] hashValues = model.hash(hashVector);
             List<String> hashStringValues = LSHUtils.getLSHStringStream(hashValues).collect(Collectors.toList());
             cmdDoc.setField(LSHUpdateProcessorFactory.DEFAULT_LSH_FIELD_NAME, hashStringValues);
+            if(ivfModel != null) {
+                try {
+                    cmdDoc.setField(LSHUpdateProcessorFactory.DEFAULT_IVF_FIELD_NAME, ivfModel.term(ivfModel.assign(hashVector)));
+                } catch (IllegalArgumentException e) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage(), e);
+                }
+            }
+            if(hashTimer != null) {
+                hashTimer.update(System.nanoTime() - hashStart, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Prepares the documents of the range, keeping failures aside so the other commands are still forwarded.
+     */
+    private void prepare(List<AddUpdateCommand> commands, int from, int to, RuntimeException[] failures) {
+        for(int i = from; i < to; i++) {
+            try {
+                prepare(commands.get(i).getSolrInputDocument());
+            } catch (RuntimeException e) {
+                failures[i] = e;
+            }
         }
-        super.processAdd(cmd);
     }
-}
 
+    /**
+     * Prepares and forwards the pending adds, in order. The commands that fail do not stop the others: their failures
+     * are reported together once the batch is forwarded, against their own document ids.
+     */
+    private void flush() throws IOException {
+        if(pending.isEmpty()) {
+            return;
+        }
+        final List<AddUpdateCommand> commands = new ArrayList<>(pending);
+        pending.clear();
+        final RuntimeException[] failures = new RuntimeException[commands.size()];
+        final int share = (commands.size() + threads - 1) / threads;
+        final List<Future<?>> futures = new ArrayList<>(threads - 1);
+        for(int from = share; from < commands.size(); from += share) {
+            final int start = from, end = Math.min(commands.size(), from + share);
+            futures.add(executor.submit(() -> prepare(commands, start, end, failures)));
+        }
+        prepare(commands, 0, Math.min(share, commands.size()), failures);
+        try {
+            for(Future<?> future: futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Interrupted while preparing vectors", e);
+        } catch (ExecutionException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Failed to prepare vectors", e.getCause());
+        }
+        final List<String> failed = new ArrayList<>();
+        RuntimeException first = null;
+        for(int i = 0; i < commands.size(); i++) {
+            if(failures[i] == null) {
+                super.processAdd(commands.get(i));
+                continue;
+            }
+            failed.add(commands.get(i).getPrintableId() + ": " + failures[i].getMessage());
+            if(first == null) {
+                first = failures[i];
+            }
+        }
+        if(first == null) {
+            return;
+        }
+        final SolrException error = new SolrException(first instanceof SolrException?
+                SolrException.ErrorCode.getErrorCode(((SolrException) first).code()): SolrException.ErrorCode.BAD_REQUEST,
+                "Could not prepare the vectors of " + failed.size() + " of " + commands.size()
+                        + " batched documents, the others were added: " + String.join("; ", failed), first);
+        for(RuntimeException failure: failures) {
+            if(failure != null && failure != first) {
+                error.addSuppressed(failure);
+            }
+        }
+        throw error;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.saaay71.solr;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Random;
+
+public class VectorParserTest extends LuceneTestCase {
+
+    @Test
+    public void parsesLikeTheJdk() {
+        final Random random = random();
+        for(int i = 0; i < 100000; i++) {
+            final String value = randomNumber(random);
+            final float[] floats = new float[1];
+            final double[] doubles = new double[1];
+            assertEquals(1, VectorParser.parseDense(value, floats));
+            assertEquals(1, VectorParser.parseDense(value, doubles));
+            assertEquals(value, Float.floatToIntBits(Float.parseFloat(value)), Float.floatToIntBits(floats[0]));
+            assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(doubles[0]));
+        }
+    }
+
+    @Test
+    public void roundsHalfWayValuesLikeFloatParseFloat() {
+        // 1 + 2^-24 lies exactly half way between two floats, ties go to the even one
+        final String[] values = {"1.000000059604644775390625", "16777217", "0.50000002980232238769531250", "33554435"};
+        for(String value: values) {
+            final float[] floats = new float[1];
+            VectorParser.parseDense(value, floats);
+            assertEquals(value, Float.floatToIntBits(Float.parseFloat(value)), Float.floatToIntBits(floats[0]));
+        }
+    }
+
+    @Test
+    public void parsesVectors() {
+        final String dense = " 1.55, 3.53,2.3 ,-0.7,3.44e1, 2,";
+        final float[] values = new float[VectorParser.size(dense)];
+        assertEquals(6, values.length);
+        assertEquals(6, VectorParser.parseDense(dense, values));
+        assertArrayEquals(new float[] {1.55f, 3.53f, 2.3f, -0.7f, 34.4f, 2f}, values, 0f);
+
+        final String sparse = "0|1.55,3|3.53, 12|NaN";
+        assertTrue(VectorParser.isSparse(sparse));
+        final int[] indices = new int[VectorParser.size(sparse)];
+        final float[] sparseValues = new float[indices.length];
+        assertEquals(3, VectorParser.parseSparse(sparse, indices, sparseValues));
+        assertArrayEquals(new int[] {0, 3, 12}, indices);
+        assertArrayEquals(new float[] {1.55f, 3.53f, Float.NaN}, sparseValues, 0f);
+
+        assertEquals(0, VectorParser.size(" "));
+        assertEquals(0, VectorParser.parseDense("", new float[0]));
+    }
+
+    @Test
+    public void reportsErrorPositions() {
+        assertError("1.5,2.x,3", new float[3], "at position 4");
+        assertError("1.5,,3", new float[3], "at position 4");
+        assertError("1,2,3", new float[2], "more than 2 values at position 4");
+        SolrException e = expectThrows(SolrException.class, () -> VectorParser.parseSparse("0|1,a|2", new int[2], new float[2]));
+        assertTrue(e.getMessage(), e.getMessage().contains("invalid index \"a\" at position 4"));
+        e = expectThrows(SolrException.class, () -> VectorParser.parseSparse("0|1,2", new int[2], new float[2]));
+        assertTrue(e.getMessage(), e.getMessage().contains("at position 4"));
+    }
+
+    private static void assertError(String input, float[] values, String expected) {
+        SolrException e = expectThrows(SolrException.class, () -> VectorParser.parseDense(input, values));
+        assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+        assertTrue(e.getMessage(), e.getMessage().contains(expected));
+    }
+
+    private static String randomNumber(Random random) {
+        switch(random.nextInt(5)) {
+            case 0:
+                return Float.toString((float) (random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10)));
+            case 1:
+                return Double.toString(random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20));
+            case 2:
+                return String.format(Locale.ROOT, "%." + random.nextInt(12) + "f", random.nextDouble() * 100 - 50);
+            case 3:
+                // values close to float midpoints
+                float f = Float.intBitsToFloat(random.nextInt(0x7f000000));
+                return new BigDecimal((double) f).add(new BigDecimal((double) Math.ulp(f) / 2)).toPlainString();
+            default:
+                return Integer.toString(random.nextInt()) + "e" + (random.nextInt(60) - 30);
+        }
+    }
+}
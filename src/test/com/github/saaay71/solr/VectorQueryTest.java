@@ -1,17 +1,52 @@
 package com.github.saaay71.solr;
 
+import com.github.saaay71.solr.codec.ColumnarVectorValues;
+import com.github.saaay71.solr.query.HnswGraphCache;
+import com.github.saaay71.solr.query.VectorQParserPlugin;
+import com.github.saaay71.solr.query.VectorQuery;
+import com.github.saaay71.solr.query.VectorReRankQuery;
+import com.github.saaay71.solr.query.VectorScoreQuery;
 import com.github.saaay71.solr.updateprocessor.LSHUpdateProcessorFactory;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.Iterables;
 import info.debatty.java.lsh.LSHSuperBit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.JSONTestUtil;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ContentStreamBase;
 import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.util.RefCounted;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -163,6 +198,721 @@ public class VectorQueryTest extends SolrTestCaseJ4 {
                 "//doc[1]/float[@name='score'][.='1.0']",
                 "count(//float[@name='score'][.='1.0'])=5"
         );
+
+        // sparse queries, in any index order, are merge joined with the documents
+        assertQ(req("q", "{!vp f=vector vector=\"5|2.33,0|1.55,1|3.53,2|2.3,3|0.7,4|3.44\"}",
+                "fl", "id,score"),
+                "//*[@numFound='10']",
+                "count(//float[@name='score'][.='1.0'])=5",
+                "count(//float[@name='score'][. > 0.7612 and . < 0.7613])=5"
+        );
+        assertQ(req("q", "{!vp f=vector vector=\"" + vectors[0] + "\" metric=\"euclidean\"}",
+                "fl", "id,score"),
+                "count(//float[@name='score'][. > 0.999])=5"
+        );
+        assertQ(req("q", "{!vp f=vector vector=\"" + vectors[0] + "\" lsh=\"true\"}",
+                "fl", "id,score"),
+                "//*[@numFound='5']"
+        );
+    }
+
+    @Test
+    public void vectorDocValuesTest() throws Exception {
+        indexSampleDenseData();
+
+        RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+        try {
+            assertEquals(DocValuesType.BINARY, searcher.get().getSlowAtomicReader().getFieldInfos()
+                    .fieldInfo(LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME).getDocValuesType());
+            // the dense vectors all have the same length, the test schema writes them to columnar vector files
+            for(LeafReaderContext context: searcher.get().getIndexReader().leaves()) {
+                assertTrue(context.reader().getBinaryDocValues(LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME)
+                        instanceof ColumnarVectorValues);
+            }
+        } finally {
+            searcher.decref();
+        }
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}",
+                "fl", "id,score,vector"),
+                "//*[@numFound='10']",
+                "//doc[1]/float[@name='score'][.='1.0']",
+                "//doc[1]/str[@name='vector'][.='" + denseVectors[0] + "']",
+                "count(//float[@name='score'][.='1.0'])=5"
+        );
+    }
+
+    @Test
+    public void storedVectorsFallbackTest() throws Exception {
+        indexSampleDenseData();
+
+        // a segment written before the vectors had docValues only holds them in stored fields
+        final BytesRef encoded;
+        RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+        try {
+            final SolrIndexSearcher indexSearcher = searcher.get();
+            final int doc = indexSearcher.search(new TermQuery(new Term("vector", denseVectors[0])), 1).scoreDocs[0].doc;
+            encoded = BytesRef.deepCopyOf(indexSearcher.doc(doc).getBinaryValue(LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME));
+        } finally {
+            searcher.decref();
+        }
+        RefCounted<IndexWriter> writer = h.getCore().getSolrCoreState().getIndexWriter(h.getCore());
+        try {
+            for(int i = 0; i < 4; i++) {
+                final Document document = new Document();
+                document.add(new StringField("id", String.valueOf(idCounter.incrementAndGet()), Store.YES));
+                document.add(new StringField("vector", denseVectors[0], Store.YES));
+                document.add(new StoredField(LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME, encoded));
+                writer.get().addDocument(document);
+            }
+        } finally {
+            writer.decref();
+        }
+        assertU(commit());
+
+        searcher = h.getCore().getSearcher();
+        try {
+            int storedOnly = 0;
+            for(LeafReaderContext context: searcher.get().getIndexReader().leaves()) {
+                final FieldInfo fieldInfo = context.reader().getFieldInfos().fieldInfo(LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME);
+                storedOnly += fieldInfo.getDocValuesType() == DocValuesType.NONE? 1: 0;
+            }
+            assertEquals(1, storedOnly);
+        } finally {
+            searcher.decref();
+        }
+
+        // the stored vectors score like the docValues ones
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}",
+                "fl", "id,score", "rows", "14"),
+                "//*[@numFound='14']",
+                "count(//float[@name='score'][.='1.0'])=9",
+                "count(//doc[position() <= 9]/str[@name='id'][. > 10])=4"
+        );
+    }
+
+    @Test
+    public void storedNormsTest() throws Exception {
+        for(int i = 0; i < 10; i++) {
+            addAndGetVersion(sdoc("id", idCounter.incrementAndGet(), "vector", denseVectorsIter.next()),
+                    params("update.chain", "LSH_NORMS", "wt", "json"));
+            addAndGetVersion(sdoc("id", idCounter.incrementAndGet(), "vector", vectorsIter.next()),
+                    params("update.chain", "LSH_NORMS", "wt", "json"));
+        }
+        assertU(commit());
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}",
+                "fl", "id,score,vector", "rows", "20"),
+                "//*[@numFound='20']",
+                "count(//float[@name='score'][. > 0.9999 and . < 1.0001])=10",
+                "count(//float[@name='score'][. > 0.7612 and . < 0.7613])=10"
+        );
+    }
+
+    @Test
+    public void metricTest() throws Exception {
+        indexSampleDenseData();
+
+        // dot product favours the longer vector, 44.5087 against 37.9059
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" metric=\"dot\"}",
+                "fl", "id,score,vector"),
+                "//*[@numFound='10']",
+                "//doc[1]/str[@name='vector'][.='" + denseVectors[1] + "']",
+                "count(//float[@name='score'][. > 44.508 and . < 44.509])=5",
+                "count(//float[@name='score'][. > 37.905 and . < 37.906])=5"
+        );
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" cosine=\"false\"}",
+                "fl", "id,score,vector"),
+                "//*[@numFound='10']",
+                "//doc[1]/str[@name='vector'][.='" + denseVectors[1] + "']"
+        );
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" metric=\"euclidean\"}",
+                "fl", "id,score,vector"),
+                "//*[@numFound='10']",
+                "//doc[1]/str[@name='vector'][.='" + denseVectors[0] + "']",
+                "count(//float[@name='score'][. > 0.9999])=5",
+                "count(//float[@name='score'][. < 0.2])=5"
+        );
+
+        assertQEx("unknown metric", req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" metric=\"manhattan\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void parallelScoringTest() throws Exception {
+        // two segments, cut into slices of 3 docs by the test config
+        indexSampleDenseData();
+        indexSampleDenseData();
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" parallel=\"true\"}",
+                "fl", "id,score", "rows", "7"),
+                "//*[@numFound='7']",
+                "count(//float[@name='score'][. > 0.9999])=7"
+        );
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" parallel=\"true\" topK=\"12\" threads=\"8\"}",
+                "fl", "id,score", "rows", "20"),
+                "//*[@numFound='12']",
+                "count(//float[@name='score'][. > 0.9999])=10",
+                "count(//float[@name='score'][. > 0.7612 and . < 0.7613])=2"
+        );
+
+        // the parallel hits are the sequential top hits
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" parallel=\"true\" topK=\"12\" metric=\"dot\"}",
+                "fl", "id", "rows", "12"),
+                expectedIds("{!vp f=vector vector=\"" + denseVectors[0] + "\" metric=\"dot\"}", 12)
+        );
+
+        assertQEx("topK must be positive", req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" parallel=\"true\" topK=\"0\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void parallelScoringDeletionsTest() throws Exception {
+        for(int i = 1; i <= 6; i++) {
+            addAndGetVersion(sdoc("id", i, "vector", denseVectors[0]), params("update.chain", "LSH", "wt", "json"));
+        }
+        assertU(commit());
+        // the overwritten documents stay deleted in the first segment
+        for(int i = 1; i <= 3; i++) {
+            addAndGetVersion(sdoc("id", i, "vector", denseVectors[0]), params("update.chain", "LSH", "wt", "json"));
+        }
+        assertU(commit());
+
+        final String parallel = "{!vp f=vector vector=\"" + denseVectors[0] + "\" parallel=\"true\"}";
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}", "fl", "id", "rows", "6"),
+                "//*[@numFound='6']"
+        );
+        assertQ(req("q", parallel, "fl", "id", "rows", "6"),
+                "//*[@numFound='6']"
+        );
+        // the weights created to explain the hits reuse the top hits of the searcher, only the explained hits are scored again
+        assertJQ(req("q", parallel, "fl", "id", "rows", "6", "debug", "all"),
+                "/response/numFound==6",
+                "/debug/vector/[0]/docsScored==12"
+        );
+    }
+
+    @Test
+    public void hnswTest() throws Exception {
+        indexSampleDenseData();
+        indexSampleDenseData();
+
+        // the warmer built the graphs of the configured metrics before the searcher was registered
+        final HnswGraphCache graphs = ((VectorQParserPlugin) h.getCore().getQueryPlugin("vp")).getHnswGraphs();
+        RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+        try {
+            final VectorUtils.VectorType vectorType = VectorUtils.getVectorType(searcher.get().getSchema().getField("vector"));
+            for(LeafReaderContext context: searcher.get().getIndexReader().leaves()) {
+                assertNotNull(graphs.get(context.reader(), LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME, vectorType,
+                        VectorQuery.VectorQueryType.DOT));
+                assertNull(graphs.get(context.reader(), LSHUpdateProcessorFactory.DEFAULT_BINARY_FIELD_NAME, vectorType,
+                        VectorQuery.VectorQueryType.EUCLIDEAN));
+            }
+        } finally {
+            searcher.decref();
+        }
+        assertTrue(graphs.ramBytesUsed() > 0);
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" ann=\"hnsw\" k=\"3\"}",
+                "fl", "id,score", "rows", "10"),
+                "//*[@numFound='3']",
+                "count(//float[@name='score'][. > 0.9999])=3"
+        );
+
+        // k defaults to start + rows and the hits match the exhaustive ranking
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[1] + "\" ann=\"hnsw\" ef=\"20\" metric=\"dot\"}",
+                "fl", "id", "rows", "12"),
+                expectedIds("{!vp f=vector vector=\"" + denseVectors[1] + "\" metric=\"dot\"}", 12)
+        );
+
+        // the sub query filters the graph hits
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" ann=\"hnsw\" k=\"2\"}id:(1 2 3 4 5 6)",
+                "fl", "id,score", "rows", "10"),
+                "//*[@numFound='2']",
+                "count(//float[@name='score'][. > 0.9999])=2",
+                "count(//str[@name='id'][. > 6])=0"
+        );
+
+        // the segments without a graph are scored exhaustively
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[1] + "\" ann=\"hnsw\" metric=\"euclidean\"}",
+                "fl", "id", "rows", "12"),
+                expectedIds("{!vp f=vector vector=\"" + denseVectors[1] + "\" metric=\"euclidean\"}", 12)
+        );
+
+        assertQEx("unknown ann", req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" ann=\"ivf\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("k must be positive", req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" ann=\"hnsw\" k=\"0\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void ivfTest() throws Exception {
+        for(int i = 0; i < 10; i++) {
+            addAndGetVersion(sdoc("id", idCounter.incrementAndGet(), "vector", denseVectors[i % 2]),
+                    params("update.chain", "LSH_IVF", "wt", "json"));
+        }
+        assertU(commit());
+
+        // every test vector is a centroid of its own
+        assertQ(req("q", "_ivf_centroid_:1_0"), "//*[@numFound='5']");
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" ann=\"ivf\" nprobe=\"1\"}",
+                "fl", "id,score", "rows", "10", "update.chain", "LSH_IVF"),
+                "//*[@numFound='5']",
+                "count(//float[@name='score'][.='1.0'])=5"
+        );
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + vectors[1] + "\" ann=\"ivf\"}",
+                "fl", "id,score", "rows", "10", "update.chain", "LSH_IVF"),
+                "//*[@numFound='10']",
+                "count(//float[@name='score'][.='1.0'])=5"
+        );
+
+        // the sub query filters the documents of the probed centroids
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[1] + "\" ann=\"ivf\" nprobe=\"1\"}id:(1 2 3 4)",
+                "fl", "id", "rows", "10", "update.chain", "LSH_IVF"),
+                "//*[@numFound='2']",
+                "//doc[1]/str[@name='id'][.='2']",
+                "//doc[2]/str[@name='id'][.='4']"
+        );
+
+        assertQEx("no ivf model", req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" ann=\"ivf\"}",
+                "update.chain", "LSH"), SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("dimensions", req("q", "{!vp f=vector vector=\"1,2,3\" ann=\"ivf\"}",
+                "update.chain", "LSH_IVF"), SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("nprobe must be positive", req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" ann=\"ivf\" nprobe=\"0\"}",
+                "update.chain", "LSH_IVF"), SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void multiProbeTest() throws Exception {
+        indexSampleDenseData();
+        final String nearVector = "1.6,3.4,2.4,0.8,3.3,2.2";
+
+        // the probed buckets add to the exact ones
+        assertQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" reRankDocs=\"0\" probes=\"0\"}",
+                "fl", "id,vector"),
+                "//result[@numFound='5']",
+                "count(//str[@name='vector'][.='" + denseVectors[0] + "'])=5"
+        );
+        assertQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" reRankDocs=\"0\" probes=\"2000\"}",
+                "fl", "id"),
+                "//result[@numFound='10']"
+        );
+        assertQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" probes=\"2000\"}",
+                "fl", "id,vector"),
+                "//result[@numFound='10']",
+                "count(//doc[position() <= 5]/str[@name='vector'][.='" + denseVectors[0] + "'])=5"
+        );
+
+        assertQEx("probes must not be negative", req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" probes=\"-1\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void collisionCountTest() throws Exception {
+        indexSampleDenseData();
+        final String nearVector = "1.6,3.4,2.4,0.8,3.3,2.2";
+
+        // copies of the query vector collide in all 50 stages
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"true\" reRankDocs=\"0\" minCollisions=\"50\"}",
+                "fl", "id,vector,score", "debugQuery", "true"),
+                "//result[@numFound='5']",
+                "count(//str[@name='vector'][.='" + denseVectors[0] + "'])=5",
+                "count(//float[@name='score'][.='1.0'])=5",
+                "//lst[@name='explain']/str[contains(., 'collides in 50 of 50 LSH stages')]"
+        );
+
+        // the probed buckets reach the other vector, in fewer stages
+        assertQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" reRankDocs=\"0\" probes=\"2000\"}",
+                "fl", "id"),
+                "//result[@numFound='10']"
+        );
+        assertQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" reRankDocs=\"0\" probes=\"2000\" maxCandidates=\"5\"}",
+                "fl", "id,vector"),
+                "//result[@numFound='5']",
+                "count(//str[@name='vector'][.='" + denseVectors[0] + "'])=5"
+        );
+
+        // the candidates are picked once per searcher, the weights explaining the hits reuse them
+        assertJQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" reRankDocs=\"0\" probes=\"2000\" maxCandidates=\"5\"}",
+                "fl", "id", "debug", "all"),
+                "/response/numFound==5",
+                "/debug/vector/[0]/lshCandidates==5"
+        );
+
+        // the candidates are picked among the documents of the sub query, not cut before it
+        final String others = "vector:\"" + denseVectors[1] + "\"";
+        assertQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" reRankDocs=\"0\" probes=\"2000\" v=$sub}",
+                "sub", others, "fl", "id"),
+                "//result[@numFound='5']"
+        );
+        assertQ(req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" reRankDocs=\"0\" probes=\"2000\" maxCandidates=\"5\" v=$sub}",
+                "sub", others, "fl", "id,vector"),
+                "//result[@numFound='5']",
+                "count(//str[@name='vector'][.='" + denseVectors[1] + "'])=5"
+        );
+
+        // only the surviving candidates are reranked
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[1] + "\" lsh=\"true\" maxCandidates=\"3\"}",
+                "fl", "id,score"),
+                "//result[@numFound='3']",
+                "count(//float[@name='score'][. > 1.9999])=3"
+        );
+
+        assertQEx("minCollisions must be positive", req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" minCollisions=\"0\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("maxCandidates must not be negative", req("q", "{!vp f=vector vector=\"" + nearVector + "\" lsh=\"true\" maxCandidates=\"-1\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void vectorSearchHandlerTest() throws Exception {
+        indexSampleDenseData();
+        final String[] exact = expectedIds("{!vp f=vector vector=\"" + denseVectors[1] + "\" metric=\"euclidean\"}", 7);
+
+        assertJQ(req("qt", "/vectorSearch", "f", "vector", "vector", denseVectors[0], "vector", denseVectors[1], "k", "3",
+                "batchSize", "1"),
+                "/results/[0]/query=='0'",
+                "/results/[0]/hits/[0]/score==1.0",
+                "/results/[0]/hits/[2]/score==1.0",
+                "/results/[1]/query=='1'",
+                "/results/[1]/hits/[2]/score==1.0"
+        );
+        // the filter queries restrict the hits, which rank like the {!vp} ones
+        final String filtered = h.query(req("qt", "/vectorSearch", "f", "vector", "vector", denseVectors[0], "k", "3",
+                "fq", "id:(1 2 3 4)", "metric", "dot", "wt", "json"));
+        assertHitIds(filtered, 0, expectedIds("{!vp f=vector vector=\"" + denseVectors[0] + "\" metric=\"dot\"}id:(1 2 3 4)", 3));
+
+        // query vectors streamed in the body, ids before a tab, scored in batches
+        final SolrQueryRequest request = req("f", "vector", "k", "7", "metric", "euclidean", "batchSize", "2", "wt", "json");
+        ((SolrQueryRequestBase) request).setContentStreams(Collections.singletonList(new ContentStreamBase.StringStream(
+                "a\t" + denseVectors[0] + "\n\nb\t" + denseVectors[1] + "\n" + denseVectors[1] + "\n")));
+        final String response = h.query("/vectorSearch", request);
+        assertNull(JSONTestUtil.match(response, "/results/[0]/query=='a'", JSONTestUtil.DEFAULT_DELTA));
+        assertNull(JSONTestUtil.match(response, "/results/[1]/query=='b'", JSONTestUtil.DEFAULT_DELTA));
+        assertNull(JSONTestUtil.match(response, "/results/[2]/query=='2'", JSONTestUtil.DEFAULT_DELTA));
+        assertHitIds(response, 2, exact);
+
+        // the response already started when a later batch is read, its invalid vectors get an error instead of hits
+        final SolrQueryRequest invalid = req("f", "vector", "k", "2", "batchSize", "1", "wt", "json");
+        ((SolrQueryRequestBase) invalid).setContentStreams(Collections.singletonList(new ContentStreamBase.StringStream(
+                "a\t" + denseVectors[0] + "\nb\t" + denseVectors[0] + ",1.0\nc\t" + denseVectors[1] + "\n")));
+        final String partial = h.query("/vectorSearch", invalid);
+        assertNull(JSONTestUtil.match(partial, "/results/[0]/hits/[1]/score==1.0", JSONTestUtil.DEFAULT_DELTA));
+        assertNull(JSONTestUtil.match(partial, "/results/[1]/query=='b'", JSONTestUtil.DEFAULT_DELTA));
+        assertTrue(partial, partial.contains("has 7 dimensions, the indexed vectors 6"));
+        assertNull(JSONTestUtil.match(partial, "/results/[2]/query=='c'", JSONTestUtil.DEFAULT_DELTA));
+        assertNull(JSONTestUtil.match(partial, "/results/[2]/hits/[1]/score==1.0", JSONTestUtil.DEFAULT_DELTA));
+
+        assertQEx("k must be positive", req("qt", "/vectorSearch", "f", "vector", "vector", denseVectors[0], "k", "0"),
+                SolrException.ErrorCode.BAD_REQUEST);
+        // sparse query vectors are scored as the dense vector of the indexed dimensions
+        final String[] values = denseVectors[0].split(",");
+        final String sparse = IntStream.range(0, values.length).mapToObj(i -> i + "|" + values[i]).collect(Collectors.joining(","));
+        assertJQ(req("qt", "/vectorSearch", "f", "vector", "vector", sparse, "k", "5"),
+                "/results/[0]/hits/[4]/score==1.0"
+        );
+        // the query vectors are not truncated to the indexed ones
+        assertQEx("dimensions mismatch", req("qt", "/vectorSearch", "f", "vector", "vector", denseVectors[0] + ",1.0"),
+                SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("sparse index out of the dimensions", req("qt", "/vectorSearch", "f", "vector", "vector", "6|1.0"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void vectorMetricsTest() throws Exception {
+        // the registry belongs to the core, shared by all the tests
+        final MetricRegistry registry = h.getCore().getCoreMetricManager().getRegistry();
+        final String queryMetrics = "QUERYPARSER." + VectorQParserPlugin.class.getName() + ".";
+        final String updateMetrics = "UPDATE." + LSHUpdateProcessorFactory.class.getName() + ".";
+        final long parsed = registry.timer(queryMetrics + "parse").getCount();
+        final long scored = registry.histogram(queryMetrics + "docsScored").getCount();
+        final long lshQueries = registry.histogram(queryMetrics + "lshCandidates").getCount();
+        final long encoded = registry.timer(updateMetrics + "encode").getCount();
+        final long hashed = registry.timer(updateMetrics + "hash").getCount();
+
+        indexSampleDenseData();
+        // every matching document is read and scored once, dense AUTO vectors take a marker byte and 6 floats
+        assertJQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}", "fl", "id", "debug", "vector"),
+                "/debug/vector/[0]/field=='vector'",
+                "/debug/vector/[0]/mode=='exact'",
+                "/debug/vector/[0]/docsScored==10",
+                "/debug/vector/[0]/vectorBytesRead==" + 10 * (1 + 6 * Float.BYTES)
+        );
+        // next to the standard debug info, LSH candidates are counted without any vector scored
+        assertJQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"true\" reRankDocs=\"0\" minCollisions=\"50\"}",
+                "fl", "id", "debug", "all"),
+                "/debug/vector/[0]/mode=='lsh'",
+                "/debug/vector/[0]/lshCandidates==5",
+                "/debug/vector/[0]/docsScored==0",
+                "/debug/rawquerystring=='{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"true\" reRankDocs=\"0\" minCollisions=\"50\"}'"
+        );
+
+        // both queries went to the metrics once their requests were closed
+        assertEquals(parsed + 2, registry.timer(queryMetrics + "parse").getCount());
+        assertEquals(scored + 2, registry.histogram(queryMetrics + "docsScored").getCount());
+        assertEquals(lshQueries + 1, registry.histogram(queryMetrics + "lshCandidates").getCount());
+        assertEquals(encoded + 10, registry.timer(updateMetrics + "encode").getCount());
+        assertEquals(hashed + 10, registry.timer(updateMetrics + "hash").getCount());
+        assertTrue(registry.getGauges().containsKey(queryMetrics + "hnswGraphsRamBytes"));
+    }
+
+    @Test
+    public void resultCacheTest() throws Exception {
+        final MetricRegistry registry = h.getCore().getCoreMetricManager().getRegistry();
+        final String queryMetrics = "QUERYPARSER." + VectorQParserPlugin.class.getName() + ".";
+        final long hits = registry.counter(queryMetrics + "resultCacheHits").getCount();
+        final long misses = registry.counter(queryMetrics + "resultCacheMisses").getCount();
+
+        indexSampleDenseData();
+        final String[] expected = expectedIds("{!vp f=vector vector=\"" + denseVectors[0] + "\"}", 10);
+        // the first query scores every document and caches its top hits
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + denseVectors[0] + "\"}", "fl", "id", "rows", "10", "debug", "vector"),
+                "/debug/vector/[0]/resultCache=='miss'",
+                "/debug/vector/[0]/docsScored==10"
+        );
+        // a scaled copy has the same cosine key and is served from the cache, in the same order, without scoring
+        final String scaled = "3.1,7.06,4.6,1.4,6.88,4.66";
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + scaled + "\"}", "fl", "id", "rows", "10", "debug", "vector"),
+                "/debug/vector/[0]/resultCache=='hit'",
+                "/debug/vector/[0]/docsScored==0"
+        );
+        assertQ(req("q", "{!vpc f=vector vector=\"" + scaled + "\"}", "fl", "id", "rows", "10"), expected);
+
+        // other vectors, filters or numbers of hits are other keys
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + denseVectors[1] + "\"}", "fl", "id", "rows", "10", "debug", "vector"),
+                "/debug/vector/[0]/resultCache=='miss'"
+        );
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + scaled + "\"}", "fq", "id:1", "fl", "id", "debug", "vector"),
+                "/response/numFound==1",
+                "/debug/vector/[0]/resultCache=='miss'"
+        );
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + scaled + "\"}", "fl", "id", "rows", "5", "debug", "vector"),
+                "/debug/vector/[0]/resultCache=='miss'"
+        );
+        // repeated filter queries are served too
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + scaled + "\"}", "fq", "id:1", "fl", "id", "debug", "vector"),
+                "/response/numFound==1",
+                "/debug/vector/[0]/resultCache=='hit'"
+        );
+        // other sorts than by score bypass the cache, their top hits are not the cached ones
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + scaled + "\"}", "fl", "id", "rows", "5", "sort", "score desc", "debug", "vector"),
+                "/debug/vector/[0]/resultCache=='hit'"
+        );
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + scaled + "\"}", "fl", "id", "rows", "5", "sort", "id desc", "debug", "vector"),
+                "/response/numFound==10",
+                "/response/docs/[0]/id=='9'",
+                "/response/docs/[4]/id=='5'"
+        );
+        // cache=false bypasses it
+        assertJQ(req("q", "{!vpc f=vector cache=false vector=\"" + scaled + "\"}", "fl", "id", "rows", "10", "debug", "vector"),
+                "/debug/vector/[0]/docsScored==10"
+        );
+
+        // a new searcher starts with an empty cache, only the cached top hits match
+        indexSampleDenseData();
+        assertJQ(req("q", "{!vpc f=vector vector=\"" + denseVectors[0] + "\"}", "fl", "id", "rows", "10", "debug", "vector"),
+                "/response/numFound==10",
+                "/debug/vector/[0]/resultCache=='miss'",
+                "/debug/vector/[0]/docsScored==20"
+        );
+
+        assertEquals(hits + 4, registry.counter(queryMetrics + "resultCacheHits").getCount());
+        assertEquals(misses + 5, registry.counter(queryMetrics + "resultCacheMisses").getCount());
+    }
+
+    private static void assertHitIds(String response, int query, String[] expectedIds) throws Exception {
+        for(int i = 0; i < expectedIds.length; i++) {
+            final String id = expectedIds[i].replaceAll(".*\\[.='([^']+)'\\]$", "$1");
+            assertNull(JSONTestUtil.match(response, "/results/[" + query + "]/hits/[" + i + "]/id=='" + id + "'",
+                    JSONTestUtil.DEFAULT_DELTA));
+        }
+    }
+
+    private String[] expectedIds(String query, int rows) throws Exception {
+        String response = h.query(req("q", query, "fl", "id", "rows", String.valueOf(rows)));
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = Pattern.compile("<str name=\"id\">([^<]+)</str>").matcher(response);
+        while(matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        assertEquals(rows, ids.size());
+        return IntStream.range(0, rows).mapToObj(i -> "//doc[" + (i + 1) + "]/str[@name='id'][.='" + ids.get(i) + "']")
+                .toArray(String[]::new);
+    }
+
+    @Test
+    public void batchedUpdateTest() throws Exception {
+        // 11 adds, so batches of 4 are flushed when full and at the end of the request
+        StringBuilder json = new StringBuilder("[");
+        for(int i = 0; i < 10; i++) {
+            json.append("{\"id\":\"").append(i + 1).append("\",\"vector\":\"").append(denseVectors[i % 2]).append("\"},");
+        }
+        // a later add of the same id wins, the commands are forwarded in order
+        json.append("{\"id\":\"1\",\"vector\":\"").append(denseVectors[1]).append("\"}]");
+        updateJ(json.toString(), params("update.chain", "LSH_BATCH"));
+        assertU(commit());
+
+        assertQ(req("q", "*:*"), "//*[@numFound='10']");
+        assertQ(req("q", "id:1", "fl", "vector"), "//doc[1]/str[@name='vector'][.='" + denseVectors[1] + "']");
+
+        int[] hash = superBit.hash(StrUtils.splitSmart(denseVectors[0], ',').stream().mapToDouble(Double::new).toArray());
+        String lshQueryString = IntStream.range(0, hash.length).mapToObj(x -> String.format(Locale.ROOT, "_lsh_hash_:\"%d_%d\"", x, hash[x]))
+                .collect(Collectors.joining(" OR "));
+        assertQ(req("q", lshQueryString), "//*[@numFound='4']");
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}", "fl", "id,score"),
+                "//*[@numFound='10']",
+                "count(//float[@name='score'][.='1.0'])=4"
+        );
+    }
+
+    @Test
+    public void batchedUpdateFailureTest() throws Exception {
+        // the bad vectors of a batch fail on their own, the other documents of the batch are still added
+        StringBuilder json = new StringBuilder("[");
+        for(int i = 0; i < 4; i++) {
+            json.append("{\"id\":\"").append(i + 1).append("\",\"vector\":\"")
+                    .append(i == 1 || i == 2? "not,a,vector": denseVectors[i % 2]).append("\"},");
+        }
+        json.append("{\"id\":\"5\",\"vector\":\"").append(denseVectors[0]).append("\"}]");
+        try {
+            updateJ(json.toString(), params("update.chain", "LSH_BATCH"));
+            fail("the bad vectors were added");
+        } catch (SolrException e) {
+            assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+            assertTrue(e.getMessage(), e.getMessage().contains("2 of 4 batched documents"));
+            assertTrue(e.getMessage(), e.getMessage().contains("2: ") && e.getMessage().contains("3: "));
+            assertFalse(e.getMessage(), e.getMessage().contains("1: ") || e.getMessage().contains("4: "));
+        }
+        // the failure stops the request before the next batch, the commit still goes through
+        assertU(commit());
+        assertQ(req("q", "*:*", "fl", "id", "sort", "id asc"),
+                "//*[@numFound='2']",
+                "//doc[1]/str[@name='id'][.='1']",
+                "//doc[2]/str[@name='id'][.='4']"
+        );
+    }
+
+    @Test
+    public void binaryVectorTest() throws Exception {
+        final float[] values = VectorUtils.parse(denseVectors[0]).getValues();
+        final List<Double> numbers = new ArrayList<>();
+        final ByteBuffer littleEndian = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for(float value: values) {
+            numbers.add((double) value);
+            littleEndian.putFloat(value);
+        }
+        final String littleEndianBase64 = Base64.getEncoder().encodeToString(littleEndian.array());
+        final String encodedBase64 = Base64.getEncoder().encodeToString(VectorUtils.encode(denseVectors[0]).bytes);
+
+        addThroughChain("LSH", sdoc("id", "1", "vector", values));
+        addThroughChain("LSH", sdoc("id", "2", "vector", numbers));
+        addThroughChain("LSH", sdoc("id", "3", "vector", VectorUtils.encode(denseVectors[0]).bytes));
+        updateJ(jsonAdd(sdoc("id", "4", "vector", littleEndianBase64)), params("update.chain", "LSH_FLOATS_LE"));
+        addAndGetVersion(sdoc("id", "5", "vector", denseVectors[1]), params("update.chain", "LSH", "wt", "json"));
+        assertU(commit());
+
+        for(String query: new String[] {
+                "{!vp f=vector vector=\"" + denseVectors[0] + "\"}",
+                "{!vp f=vector vectorFormat=\"floats_le\" vector=\"" + littleEndianBase64 + "\"}",
+                "{!vp f=vector vectorFormat=\"encoded\" vector=\"" + encodedBase64 + "\"}"}) {
+            assertQ(req("q", query, "fl", "id,score"),
+                    "//*[@numFound='5']",
+                    "count(//float[@name='score'][.='1.0'])=4",
+                    "//doc[5]/str[@name='id'][.='5']"
+            );
+        }
+
+        // the LSH hashes of binary vectors match the ones of the text form
+        assertQ(req("q", "{!vp f=vector vectorFormat=\"floats_le\" vector=\"" + littleEndianBase64 + "\" lsh=\"true\" reRankDocs=\"0\"}"),
+                "//*[@numFound='4']"
+        );
+
+        assertQEx("bad format", req("q", "{!vp f=vector vectorFormat=\"hex\" vector=\"00\"}"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void quantizedVectorTest() throws Exception {
+        for(String chain: new String[] {"LSH_INT8", "LSH_FLOAT16"}) {
+            for(int i = 0; i < 10; i++) {
+                addAndGetVersion(sdoc("id", idCounter.incrementAndGet(), "vector", denseVectorsIter.next()),
+                        params("update.chain", chain, "wt", "json"));
+            }
+            assertU(commit());
+
+            // quantized scores are close to the exact ones, 1 and 0.76125
+            assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}",
+                    "fl", "id,score", "rows", "10"),
+                    "//*[@numFound='10']",
+                    "count(//float[@name='score'][. > 0.999 and . < 1.001])=5",
+                    "count(//float[@name='score'][. > 0.760 and . < 0.763])=5"
+            );
+
+            for(String query: new String[] {
+                    "{!vp f=vector vector=\"" + denseVectors[0] + "\" exactRerank=\"10\"}",
+                    "{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"true\" exactRerank=\"10\"}"}) {
+                assertQ(req("q", query, "fl", "id,score", "rows", "10", "update.chain", chain),
+                        "count(//float[@name='score'][. > 0.9999 and . < 1.0001])=5"
+                );
+            }
+            assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\" exactRerank=\"10\"}",
+                    "fl", "id,score", "rows", "10"),
+                    "count(//float[@name='score'][. > 0.7612 and . < 0.7613])=5"
+            );
+            deleteByQueryAndGetVersion("*:*", params());
+        }
+
+        SolrException e = expectThrows(SolrException.class, () -> addThroughChain("LSH_INT8", sdoc("id", "1", "vector", vectors[0])));
+        assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+    }
+
+    private void addThroughChain(String chain, SolrInputDocument doc) throws Exception {
+        SolrQueryRequest req = req();
+        UpdateRequestProcessor processor = h.getCore().getUpdateProcessingChain(chain).createProcessor(req, new SolrQueryResponse());
+        try {
+            AddUpdateCommand cmd = new AddUpdateCommand(req);
+            cmd.solrDoc = doc;
+            processor.processAdd(cmd);
+            processor.finish();
+        } finally {
+            processor.close();
+            req.close();
+        }
+    }
+
+    @Test
+    public void explainAndEqualityTest() throws Exception {
+        indexSampleDenseData();
+
+        assertQ(req("q", "{!vp f=vector vector=\"" + denseVectors[0] + "\"}",
+                "fl", "id,score", "debugQuery", "true"),
+                "//*[@numFound='10']",
+                "count(//lst[@name='explain']/str[contains(., 'cosine similarity of vector')])=10"
+        );
+
+        SolrQueryRequest req = req();
+        try {
+            Query first = QParser.getParser("{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"false\"}", req).getQuery();
+            Query same = QParser.getParser("{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"false\"}", req).getQuery();
+            Query otherVector = QParser.getParser("{!vp f=vector vector=\"" + denseVectors[1] + "\" lsh=\"false\"}", req).getQuery();
+            Query otherMetric = QParser.getParser("{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"false\" metric=\"dot\"}", req).getQuery();
+            assertEquals(first, same);
+            assertEquals(first.hashCode(), same.hashCode());
+            assertFalse(first.equals(otherVector));
+            assertFalse(first.equals(otherMetric));
+
+            Query lsh = QParser.getParser("{!vp f=vector vector=\"" + denseVectors[0] + "\" lsh=\"true\" reRankDocs=\"5\"}", req).getQuery();
+            assertTrue(lsh instanceof VectorReRankQuery);
+            assertEquals(((VectorScoreQuery) first).getPreparedQuery(), ((VectorReRankQuery) lsh).getReRankQuery().getPreparedQuery());
+        } finally {
+            req.close();
+        }
     }
 
     private void indexSampleData() throws Exception {
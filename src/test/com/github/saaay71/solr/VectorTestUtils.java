@@ -0,0 +1,37 @@
+package com.github.saaay71.solr;
+
+import java.util.Random;
+
+/**
+ * Random vector fixtures shared by the unit tests. The components are gaussian, so every
+ * test draws from the same distribution whatever the encoding it exercises.
+ */
+public final class VectorTestUtils {
+
+    private VectorTestUtils() {
+    }
+
+    public static double[] randomVector(Random random, int dimensions) {
+        final double[] vector = new double[dimensions];
+        for(int i = 0; i < dimensions; i++) {
+            vector[i] = random.nextGaussian();
+        }
+        return vector;
+    }
+
+    public static float[] randomFloatVector(Random random, int dimensions) {
+        final float[] vector = new float[dimensions];
+        for(int i = 0; i < dimensions; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    public static float[][] randomFloatVectors(Random random, int count, int dimensions) {
+        final float[][] vectors = new float[count][];
+        for(int i = 0; i < count; i++) {
+            vectors[i] = randomFloatVector(random, dimensions);
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.saaay71.solr.codec;
+
+import com.github.saaay71.solr.VectorTestUtils;
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import com.github.saaay71.solr.query.VectorQuery;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.lucene70.Lucene70Codec;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ColumnarVectorDocValuesFormatTest extends LuceneTestCase {
+
+    @Test
+    public void writesFixedLengthFieldsAsColumns() throws Exception {
+        final Random random = random();
+        // dense, dense with stored norms, int8 and float16 vectors
+        for(int layout = 0; layout < 4; layout++) {
+            final int dimensions = 1 + random.nextInt(40);
+            final int numDocs = atLeast(200);
+            final BytesRef[] expected = new BytesRef[numDocs];
+            try(Directory directory = newDirectory()) {
+                try(IndexWriter writer = new IndexWriter(directory, config())) {
+                    for(int i = 0; i < numDocs; i++) {
+                        final Document document = new Document();
+                        // every tenth document has no vector
+                        if(i % 10 != 3) {
+                            expected[i] = encode(layout, new VectorUtils.ParsedVector(null, VectorTestUtils.randomFloatVector(random, dimensions)));
+                            document.add(new BinaryDocValuesField("vector", expected[i]));
+                        }
+                        // values of different lengths are left to the default format
+                        document.add(new BinaryDocValuesField("id", new BytesRef(Integer.toString(i))));
+                        writer.addDocument(document);
+                        if(random.nextInt(50) == 0) {
+                            writer.commit();
+                        }
+                    }
+                    writer.forceMerge(1);
+                }
+
+                try(DirectoryReader reader = DirectoryReader.open(directory)) {
+                    final LeafReader leaf = reader.leaves().get(0).reader();
+                    // merges may reorder the documents
+                    final BinaryDocValues idValues = leaf.getBinaryDocValues("id");
+                    assertFalse(idValues instanceof ColumnarVectorValues);
+                    final int[] ids = new int[leaf.maxDoc()];
+                    int expectedCount = 0;
+                    for(int doc = idValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = idValues.nextDoc()) {
+                        ids[doc] = Integer.parseInt(idValues.binaryValue().utf8ToString());
+                        expectedCount += expected[ids[doc]] == null? 0: 1;
+                    }
+
+                    final BinaryDocValues docValues = leaf.getBinaryDocValues("vector");
+                    assertTrue(docValues instanceof ColumnarVectorValues);
+                    int count = 0;
+                    for(int doc = docValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docValues.nextDoc()) {
+                        assertEquals(expected[ids[doc]], docValues.binaryValue());
+                        count++;
+                    }
+                    assertEquals(expectedCount, count);
+
+                    final ColumnarVectorValues columns = (ColumnarVectorValues) leaf.getBinaryDocValues("vector");
+                    final double[] query = toDoubles(VectorTestUtils.randomFloatVector(random, dimensions));
+                    for(VectorQuery.VectorQueryType metric: VectorQuery.VectorQueryType.values()) {
+                        final PreparedVectorQuery preparedQuery = new PreparedVectorQuery(query, VectorUtils.VectorType.AUTO, metric);
+                        for(int doc = ids.length - 1; doc >= 0; doc--) {
+                            final BytesRef vector = expected[ids[doc]];
+                            assertEquals(vector != null, columns.hasValue(doc));
+                            if(vector != null) {
+                                // in place scores are computed exactly like the scores of copied vectors
+                                assertEquals(preparedQuery.score(BytesRef.deepCopyOf(vector)),
+                                        preparedQuery.score(columns.getRecords(), columns.offset(doc), columns.getRecordLength()), 0f);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static IndexWriterConfig config() {
+        final DocValuesFormat format = new ColumnarVectorDocValuesFormat();
+        return newIndexWriterConfig().setCodec(new Lucene70Codec() {
+            @Override
+            public DocValuesFormat getDocValuesFormatForField(String field) {
+                return format;
+            }
+        });
+    }
+
+    private static BytesRef encode(int layout, VectorUtils.ParsedVector vector) {
+        switch (layout) {
+            case 2:
+                return vector.encodeQuantized(VectorUtils.VectorType.INT8, true, false);
+            case 3:
+                return vector.encodeQuantized(VectorUtils.VectorType.FLOAT16, true, false);
+            default:
+                return vector.encode(VectorUtils.VectorType.AUTO, layout == 1, false);
+        }
+    }
+
+    private static double[] toDoubles(float[] values) {
+        final double[] doubles = new double[values.length];
+        for(int i = 0; i < values.length; i++) {
+            doubles[i] = values[i];
+        }
+        return doubles;
+    }
+}
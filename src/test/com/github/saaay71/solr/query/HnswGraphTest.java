@@ -0,0 +1,146 @@
+package com.github.saaay71.solr.query;
+
+import com.github.saaay71.solr.VectorTestUtils;
+import com.github.saaay71.solr.VectorUtils;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class HnswGraphTest extends LuceneTestCase {
+
+    @Test
+    public void recallAgainstExhaustiveSearch() throws IOException {
+        final Random random = random();
+        final int docs = 1000, dimensions = 16, k = 10;
+        final float[][] vectors = VectorTestUtils.randomFloatVectors(random, docs, dimensions);
+        for(VectorQuery.VectorQueryType metric: VectorQuery.VectorQueryType.values()) {
+            final HnswGraph graph = HnswGraph.build(values(vectors), docs, VectorUtils.VectorType.DENSE, metric,
+                    HnswGraphCache.DEFAULT_M, HnswGraphCache.DEFAULT_EF_CONSTRUCTION, random.nextLong());
+            int found = 0;
+            for(int q = 0; q < 20; q++) {
+                final double[] query = VectorTestUtils.randomVector(random, dimensions);
+                final int[] hits = graph.search(values(vectors), prepare(query, metric), 50, null, Integer.MAX_VALUE);
+                final Set<Integer> expected = exactTopK(vectors, query, metric, k, null);
+                for(int i = 0; i < k; i++) {
+                    found += expected.contains(hits[i])? 1: 0;
+                }
+            }
+            assertTrue(metric + " recall " + found / 200d, found >= 180);
+        }
+    }
+
+    @Test
+    public void acceptedDocsAndVisitLimit() throws IOException {
+        final Random random = random();
+        final int docs = 500, dimensions = 8;
+        final float[][] vectors = VectorTestUtils.randomFloatVectors(random, docs, dimensions);
+        final HnswGraph graph = HnswGraph.build(values(vectors), docs, VectorUtils.VectorType.DENSE,
+                VectorQuery.VectorQueryType.EUCLIDEAN, 8, 50, random.nextLong());
+        final FixedBitSet accepted = new FixedBitSet(docs);
+        for(int doc = 0; doc < docs; doc += 3) {
+            accepted.set(doc);
+        }
+        final double[] query = VectorTestUtils.randomVector(random, dimensions);
+        final PreparedVectorQuery prepared = prepare(query, VectorQuery.VectorQueryType.EUCLIDEAN);
+        final int[] hits = graph.search(values(vectors), prepared, 20, accepted, Integer.MAX_VALUE);
+        assertEquals(20, hits.length);
+        for(int hit: hits) {
+            assertTrue(accepted.get(hit));
+        }
+        assertTrue(exactTopK(vectors, query, VectorQuery.VectorQueryType.EUCLIDEAN, 1, accepted).contains(hits[0]));
+        assertNull(graph.search(values(vectors), prepared, 20, accepted, 5));
+    }
+
+    @Test
+    public void skipsDocumentsWithoutVectors() throws IOException {
+        final float[][] vectors = {{1f, 0f}, null, {0f, 1f}, null};
+        final HnswGraph graph = HnswGraph.build(values(vectors), vectors.length, VectorUtils.VectorType.DENSE,
+                VectorQuery.VectorQueryType.COSINE, 4, 10, 0L);
+        final int[] hits = graph.search(values(vectors), prepare(new double[] {0.1, 1}, VectorQuery.VectorQueryType.COSINE), 10,
+                null, Integer.MAX_VALUE);
+        assertArrayEquals(new int[] {2, 0}, hits);
+        assertNull(HnswGraph.build(values(new float[2][]), 2, VectorUtils.VectorType.DENSE,
+                VectorQuery.VectorQueryType.COSINE, 4, 10, 0L));
+    }
+
+    @Test
+    public void cacheBuildsWithinMemoryBudget() throws IOException {
+        final Random random = random();
+        try(Directory dir = newDirectory()) {
+            try(IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig())) {
+                for(float[] vector: VectorTestUtils.randomFloatVectors(random, 100, 8)) {
+                    final Document doc = new Document();
+                    doc.add(new BinaryDocValuesField("v", encode(vector)));
+                    writer.addDocument(doc);
+                }
+                writer.forceMerge(1);
+            }
+            final HnswGraphCache unbounded = new HnswGraphCache(8, 20, Long.MAX_VALUE);
+            final HnswGraphCache bounded = new HnswGraphCache(8, 20, 1024);
+            try(DirectoryReader reader = DirectoryReader.open(dir)) {
+                final LeafReader leaf = reader.leaves().get(0).reader();
+                final VectorQuery.VectorQueryType metric = VectorQuery.VectorQueryType.COSINE;
+                // queries only look the graphs up
+                assertNull(unbounded.get(leaf, "v", VectorUtils.VectorType.DENSE, metric));
+                assertTrue(unbounded.warm(leaf, "v", VectorUtils.VectorType.DENSE, metric));
+                final HnswGraph graph = unbounded.get(leaf, "v", VectorUtils.VectorType.DENSE, metric);
+                assertEquals(100, graph.size());
+                assertEquals(graph.ramBytesUsed(), unbounded.ramBytesUsed());
+                // the budget is checked against an estimate, before the graph is built
+                assertTrue(HnswGraph.estimateRamBytes(leaf.maxDoc(), 8) >= graph.ramBytesUsed());
+                // a segment without vectors has an empty graph
+                assertTrue(unbounded.warm(leaf, "none", VectorUtils.VectorType.DENSE, metric));
+                assertEquals(0, unbounded.get(leaf, "none", VectorUtils.VectorType.DENSE, metric).size());
+
+                assertFalse(bounded.warm(leaf, "v", VectorUtils.VectorType.DENSE, metric));
+                assertNull(bounded.get(leaf, "v", VectorUtils.VectorType.DENSE, metric));
+                assertEquals(0, bounded.ramBytesUsed());
+            }
+            // closing the segment releases its graphs
+            assertEquals(0, unbounded.ramBytesUsed());
+        }
+    }
+
+    private static Set<Integer> exactTopK(float[][] vectors, double[] query, VectorQuery.VectorQueryType metric, int k,
+                                          FixedBitSet accepted) {
+        final PreparedVectorQuery prepared = new PreparedVectorQuery(query, VectorUtils.VectorType.DENSE, metric);
+        final Integer[] order = new Integer[vectors.length];
+        final float[] scores = new float[vectors.length];
+        for(int doc = 0; doc < vectors.length; doc++) {
+            order[doc] = doc;
+            scores[doc] = accepted == null || accepted.get(doc)? prepared.score(encode(vectors[doc])): Float.NEGATIVE_INFINITY;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+        return new HashSet<>(Arrays.asList(order).subList(0, k));
+    }
+
+    private static PreparedVectorQuery prepare(double[] query, VectorQuery.VectorQueryType metric) {
+        return new PreparedVectorQuery(query, VectorUtils.VectorType.DENSE, metric);
+    }
+
+    private static SegmentVectorValues values(float[][] vectors) {
+        return new SegmentVectorValues() {
+            @Override
+            public BytesRef get(int docID) {
+                return vectors[docID] == null? null: encode(vectors[docID]);
+            }
+        };
+    }
+
+    private static BytesRef encode(float[] vector) {
+        return new VectorUtils.ParsedVector(null, vector).encode(VectorUtils.VectorType.DENSE, false, false);
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.saaay71.solr.query;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class IVFModelTest extends LuceneTestCase {
+
+    @Test
+    public void trainsSeparatedClusters() {
+        final Random random = random();
+        final double[][] centers = {{10, 0, 0}, {0, 10, 0}, {0, 0, 10}, {-10, -10, -10}};
+        final double[][] sample = new double[400][];
+        for(int i = 0; i < sample.length; i++) {
+            final double[] center = centers[i % centers.length];
+            sample[i] = new double[center.length];
+            for(int d = 0; d < center.length; d++) {
+                sample[i][d] = center[d] + random.nextGaussian();
+            }
+        }
+        final IVFModel model = IVFModel.train(sample, centers.length, 50, random.nextLong(), 3L);
+        assertEquals(centers.length, model.getNumCentroids());
+        // each center gets a centroid of its own
+        final boolean[] used = new boolean[centers.length];
+        for(double[] center: centers) {
+            final int centroid = model.assign(center);
+            assertFalse(used[centroid]);
+            used[centroid] = true;
+        }
+        for(int i = 0; i < sample.length; i++) {
+            assertEquals(model.assign(centers[i % centers.length]), model.assign(sample[i]));
+        }
+        assertEquals("3_" + model.assign(centers[0]), model.term(model.assign(centers[0])));
+    }
+
+    @Test
+    public void nearestCentroidsFirst() {
+        final IVFModel model = new IVFModel(1L, new double[][] {{0, 0}, {4, 0}, {1, 0}, {9, 9}});
+        assertArrayEquals(new int[] {2, 0, 1}, model.nearest(new double[] {1.2, 0}, 3));
+        assertArrayEquals(new int[] {2, 0, 1, 3}, model.nearest(new double[] {1.2, 0}, 10));
+        assertEquals(2, model.assign(new double[] {1.2, 0}));
+    }
+
+    @Test
+    public void writeReadRoundTrip() throws IOException {
+        final IVFModel model = new IVFModel(42L, new double[][] {{0.5, -1.25, 3}, {2, 0, -0.75}});
+        final StringWriter writer = new StringWriter();
+        model.write(writer);
+        final IVFModel read = IVFModel.read(new ByteArrayInputStream(("# comment\n" + writer).getBytes(StandardCharsets.UTF_8)));
+        assertEquals(42L, read.getVersion());
+        assertEquals(3, read.getDimensions());
+        assertEquals(2, read.getNumCentroids());
+        assertEquals(1, read.assign(new double[] {2, 0.1, -0.75}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingVersion() throws IOException {
+        IVFModel.read(new ByteArrayInputStream("1,2,3\n".getBytes(StandardCharsets.UTF_8)));
+    }
+}
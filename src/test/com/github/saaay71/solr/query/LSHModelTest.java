@@ -0,0 +1,84 @@
+package com.github.saaay71.solr.query;
+
+import info.debatty.java.lsh.LSH;
+import info.debatty.java.lsh.LSHSuperBit;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LSHModelTest extends LuceneTestCase {
+
+    @Test
+    public void hashesLikeLSHSuperBit() {
+        final Random random = random();
+        for(int[] params: new int[][] {{50, 50, 6}, {10, 4, 3}, {20, 8, 128}, {3, 7, 5}}) {
+            final int stages = params[0], buckets = params[1], dimensions = params[2];
+            final long seed = random.nextLong();
+            final LSHModel model = new LSHModel(stages, buckets, dimensions, seed);
+            final LSHSuperBit superBit = new LSHSuperBit(stages, buckets, dimensions, seed);
+            for(int i = 0; i < 20; i++) {
+                double[] vector = new double[dimensions];
+                for(int d = 0; d < dimensions; d++) {
+                    vector[d] = random.nextDouble() * 10 - 5;
+                }
+                assertArrayEquals(superBit.hash(vector), model.hash(vector));
+            }
+        }
+    }
+
+    @Test
+    public void probesFlipTheClosestHyperplanes() {
+        final Random random = random();
+        for(int[] params: new int[][] {{10, 40, 6}, {4, 64, 16}, {20, 8, 32}}) {
+            final int stages = params[0], buckets = params[1], dimensions = params[2];
+            final LSHModel model = new LSHModel(stages, buckets, dimensions, random.nextLong());
+            final LSH hasher = new LSH(stages, buckets) {};
+            for(int iter = 0; iter < 20; iter++) {
+                final double[] vector = new double[dimensions];
+                for(int d = 0; d < dimensions; d++) {
+                    vector[d] = random.nextDouble() * 10 - 5;
+                }
+                final int[] hash = model.hash(vector);
+                final int[][] exact = model.probe(vector, 0);
+                for(int stage = 0; stage < stages; stage++) {
+                    assertArrayEquals(new int[] {hash[stage]}, exact[stage]);
+                }
+
+                // the first probe flips the bit of the hyperplane closest to the vector
+                int closest = 0;
+                for(int plane = 1; plane < model.getCodeLength(); plane++) {
+                    if(Math.abs(model.dotProduct(plane, vector)) < Math.abs(model.dotProduct(closest, vector))) {
+                        closest = plane;
+                    }
+                }
+                final boolean[] flipped = model.signature(vector);
+                flipped[closest] = !flipped[closest];
+                final int stage = Math.min(closest / (model.getCodeLength() / stages), stages - 1);
+                final int bucket = hasher.hashSignature(flipped)[stage];
+                final int[][] probed = model.probe(vector, 1);
+                if(bucket != hash[stage]) {
+                    assertArrayEquals(new int[] {hash[stage], bucket}, probed[stage]);
+                }
+
+                // more probes extend the fewer ones
+                final int[][] few = model.probe(vector, 3);
+                final int[][] many = model.probe(vector, 12);
+                int extra = 0;
+                for(int s = 0; s < stages; s++) {
+                    assertEquals(hash[s], many[s][0]);
+                    assertArrayEquals(few[s], Arrays.copyOf(many[s], few[s].length));
+                    assertEquals(many[s].length, Arrays.stream(many[s]).distinct().count());
+                    extra += many[s].length - 1;
+                }
+                assertEquals(12, extra);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsParametersWithoutSuperBit() {
+        new LSHModel(1, 1, 6, 0L);
+    }
+}
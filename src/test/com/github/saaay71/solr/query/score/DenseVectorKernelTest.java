@@ -0,0 +1,71 @@
+package com.github.saaay71.solr.query.score;
+
+import com.github.saaay71.solr.VectorTestUtils;
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import com.github.saaay71.solr.query.VectorQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+
+public class DenseVectorKernelTest extends LuceneTestCase {
+
+    @Test
+    public void scalarKernelMatchesBoxedScoring() {
+        final Random random = random();
+        for(int dimensions: new int[] {1, 3, 6, 64, 385, 768}) {
+            final double[] query = VectorTestUtils.randomVector(random, dimensions);
+            final BytesRef docVector = VectorUtils.encode(toVectorString(VectorTestUtils.randomVector(random, dimensions)), VectorUtils.VectorType.DENSE);
+
+            float expectedScore = 0f;
+            double expectedNorm = 0d;
+            int i = 0;
+            Iterator<Float> iter = VectorUtils.decodeDense(docVector);
+            while(iter.hasNext()) {
+                Float val = iter.next();
+                expectedScore += (val) * (Double.valueOf(query[i++]));
+                expectedNorm += Math.pow(val, 2.0);
+            }
+
+            assertEquals(Float.floatToIntBits(expectedScore), Float.floatToIntBits((float) DenseVectorKernel.SCALAR.dotProduct(
+                    query, docVector.bytes, docVector.offset, dimensions)));
+            assertEquals(Double.doubleToLongBits(expectedNorm), Double.doubleToLongBits(DenseVectorKernel.SCALAR.squaredNorm(
+                    docVector.bytes, docVector.offset, dimensions)));
+
+            final PreparedVectorQuery preparedQuery = new PreparedVectorQuery(query, VectorUtils.VectorType.DENSE,
+                    VectorQuery.VectorQueryType.COSINE);
+            final float expectedCosine = (float) (expectedScore / (Math.sqrt(expectedNorm) * preparedQuery.getNorm()));
+            assertEquals(Float.floatToIntBits(expectedCosine), Float.floatToIntBits(
+                    new DenseQueryScorer(false, DenseVectorKernel.SCALAR).score(preparedQuery, docVector)));
+        }
+    }
+
+    @Test
+    public void unrolledKernelMatchesScalarKernel() {
+        final Random random = random();
+        for(int dimensions: new int[] {1, 3, 6, 64, 385, 768}) {
+            final double[] query = VectorTestUtils.randomVector(random, dimensions);
+            final BytesRef docVector = VectorUtils.encode(toVectorString(VectorTestUtils.randomVector(random, dimensions)), VectorUtils.VectorType.DENSE);
+            final float[] docFloats = new float[dimensions];
+            assertEquals(dimensions, DenseVectorKernel.decode(docVector, docFloats));
+
+            final double expected = DenseVectorKernel.SCALAR.dotProduct(query, docVector.bytes, docVector.offset, dimensions);
+            final double delta = 1e-4 * Math.max(1d, Math.abs(expected));
+            assertEquals(expected, DenseVectorKernel.UNROLLED.dotProduct(query, docVector.bytes, docVector.offset, dimensions), delta);
+            assertEquals(expected, DenseVectorKernel.UNROLLED.dotProduct(query, docFloats, dimensions), delta);
+            assertEquals(DenseVectorKernel.SCALAR.squaredNorm(docVector.bytes, docVector.offset, dimensions),
+                    DenseVectorKernel.UNROLLED.squaredNorm(docVector.bytes, docVector.offset, dimensions), 1e-6 * dimensions);
+            assertEquals(docFloats[dimensions - 1], DenseVectorKernel.asFloatBuffer(docVector).get(dimensions - 1), 0f);
+        }
+    }
+
+    private static String toVectorString(double[] vector) {
+        return DoubleStream.of(vector).mapToObj(x -> String.format(Locale.ROOT, "%.4f", x)).collect(Collectors.joining(","));
+    }
+}
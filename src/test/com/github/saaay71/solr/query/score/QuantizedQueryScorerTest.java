@@ -0,0 +1,85 @@
+package com.github.saaay71.solr.query.score;
+
+import com.github.saaay71.solr.VectorTestUtils;
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import com.github.saaay71.solr.query.VectorQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class QuantizedQueryScorerTest extends LuceneTestCase {
+
+    @Test
+    public void halfFloatRoundTrip() {
+        for(int bits = 0; bits < (1 << 16); bits++) {
+            final float value = VectorUtils.fromHalfFloat((short) bits);
+            if(!Float.isNaN(value)) {
+                assertEquals(bits, VectorUtils.toHalfFloat(value) & 0xffff);
+            }
+        }
+        assertEquals(1f, VectorUtils.fromHalfFloat(VectorUtils.toHalfFloat(1f)), 0f);
+        assertEquals(65504f, VectorUtils.fromHalfFloat(VectorUtils.toHalfFloat(65504f)), 0f);
+        assertEquals(Float.POSITIVE_INFINITY, VectorUtils.fromHalfFloat(VectorUtils.toHalfFloat(1e6f)), 0f);
+        assertEquals(0f, VectorUtils.fromHalfFloat(VectorUtils.toHalfFloat(1e-9f)), 0f);
+        assertTrue(Float.isNaN(VectorUtils.fromHalfFloat(VectorUtils.toHalfFloat(Float.NaN))));
+        // ties go to the even half, 1 + 2^-11 sits between 1 and the next half 1 + 2^-10
+        assertEquals(1f, VectorUtils.fromHalfFloat(VectorUtils.toHalfFloat(1f + 0x1p-11f)), 0f);
+        assertEquals(1f + 0x1p-9f, VectorUtils.fromHalfFloat(VectorUtils.toHalfFloat(1f + 0x1p-10f + 0x1p-11f)), 0f);
+    }
+
+    @Test
+    public void quantizedScoresMatchDecodedVectors() {
+        final Random random = random();
+        for(VectorUtils.VectorType vectorType: new VectorUtils.VectorType[] {VectorUtils.VectorType.INT8, VectorUtils.VectorType.FLOAT16}) {
+            for(int dimensions: new int[] {1, 6, 64, 385}) {
+                final double[] query = VectorTestUtils.randomVector(random, dimensions);
+                final float[] values = new float[dimensions];
+                for(int i = 0; i < dimensions; i++) {
+                    values[i] = (float) (random.nextGaussian() * 3);
+                }
+                final BytesRef docVector = new VectorUtils.ParsedVector(null, values).encode(vectorType, false, false);
+                final float[] decoded = VectorUtils.decode(docVector, vectorType).getValues();
+                final double step = vectorType == VectorUtils.VectorType.INT8? maxStep(values): 0.01d;
+
+                double dot = 0d, squaredDistance = 0d, squaredNorm = 0d;
+                for(int i = 0; i < dimensions; i++) {
+                    assertEquals(values[i], decoded[i], step);
+                    dot += query[i] * decoded[i];
+                    squaredDistance += (query[i] - decoded[i]) * (query[i] - decoded[i]);
+                    squaredNorm += (double) decoded[i] * decoded[i];
+                }
+                final double delta = 1e-4 * Math.max(1d, Math.abs(dot));
+                assertEquals(dot, score(query, vectorType, VectorQuery.VectorQueryType.DOT, docVector), delta);
+                assertEquals(VectorQueryScorer.euclideanSimilarity(squaredDistance),
+                        score(query, vectorType, VectorQuery.VectorQueryType.EUCLIDEAN, docVector), 1e-5);
+                final PreparedVectorQuery preparedQuery = new PreparedVectorQuery(query, vectorType, VectorQuery.VectorQueryType.COSINE);
+                assertEquals(dot / (Math.sqrt(squaredNorm) * preparedQuery.getNorm()), preparedQuery.score(docVector), 1e-5);
+            }
+        }
+    }
+
+    @Test
+    public void constantVectorsQuantizeExactly() {
+        final float[] values = {2.5f, 2.5f, 2.5f};
+        final BytesRef docVector = new VectorUtils.ParsedVector(null, values).encode(VectorUtils.VectorType.INT8, false, false);
+        assertEquals(VectorUtils.INT8_HEADER_SIZE + values.length, docVector.length);
+        assertArrayEquals(values, VectorUtils.decode(docVector, VectorUtils.VectorType.INT8).getValues(), 0f);
+    }
+
+    private static float score(double[] query, VectorUtils.VectorType vectorType, VectorQuery.VectorQueryType queryType, BytesRef docVector) {
+        return new PreparedVectorQuery(query, vectorType, queryType).score(docVector);
+    }
+
+    private static double maxStep(float[] values) {
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for(float x: values) {
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+        }
+        // half a step of rounding, plus float error
+        return (max - min) / 255d / 2 + 1e-5;
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.saaay71.solr.query.score;
+
+import com.github.saaay71.solr.VectorUtils;
+import com.github.saaay71.solr.query.PreparedVectorQuery;
+import com.github.saaay71.solr.query.VectorQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class VarintSparseQueryScorerTest extends LuceneTestCase {
+
+    @Test
+    public void varintLayoutRoundTrip() {
+        final int[] indices = {99_999, 3, 128, 0, 16_384};
+        final float[] values = {0.5f, -1f, 2f, 3.25f, 7f};
+        final BytesRef encoded = new VectorUtils.ParsedVector(indices, values).encode(VectorUtils.VectorType.AUTO, false, false);
+        assertEquals(VectorUtils.SPARSE_VARINT_VECTOR_BYTE.byteValue(), encoded.bytes[0]);
+        // deltas 0, 3, 125 take one byte, 16256 two and 83615 three, against 8 bytes an entry before
+        assertEquals(VectorUtils.SPARSE_VARINT_HEADER_SIZE + 5 * Float.BYTES + 1 + 1 + 1 + 2 + 3, encoded.length);
+
+        final VectorUtils.ParsedVector decoded = VectorUtils.decode(encoded, VectorUtils.VectorType.AUTO);
+        assertArrayEquals(new int[] {0, 3, 128, 16_384, 99_999}, decoded.getIndices());
+        assertArrayEquals(new float[] {3.25f, -1f, 2f, 7f, 0.5f}, decoded.getValues(), 0f);
+    }
+
+    @Test
+    public void mergeJoinMatchesDenseScoring() {
+        final Random random = random();
+        for(int iter = 0; iter < 20; iter++) {
+            final int dimensions = 1 + random.nextInt(100_000);
+            final VectorUtils.ParsedVector doc = randomSparse(random, dimensions);
+            final VectorUtils.ParsedVector query = randomSparse(random, dimensions);
+            final BytesRef varint = doc.encode(VectorUtils.VectorType.AUTO, false, false);
+            final BytesRef legacy = legacySparse(doc);
+            for(VectorQuery.VectorQueryType queryType: VectorQuery.VectorQueryType.values()) {
+                final PreparedVectorQuery sparseQuery = PreparedVectorQuery.sparse(query.getIndices(), query.getValues(),
+                        VectorUtils.VectorType.AUTO, queryType);
+                final PreparedVectorQuery denseQuery = new PreparedVectorQuery(sparseQuery.getVector(), VectorUtils.VectorType.AUTO, queryType);
+                final float expected = denseQuery.score(BytesRef.deepCopyOf(legacy));
+                final float delta = 1e-4f * Math.max(1f, Math.abs(expected));
+                assertEquals(expected, sparseQuery.score(BytesRef.deepCopyOf(varint)), delta);
+                assertEquals(expected, denseQuery.score(BytesRef.deepCopyOf(varint)), delta);
+                // the 8 byte layout stays readable with sparse queries
+                assertEquals(expected, sparseQuery.score(BytesRef.deepCopyOf(legacy)), delta);
+            }
+        }
+    }
+
+    @Test
+    public void sparseQueryMergesRepeatedIndices() {
+        final PreparedVectorQuery query = PreparedVectorQuery.sparse(new int[] {7, 2, 7}, new float[] {1f, 2f, 3f},
+                VectorUtils.VectorType.AUTO, VectorQuery.VectorQueryType.DOT);
+        assertArrayEquals(new int[] {2, 7}, query.getSparseIndices());
+        assertArrayEquals(new double[] {2d, 4d}, query.getSparseValues(), 0d);
+        assertEquals(8, query.getDimensions());
+    }
+
+    private static BytesRef legacySparse(VectorUtils.ParsedVector vector) {
+        final BytesRef bytes = new BytesRef(new byte[1 + vector.getValues().length * VectorUtils.SPARSE_SIZE]);
+        bytes.bytes[0] = VectorUtils.SPARSE_VECTOR_BYTE;
+        bytes.offset = 1;
+        final BytesRef entries = new VectorUtils.ParsedVector(vector.getIndices(), vector.getValues())
+                .encode(VectorUtils.VectorType.SPARSE, false, false);
+        System.arraycopy(entries.bytes, 0, bytes.bytes, 1, entries.length);
+        return new BytesRef(bytes.bytes);
+    }
+
+    private static VectorUtils.ParsedVector randomSparse(Random random, int dimensions) {
+        final int size = random.nextInt(Math.min(dimensions, 200) + 1);
+        final int[] indices = new int[size];
+        final float[] values = new float[size];
+        for(int i = 0; i < size; i++) {
+            indices[i] = random.nextInt(dimensions);
+            values[i] = (float) random.nextGaussian();
+        }
+        return new VectorUtils.ParsedVector(indices, values);
+    }
+}